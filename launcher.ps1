@@ -13,6 +13,16 @@ $OUTPUTDIR = "/tmp/dal660753/output"
 # JAR file (wildcard supported)
 $JAR_FILE = ".\target\Node-1.0-SNAPSHOT.jar"
 
+# Extra JVM options, e.g. a Flight Recording with the profile copied next to the JAR:
+# $JAVA_OPTS = "-XX:StartFlightRecording=settings=$PROJDIR/maekawa.jfc,filename=$OUTPUTDIR/node.jfr"
+$JAVA_OPTS = ""
+$JFC_FILE = ".\maekawa.jfc"
+
+# AppCDS: a node's first run after a new JAR records the classes it loads into
+# $PROJDIR/Node-<id>.jsa, later runs start from that archive. The archive only works
+# for the JDK that wrote it and the JAR at the same path, hence one per node, on the node.
+$USE_CDS = $false
+
 # --- Step 1: Read and preprocess configuration file ---
 $CONFIG = Get-Content $CONFIGLOCAL | ForEach-Object {
     $_ -replace '#.*',''
@@ -53,13 +63,19 @@ for ($i = 0; $i -lt $n; $i++) {
     Write-Host "[DEBUG] ssh $netid@$hostname $cmd_mkdir"
     ssh -o UserKnownHostsFile=/dev/null -o StrictHostKeyChecking=no "$($netid)@$($hostname)" $cmd_mkdir
 
-    # 2. Copy files (JAR + config)
+    # 2. Copy files (JAR + config + JFR profile)
     $remotePath = "$($netid)@$($hostname):$PROJDIR"
-    Write-Host "[DEBUG] scp $JAR_FILE $CONFIGLOCAL $remotePath"
-    scp $JAR_FILE $CONFIGLOCAL $remotePath
+    Write-Host "[DEBUG] scp -p $JAR_FILE $CONFIGLOCAL $JFC_FILE $remotePath"
+    # -p keeps the JAR's build time, which tells an AppCDS archive of the same JAR from a stale one
+    scp -p $JAR_FILE $CONFIGLOCAL $JFC_FILE $remotePath
 
     # 3. Launch Java node in background
-    $remoteCmd = "java -jar $PROJDIR/Node-1.0-SNAPSHOT.jar $id $PROJDIR/config.txt $OUTPUTDIR > $OUTPUTDIR/node-$id.log 2>&1 &"
+    $javaCmd = "java $JAVA_OPTS"
+    if ($USE_CDS) {
+        $jsa = "$PROJDIR/Node-$id.jsa"
+        $javaCmd = "if [ $jsa -nt $PROJDIR/Node-1.0-SNAPSHOT.jar ]; then CDS=-XX:SharedArchiveFile=$jsa; else rm -f $jsa; CDS=-XX:ArchiveClassesAtExit=$jsa; fi; java `$CDS $JAVA_OPTS"
+    }
+    $remoteCmd = "$javaCmd -jar $PROJDIR/Node-1.0-SNAPSHOT.jar $id $PROJDIR/config.txt $OUTPUTDIR > $OUTPUTDIR/node-$id.log 2>&1 &"
     Write-Host "[DEBUG] ssh $netid@$hostname $remoteCmd"
     ssh -o UserKnownHostsFile=/dev/null -o StrictHostKeyChecking=no "$($netid)@$($hostname)" $remoteCmd
 
@@ -0,0 +1,340 @@
+package com.os;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs Maekawa while requests are sparse and Suzuki-Kasami while they are dense,
+ * switching the whole cluster at runtime. Selected with {@code -Dmutex.engine=adaptive}.
+ *
+ * <p>Every node reports its {@link ContentionMonitor} counters to the lowest node id
+ * once per window. That node estimates the mean number of waiting requesters (total
+ * wait time over window length), the offered load (cluster request rate times mean CS
+ * hold time, the share of the window the CS would be busy) and, in quorum mode,
+ * FAILED+INQUIRE per CS and arbiter queue depth. After two windows past a watermark it
+ * switches in three steps:
+ * SWITCH_PREPARE closes every node's gate to new requests and resets the target engine;
+ * each node answers SWITCH_READY once its in-flight request has left the CS; once all
+ * have answered, SWITCH_COMMIT reopens the gates in the new mode. No request ever spans
+ * two engines.
+ */
+public class AdaptiveMutexEngine implements MutexEngine {
+    private static final long WINDOW_MS = Long.getLong("adaptive.windowMs", 1000L);
+    private static final double HIGH_WATERMARK = Double.parseDouble(System.getProperty("adaptive.high", "2.0"));
+    private static final double LOW_WATERMARK = Double.parseDouble(System.getProperty("adaptive.low", "0.5"));
+    private static final double HIGH_LOAD = Double.parseDouble(System.getProperty("adaptive.highLoad", "0.8"));
+    private static final double LOW_LOAD = Double.parseDouble(System.getProperty("adaptive.lowLoad", "0.3"));
+    private static final int WINDOWS_TO_SWITCH = 2;
+
+    private final Node currNode;
+    private final TCPClient tcpClient = new TCPClient();
+    private final MaekawaProtocol quorumEngine;
+    private final SuzukiKasamiProtocol tokenEngine;
+    private final ContentionMonitor monitor = new ContentionMonitor();
+    private volatile ScheduledExecutorService reporter;
+    private volatile long enteredNanos;
+
+    private final ReentrantLock gateLock = new ReentrantLock();
+    private final Condition gateOpen = gateLock.newCondition();
+    private ModeSwitch.Mode mode = ModeSwitch.Mode.QUORUM;
+    private int epoch = 0;
+    private boolean paused = false;
+    private int activeCalls = 0;
+    private int preparedEpoch = 0;
+
+    // Only used on the coordinator, always under gateLock.
+    private long windowCsEntries, windowWaitNanos, windowConflicts, windowRequests, windowHoldNanos;
+    private int windowQueueDepth, windowReports;
+    private int streak = 0;
+    private boolean switchInProgress = false;
+    private final Set<Integer> readyFrom = new HashSet<>();
+
+    AdaptiveMutexEngine(Node node, String outputDir) {
+        this.currNode = node;
+        this.quorumEngine = new MaekawaProtocol(node, outputDir);
+        this.tokenEngine = new SuzukiKasamiProtocol(node, outputDir);
+    }
+
+    @Override
+    public void setOutputDir(String outputDir) {
+        quorumEngine.setOutputDir(outputDir);
+        tokenEngine.setOutputDir(outputDir);
+    }
+
+    @Override
+    public void csEnter() {
+        csEnter(PriorityClass.NORMAL);
+    }
+
+    @Override
+    public void csEnter(PriorityClass priority) {
+        MutexEngine engine = passGate();
+        long start = System.nanoTime();
+        engine.csEnter(priority);
+        enteredNanos = System.nanoTime();
+        monitor.recordEntry(enteredNanos - start);
+    }
+
+    @Override
+    public boolean tryEnter(long timeoutMs) {
+        return tryEnter(timeoutMs, PriorityClass.NORMAL);
+    }
+
+    @Override
+    public boolean tryEnter(long timeoutMs, PriorityClass priority) {
+        MutexEngine engine = passGate();
+        long start = System.nanoTime();
+        if (!engine.tryEnter(timeoutMs, priority)) {
+            leaveGate();
+            return false;
+        }
+        enteredNanos = System.nanoTime();
+        monitor.recordEntry(enteredNanos - start);
+        return true;
+    }
+
+    @Override
+    public void csLeave() {
+        monitor.recordExit(System.nanoTime() - enteredNanos);
+        engineFor(currentMode()).csLeave();
+        leaveGate();
+    }
+
+    /**
+     * Starts reporting contention every window, whether or not this node ever requests
+     * the CS, so the coordinator evaluates windows from the start.
+     */
+    @Override
+    public void start() {
+        if (reporter != null) {
+            return;
+        }
+        synchronized (this) {
+            if (reporter == null) {
+                ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "Adaptive-" + currNode.getNodeId());
+                    t.setDaemon(true);
+                    return t;
+                });
+                timer.scheduleAtFixedRate(this::report, WINDOW_MS, WINDOW_MS, TimeUnit.MILLISECONDS);
+                reporter = timer;
+            }
+        }
+    }
+
+    @Override
+    public void describe(StringBuilder out) {
+        ModeSwitch.Mode m = currentMode();
+        out.append("adaptive mode=").append(m).append('\n');
+        engineFor(m).describe(out);
+    }
+
+    @Override
+    public boolean onMessage(Message msg) {
+        switch (msg.type) {
+            case CONTENTION_REPORT:
+                onReport((ContentionReport) msg.info);
+                return true;
+            case SWITCH_PREPARE:
+                onPrepare((ModeSwitch) msg.info);
+                return true;
+            case SWITCH_READY:
+                onReady(msg);
+                return true;
+            case SWITCH_COMMIT:
+                onCommit((ModeSwitch) msg.info);
+                return true;
+            default:
+                monitor.recordMessage(msg.type);
+                return quorumEngine.onMessage(msg) || tokenEngine.onMessage(msg);
+        }
+    }
+
+    private MutexEngine passGate() {
+        monitor.recordRequest();
+        gateLock.lock();
+        try {
+            while (paused) {
+                System.out.println("Adaptive | Node " + currNode.getNodeId() + " waiting for mode switch to finish");
+                gateOpen.awaitUninterruptibly();
+            }
+            activeCalls++;
+            return engineFor(mode);
+        } finally {
+            gateLock.unlock();
+        }
+    }
+
+    private void leaveGate() {
+        boolean sendReady;
+        gateLock.lock();
+        try {
+            activeCalls--;
+            sendReady = paused && activeCalls == 0;
+        } finally {
+            gateLock.unlock();
+        }
+        if (sendReady) {
+            sendToCoordinator(MessageType.SWITCH_READY, null);
+        }
+    }
+
+    private void onPrepare(ModeSwitch next) {
+        boolean sendReady;
+        gateLock.lock();
+        try {
+            if (next.epoch <= epoch || next.epoch <= preparedEpoch) {
+                return;
+            }
+            System.out.println("Adaptive | Node " + currNode.getNodeId() + " preparing " + next);
+            preparedEpoch = next.epoch;
+            paused = true;
+            if (next.mode == ModeSwitch.Mode.TOKEN) {
+                tokenEngine.reset(next.epoch);
+            }
+            sendReady = activeCalls == 0;
+        } finally {
+            gateLock.unlock();
+        }
+        if (sendReady) {
+            sendToCoordinator(MessageType.SWITCH_READY, null);
+        }
+    }
+
+    private void onReady(Message msg) {
+        ModeSwitch next;
+        gateLock.lock();
+        try {
+            readyFrom.add(msg.from);
+            if (!switchInProgress || readyFrom.size() < clusterIds().length) {
+                return;
+            }
+            next = new ModeSwitch(preparedEpoch, mode == ModeSwitch.Mode.QUORUM ? ModeSwitch.Mode.TOKEN : ModeSwitch.Mode.QUORUM);
+            switchInProgress = false;
+            readyFrom.clear();
+        } finally {
+            gateLock.unlock();
+        }
+        broadcast(MessageType.SWITCH_COMMIT, next);
+    }
+
+    private void onCommit(ModeSwitch next) {
+        gateLock.lock();
+        try {
+            if (next.epoch <= epoch) {
+                return;
+            }
+            System.out.println("Adaptive | Node " + currNode.getNodeId() + " now running " + next);
+            epoch = next.epoch;
+            mode = next.mode;
+            paused = false;
+            gateOpen.signalAll();
+        } finally {
+            gateLock.unlock();
+        }
+    }
+
+    private void onReport(ContentionReport report) {
+        gateLock.lock();
+        try {
+            windowCsEntries += report.csEntries;
+            windowWaitNanos += report.waitNanos;
+            windowConflicts += report.failed + report.inquiries;
+            windowRequests += report.requests;
+            windowHoldNanos += report.holdNanos;
+            windowQueueDepth += report.queueDepth;
+            windowReports++;
+        } finally {
+            gateLock.unlock();
+        }
+    }
+
+    private void report() {
+        ContentionReport report = monitor.drain(currNode.getArbiter().getQueueDepth());
+        sendToCoordinator(MessageType.CONTENTION_REPORT, report);
+        if (currNode.getNodeId() == clusterIds()[0]) {
+            evaluateWindow();
+        }
+    }
+
+    private void evaluateWindow() {
+        ModeSwitch next = null;
+        gateLock.lock();
+        try {
+            double avgWaiting = windowWaitNanos / (double) TimeUnit.MILLISECONDS.toNanos(WINDOW_MS);
+            double conflictsPerCs = windowConflicts / (double) Math.max(1, windowCsEntries);
+            double avgQueueDepth = windowQueueDepth / (double) Math.max(1, windowReports);
+            double requestRate = windowRequests * 1000.0 / WINDOW_MS;
+            double meanHoldSeconds = windowHoldNanos / (double) Math.max(1, windowCsEntries) / TimeUnit.SECONDS.toNanos(1);
+            double offeredLoad = requestRate * meanHoldSeconds;
+            System.out.println("Adaptive | window: mode=" + mode + " cs=" + windowCsEntries + " requestRate=" + requestRate
+                    + " offeredLoad=" + offeredLoad + " avgWaiting=" + avgWaiting + " conflictsPerCs=" + conflictsPerCs
+                    + " avgQueueDepth=" + avgQueueDepth);
+            boolean wantsSwitch;
+            if (mode == ModeSwitch.Mode.QUORUM) {
+                wantsSwitch = offeredLoad >= HIGH_LOAD || avgWaiting >= HIGH_WATERMARK || conflictsPerCs >= HIGH_WATERMARK
+                        || avgQueueDepth >= 1.0;
+            } else {
+                wantsSwitch = offeredLoad <= LOW_LOAD && avgWaiting <= LOW_WATERMARK;
+            }
+            windowCsEntries = windowWaitNanos = windowConflicts = windowRequests = windowHoldNanos = 0;
+            windowQueueDepth = windowReports = 0;
+            streak = wantsSwitch && !switchInProgress && !paused ? streak + 1 : 0;
+            if (streak >= WINDOWS_TO_SWITCH) {
+                streak = 0;
+                switchInProgress = true;
+                readyFrom.clear();
+                next = new ModeSwitch(epoch + 1, mode == ModeSwitch.Mode.QUORUM ? ModeSwitch.Mode.TOKEN : ModeSwitch.Mode.QUORUM);
+            }
+        } finally {
+            gateLock.unlock();
+        }
+        if (next != null) {
+            System.out.println("Adaptive | switching cluster to " + next);
+            broadcast(MessageType.SWITCH_PREPARE, next);
+        }
+    }
+
+    private ModeSwitch.Mode currentMode() {
+        gateLock.lock();
+        try {
+            return mode;
+        } finally {
+            gateLock.unlock();
+        }
+    }
+
+    private MutexEngine engineFor(ModeSwitch.Mode m) {
+        return m == ModeSwitch.Mode.QUORUM ? quorumEngine : tokenEngine;
+    }
+
+    private void sendToCoordinator(MessageType type, ContentionReport report) {
+        int coordinatorId = clusterIds()[0];
+        Message msg = new Message(type, currNode.getNodeId(), coordinatorId, report);
+        if (coordinatorId == currNode.getNodeId()) {
+            onMessage(msg);
+        } else {
+            tcpClient.sendMessage(currNode.getNodeById(coordinatorId), msg);
+        }
+    }
+
+    private void broadcast(MessageType type, ModeSwitch payload) {
+        for (int id : clusterIds()) {
+            Message msg = new Message(type, currNode.getNodeId(), id, payload);
+            if (id == currNode.getNodeId()) {
+                onMessage(msg);
+            } else {
+                tcpClient.sendMessage(currNode.getNodeById(id), msg);
+            }
+        }
+    }
+
+    private int[] clusterIds() {
+        return currNode.getDirectory().sortedIds();
+    }
+}
@@ -0,0 +1,54 @@
+package com.os;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds back new rounds while a quorum member reports a full wait queue. Arbiters
+ * piggyback their queue depth on LOCKED, FAILED and INQUIRE; once a member reports
+ * {@code -Dflow.maxQueueDepth} or more, this node sends it no new REQUEST for a backoff
+ * that starts at {@code -Dflow.backoffMs} and doubles while the member stays saturated,
+ * so an overloaded arbiter is not buried in REQUESTs it can only answer with FAILED.
+ * A report below the limit ends the backoff. Guarded by the requester lock.
+ */
+public class AdmissionControl {
+    static final int MAX_QUEUE_DEPTH = Integer.getInteger("flow.maxQueueDepth", 16);
+    static final long BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("flow.backoffMs", 20));
+    private static final int MAX_BACKOFF_DOUBLINGS = 5;
+
+    private final Map<Integer, Long> blockedUntil = new HashMap<>();
+    private final Map<Integer, Integer> doublings = new HashMap<>();
+
+    public void observe(int arbiterId, int queueDepth) {
+        if (queueDepth < 0 || MAX_QUEUE_DEPTH <= 0) {
+            return;
+        }
+        if (queueDepth < MAX_QUEUE_DEPTH) {
+            blockedUntil.remove(arbiterId);
+            doublings.remove(arbiterId);
+            return;
+        }
+        int n = doublings.merge(arbiterId, 1, (a, b) -> Math.min(a + 1, MAX_BACKOFF_DOUBLINGS));
+        blockedUntil.put(arbiterId, System.nanoTime() + (BACKOFF_NANOS << (n - 1)));
+    }
+
+    /**
+     * @return how long to wait before sending a REQUEST to this quorum, 0 to send it now
+     */
+    public long delayNanos(List<Integer> quorum) {
+        if (blockedUntil.isEmpty()) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long delay = 0;
+        for (int q : quorum) {
+            Long until = blockedUntil.get(q);
+            if (until != null) {
+                delay = Math.max(delay, until - now);
+            }
+        }
+        return delay;
+    }
+}
@@ -1,42 +1,188 @@
 package com.os;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
 public class ApplicationLayer implements Runnable{
+    /** Local threads issuing this node's CS requests; they split numReqPerNode between them. */
+    static final int THREADS = Integer.getInteger("app.threads", 1);
+    /** Share of requests per class as "HIGH:1,NORMAL:8,LOW:1"; every request is NORMAL by default. */
+    static final String PRIORITY_MIX = System.getProperty("app.priorities", "NORMAL:1");
+    /** Seeds each thread's think, CS and class draws from this, the node id and the thread; unseeded by default. */
+    static final Long SEED = Long.getLong("app.seed");
+    /** Gives up on a CS request after this many ms and asks again, through tryEnter; 0, the default, waits in csEnter. */
+    static final long DEADLINE_MS = Long.getLong("app.deadlineMs", 0L);
+
     private final Node currNode;
-    private final Random rand = new Random();
+    private final double[] classWeights = parsePriorityMix(PRIORITY_MIX);
+    private final LatencyStats latencies = new LatencyStats();
+    private final WorkloadTrace recorded = WorkloadTrace.RECORD ? new WorkloadTrace() : null;
 
     ApplicationLayer(Node currNode){
         this.currNode = currNode;
     }
     @Override
     public void run() {
-        generateRandomCsRequests();
+        WorkloadTrace replay = null;
+        if (WorkloadTrace.REPLAY_DIR != null) {
+            try {
+                replay = WorkloadTrace.load(WorkloadTrace.REPLAY_DIR, currNode.getNodeId());
+            } catch (IOException e) {
+                System.err.println("ApplicationLayer | Cannot replay, generating requests instead: " + e.getMessage());
+            }
+        }
+        List<Thread> threads = new ArrayList<>();
+        if (replay != null) {
+            System.out.println("ApplicationLayer | replaying " + replay.size() + " requests on " + replay.threads()
+                    + " threads at speed " + WorkloadTrace.SPEED);
+            if (replay.size() != currNode.getNumReqPerNode()) {
+                System.out.println("ApplicationLayer | the trace has " + replay.size() + " requests, the config "
+                        + currNode.getNumReqPerNode() + " per node; replaying the trace's");
+            }
+            for (int t = 0; t < replay.threads(); t++) {
+                int thread = t;
+                List<WorkloadTrace.Entry> entries = replay.forThread(t);
+                threads.add(new Thread(() -> replayCsRequests(thread, entries),
+                        "Application-" + currNode.getNodeId() + "-" + t));
+            }
+        } else {
+            int numRequests = currNode.getNumReqPerNode();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                int share = numRequests / THREADS + (t < numRequests % THREADS ? 1 : 0);
+                threads.add(new Thread(() -> generateRandomCsRequests(thread, share),
+                        "Application-" + currNode.getNodeId() + "-" + t));
+            }
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        latencies.report(currNode.getOutputDir(), currNode.getNodeId());
+        if (recorded != null) {
+            recorded.write(currNode.getOutputDir(), currNode.getNodeId());
+        }
+        if (MembershipService.LEAVE_WHEN_DONE) {
+            try {
+                currNode.getMembership().leave();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IllegalStateException e) {
+                System.err.println("err node " + currNode.getNodeId() + " cannot leave: " + e.getMessage());
+                System.exit(1);
+            }
+            currNode.getCoordinator().onLeft();
+        } else {
+            currNode.getCoordinator().announceDone();
+        }
     }
 
-    private void generateRandomCsRequests(){
-        int numRequests = currNode.getNumReqPerNode();
+    private void generateRandomCsRequests(int thread, int numRequests){
+        Random rand = SEED != null ? new Random((SEED * 31 + currNode.getNodeId()) * 31 + thread) : new Random();
         for(int i = 0; i < numRequests; i++){
-            try{
-                System.out.println("ApplicationLayer | inside the try block, about to generate CS requests");
-                long nodeGonnaGenReqIn = (long) exponentiateTime(currNode.getMeanInterReqDelay());
-                System.out.println("ApplicationLayer | node going to sleep for " + nodeGonnaGenReqIn +"");
-                Thread.sleep(nodeGonnaGenReqIn);
-                System.out.println("ApplicationLayer | node shifting responsibility to MaekawaProtocol");
-                currNode.getMkwp().run();
+            long nodeGonnaGenReqIn = (long) exponentiateTime(rand, currNode.getMeanInterReqDelay());
+            PriorityClass priority = nextPriority(rand);
+            long inCsTime = (long) exponentiateTime(rand, currNode.getMeanCsExecTime());
+            if (recorded != null) {
+                recorded.record(thread, nodeGonnaGenReqIn, inCsTime, priority);
+            }
+            issueCsRequest(nodeGonnaGenReqIn, priority, inCsTime);
+        }
+    }
+
+    private void replayCsRequests(int thread, List<WorkloadTrace.Entry> entries) {
+        for (WorkloadTrace.Entry e : entries) {
+            if (recorded != null) {
+                recorded.record(thread, e.thinkMs, e.csMs, e.priority);
+            }
+            issueCsRequest(WorkloadTrace.scale(e.thinkMs), e.priority, WorkloadTrace.scale(e.csMs));
+        }
+    }
+
+    private void issueCsRequest(long nodeGonnaGenReqIn, PriorityClass priority, long inCsTime) {
+        try{
+            System.out.println("ApplicationLayer | inside the try block, about to generate CS requests");
+            System.out.println("ApplicationLayer | node going to sleep for " + nodeGonnaGenReqIn +"");
+            Thread.sleep(nodeGonnaGenReqIn);
+            System.out.println("ApplicationLayer | node shifting responsibility to the mutex engine, class " + priority);
+            long requestedAt = System.nanoTime();
+            enterCs(priority);
+            latencies.record(priority, System.nanoTime() - requestedAt);
+
+            System.out.println();
+            Thread.sleep(inCsTime);
+
+            currNode.getEngine().csLeave();
 
-                System.out.println();
-                long inCsTime = (long) exponentiateTime(currNode.getMeanCsExecTime());
-                Thread.sleep(inCsTime);
+        }catch (InterruptedException e) {
+            System.out.println("Applaye | Exception");
+        }
+    }
+    /**
+     * Enters the CS, retrying tryEnter every {@link #DEADLINE_MS} if a deadline is set.
+     * Each give-up cancels the request at the arbiters before the next one goes out.
+     */
+    private void enterCs(PriorityClass priority) throws InterruptedException {
+        if (DEADLINE_MS <= 0) {
+            currNode.getEngine().csEnter(priority);
+            return;
+        }
+        while (!currNode.getEngine().tryEnter(DEADLINE_MS, priority)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            latencies.recordTimeout(priority);
+            System.out.println("ApplicationLayer | gave up after " + DEADLINE_MS + "ms, asking again");
+        }
+    }
 
-                currNode.getMkwp().csLeave();
+    private PriorityClass nextPriority(Random rand) {
+        double x = rand.nextDouble();
+        PriorityClass[] classes = PriorityClass.values();
+        for (int c = 0; c < classes.length - 1; c++) {
+            if (x < classWeights[c]) {
+                return classes[c];
+            }
+            x -= classWeights[c];
+        }
+        return classes[classes.length - 1];
+    }
 
-            }catch (InterruptedException e) {
-                System.out.println("Applaye | Exception");
+    /**
+     * @return the share of each class, indexed by ordinal and summing to 1
+     */
+    static double[] parsePriorityMix(String mix) {
+        double[] weights = new double[PriorityClass.values().length];
+        double total = 0;
+        for (String part : mix.split(",")) {
+            String[] kv = part.trim().split(":");
+            if (kv.length != 2) {
+                throw new IllegalArgumentException("app.priorities entry is not CLASS:weight: " + part);
             }
+            double w = Double.parseDouble(kv[1].trim());
+            weights[PriorityClass.valueOf(kv[0].trim().toUpperCase()).ordinal()] += w;
+            total += w;
+        }
+        if (total <= 0) {
+            throw new IllegalArgumentException("app.priorities has no positive weight: " + mix);
         }
+        for (int c = 0; c < weights.length; c++) {
+            weights[c] /= total;
+        }
+        return weights;
     }
-    private double exponentiateTime(double avg){
+
+    private double exponentiateTime(Random rand, double avg){
         System.out.println("ApplicationLayer | Mean time :" + avg);
         double x = rand.nextDouble();
         return -avg * Math.log(x);
@@ -0,0 +1,436 @@
+package com.os;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Arbiter role of a node: which request currently holds this node's grant and
+ * which requests wait for it. All state is touched only from one serial event loop,
+ * so the handlers take no locks; callers only enqueue the message and return.
+ *
+ * <p>With {@code -Dmaekawa.lazyReplies} (the default) the holder of a grant is sent at
+ * most one INQUIRE, and a request that goes to the head of the queue ahead of the
+ * holder gets no FAILED unless another request later overtakes it: it is next in line,
+ * so the holder yielding or releasing hands it the grant anyway.
+ *
+ * <p>With an {@link ArbiterLog} every change of state is logged and every reply held
+ * back until it is on disk, so a crashed node restarts with this state, see
+ * {@link #openLog()}.
+ */
+public class Arbiter {
+    static final boolean LAZY_REPLIES = Boolean.parseBoolean(System.getProperty("maekawa.lazyReplies", "true"));
+    private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Node currNode;
+    private TCPClient tcpClient = new TCPClient();
+    private ArbiterLog wal = null;
+
+    private boolean isLocked = false;
+    private Request lockingRequest = null;
+    private final RequestHeap waitQueue = new RequestHeap();
+    private final Map<Integer, Integer> cancelledSeqnums = new HashMap<>();
+    private boolean holderInquired = false;
+    private int grantStamp = 0;                 // counts grants, so a requester can tell them apart
+    private long grantedNanos;
+    private Request deferredFailed = null;      // head of the queue, not told FAILED yet
+    private final MessageCounters counters;
+    private final SerialExecutor eventLoop;
+    private long rateWindowStart = System.nanoTime();
+    private int requestsInWindow = 0;
+    private volatile int requestRate = 0;
+
+    Arbiter(Node node) {
+        this.currNode = node;
+        this.eventLoop = new SerialExecutor("Arbiter-" + node.getNodeId());
+        this.counters = MessageCounters.of(node.getNodeId());
+    }
+
+    /**
+     * Starts logging to the node's {@link ArbiterLog}, if {@code -Dwal.dir} is set, after
+     * restoring whatever state it holds. Call before the node receives any message.
+     *
+     * @return the seqnum the node must resume above, or -1 if there was nothing to recover
+     */
+    public int openLog() throws IOException {
+        ArbiterLog log = ArbiterLog.open(currNode.getNodeId());
+        if (log == null) {
+            return -1;
+        }
+        ArbiterLog.State state = log.recover();
+        wal = log;
+        tcpClient = new TCPClient() {
+            @Override
+            public boolean sendMessage(Node dest, Message msg) {
+                log.afterCommit(() -> super.sendMessage(dest, msg));
+                return true;
+            }
+        };
+        if (state.empty) {
+            return -1;
+        }
+        lockingRequest = state.lockingRequest;
+        isLocked = lockingRequest != null;
+        grantStamp = state.grantStamp;
+        for (long key : state.waitQueue.keys()) {
+            waitQueue.offer(RequestHeap.toRequest(key));
+        }
+        cancelledSeqnums.putAll(state.cancelledSeqnums);
+        return state.resumeSeqnum();
+    }
+
+    /**
+     * Removes the log once the node has finished its run.
+     */
+    public void closeLog() {
+        if (wal != null) {
+            wal.close(true);
+        }
+    }
+
+    /**
+     * Makes sure a restart would resume above {@code seqnum}; called before the node
+     * sends a REQUEST with it.
+     */
+    public void reserveSeqnum(int seqnum) {
+        if (wal != null) {
+            wal.reserveSeqnum(seqnum);
+        }
+    }
+
+    public void onRequest(Message msg) {
+        eventLoop.execute(() -> {
+            handleRequest(msg);
+            snapshotIfDue();
+        });
+    }
+
+    public void onRelinquish(Message msg) {
+        eventLoop.execute(() -> {
+            handleRelinquish(msg);
+            snapshotIfDue();
+        });
+    }
+
+    public void onRelease(Message msg) {
+        eventLoop.execute(() -> {
+            handleRelease(msg);
+            snapshotIfDue();
+        });
+    }
+
+    public void onCancel(Message msg) {
+        eventLoop.execute(() -> {
+            handleCancel(msg);
+            snapshotIfDue();
+        });
+    }
+
+    public void onRecovered(Message msg) {
+        eventLoop.execute(() -> {
+            handleRecovered(msg);
+            snapshotIfDue();
+        });
+    }
+
+    /**
+     * Requests waiting for this arbiter. Read without going through the event loop,
+     * so it is only a sample for monitoring.
+     */
+    public int getQueueDepth() {
+        return waitQueue.size();
+    }
+
+    /**
+     * REQUESTs per second this arbiter received over its last full window. Piggybacked
+     * on LOCKED and FAILED so requesters can steer towards less busy quorums.
+     */
+    public int getRequestRate() {
+        return requestRate;
+    }
+
+    /**
+     * Identifies the current grant on LOCKED and INQUIRE. Only read from the event loop.
+     */
+    public int getGrantStamp() {
+        return grantStamp;
+    }
+
+    /**
+     * Appends the {@code arbiter} line and a {@code queued} line per waiting request, in
+     * the order they would be served, as read on the event loop.
+     *
+     * @return false if the event loop did not get to it within {@code timeoutMs}
+     */
+    public boolean describe(StringBuilder out, long timeoutMs) throws InterruptedException {
+        StringBuilder lines = new StringBuilder();
+        CountDownLatch done = new CountDownLatch(1);
+        eventLoop.execute(() -> {
+            describeState(lines);
+            done.countDown();
+        });
+        if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        out.append(lines);
+        return true;
+    }
+
+    private void describeState(StringBuilder out) {
+        out.append("arbiter holder=");
+        if (lockingRequest == null) {
+            out.append("none");
+        } else {
+            out.append(lockingRequest.nodeId)
+                    .append(" seq=").append(lockingRequest.seqnum)
+                    .append(" class=").append(lockingRequest.priority)
+                    .append(" held=").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - grantedNanos))
+                    .append(" inquired=").append(holderInquired);
+        }
+        out.append(" stamp=").append(grantStamp)
+                .append(" queued=").append(waitQueue.size())
+                .append(" rate=").append(requestRate)
+                .append('\n');
+        long[] queued = waitQueue.keys();
+        Arrays.sort(queued);
+        for (long key : queued) {
+            out.append("queued node=").append(RequestHeap.nodeIdOf(key))
+                    .append(" seq=").append(RequestHeap.seqnumOf(key))
+                    .append(" class=").append(RequestHeap.priorityOf(key))
+                    .append('\n');
+        }
+    }
+
+    private void handleRequest(Message req) {
+        Request incomingReq = (Request) req.info;
+        countRequest();
+        currNode.seqnumupdate(incomingReq.seqnum);
+        if (isCancelled(incomingReq)) {
+            System.out.println("Arbiter | dropping already cancelled " + incomingReq);
+            return;
+        }
+        if (incomingReq.equals(lockingRequest)) {
+            // Sent again after this node restarted; the grant may not have reached it.
+            System.out.println("Arbiter | " + incomingReq + " already holds the grant, sending LOCKED again");
+            tcpClient.sendLockedFor(currNode, currNode.getNodeById(incomingReq.nodeId), incomingReq);
+            return;
+        }
+        if (!isLocked) {
+            System.out.println("Arbiter | locked for: " + incomingReq.nodeId);
+            grant(incomingReq);
+        } else {
+            Request currentReq = lockingRequest;
+            System.out.println("Arbiter | Node is locked for seq=" + currentReq.seqnum);
+            addReqToOutstandingQueue(incomingReq);
+            System.out.println("Arbiter | q'd the req");
+            failOvertakenRequest();
+            if (incomingReq.precedes(currentReq)) {
+                if (waitQueue.peekKey() == RequestHeap.keyOf(incomingReq)) {
+                    System.out.println("Arbiter | incmg has higher priority. Sending inq to " + currentReq.nodeId);
+                    inquireHolder(currentReq);
+                    if (LAZY_REPLIES) {
+                        System.out.println("Arbiter | " + incomingReq.nodeId + " is next in line, holding back FAILED");
+                        deferredFailed = incomingReq;
+                    } else {
+                        System.out.println("Arbiter | sending fail to " + incomingReq.nodeId);
+                        tcpClient.sendFailed(currNode, currNode.getNodeById(incomingReq.nodeId), incomingReq);
+                    }
+                } else {
+                    System.out.println("Arbiter | icnmg has higher priority but not at top of q. failing...");
+                    tcpClient.sendFailed(currNode, currNode.getNodeById(incomingReq.nodeId), incomingReq);
+                }
+            } else {
+                System.out.println("Arbiter | currReq has higher priority. failing " + incomingReq.nodeId);
+                tcpClient.sendFailed(currNode, currNode.getNodeById(incomingReq.nodeId), incomingReq);
+            }
+        }
+    }
+
+    private void inquireHolder(Request currentReq) {
+        if (LAZY_REPLIES && holderInquired) {
+            System.out.println("Arbiter | holder " + currentReq.nodeId + " already inquired for this grant");
+            counters.recordSuppressed(MessageType.INQUIRE);
+            return;
+        }
+        holderInquired = true;
+        tcpClient.sendInquiry(currNode, currNode.getNodeById(currentReq.nodeId), currentReq);
+    }
+
+    /**
+     * Sends the held-back FAILED once its request is no longer at the head of the queue,
+     * since it may then wait behind someone else for good and must be free to yield its
+     * other grants. Drops it if the request has left the queue.
+     */
+    private void failOvertakenRequest() {
+        if (deferredFailed == null) {
+            return;
+        }
+        long deferredKey = RequestHeap.keyOf(deferredFailed);
+        if (waitQueue.keyOfNode(deferredFailed.nodeId) != deferredKey) {
+            counters.recordSuppressed(MessageType.FAILED);
+            deferredFailed = null;
+        } else if (waitQueue.peekKey() != deferredKey) {
+            System.out.println("Arbiter | " + deferredFailed.nodeId + " overtaken, sending its FAILED now");
+            tcpClient.sendFailed(currNode, currNode.getNodeById(deferredFailed.nodeId), deferredFailed);
+            deferredFailed = null;
+        }
+    }
+
+    private void handleRelinquish(Message msg) {
+        System.out.println("Arbiter | Node " + currNode.getNodeId() + " received RELINQUISH from node " + msg.from);
+        Request currentReq = lockingRequest;
+        if (currentReq == null || !currentReq.equals(msg.info)) {
+            System.out.println("Arbiter | Unexpected RELINQUISH from " + msg.from);
+            return;
+        }
+        addReqToOutstandingQueue(currentReq);
+        System.out.println("Arbiter | Placed req back in queue");
+        resetLock();
+        failOvertakenRequest();
+        grantNext();
+    }
+
+    private void handleRelease(Message msg) {
+        System.out.println("Arbiter | Node " + currNode.getNodeId() + " received RELEASE from node " + msg.from);
+        Request currentReq = lockingRequest;
+        if (currentReq == null || !currentReq.equals(msg.info)) {
+            // A round that finished without this grant never needs it, so it must not be
+            // granted later and hold the arbiter for nobody.
+            Request released = (Request) msg.info;
+            if (waitQueue.keyOfNode(released.nodeId) == RequestHeap.keyOf(released)) {
+                System.out.println("Arbiter | dropping queued " + released + " released by its node");
+                dequeue(released.nodeId);
+                failOvertakenRequest();
+            }
+            return;
+        }
+        resetLock();
+        grantNext();
+    }
+
+    private void handleCancel(Message msg) {
+        Request cancelledReq = (Request) msg.info;
+        System.out.println("Arbiter | Node " + currNode.getNodeId() + " received CANCEL for " + cancelledReq);
+        markCancelled(cancelledReq);
+        removeFromWaitQueue(cancelledReq);
+        failOvertakenRequest();
+        if (lockingRequest != null && lockingRequest.equals(cancelledReq)) {
+            System.out.println("Arbiter | cancelled req held the lock, passing it on");
+            resetLock();
+            grantNext();
+        }
+    }
+
+    /**
+     * A node restarted from its log and resumes at seqnum {@code msg.info}: none of its
+     * requests from before the crash is still wanted. Once this arbiter is the restarted
+     * node itself, its holder is sent LOCKED again in case the first one was lost with the
+     * crash; a holder that has moved on answers with a RELEASE.
+     */
+    private void handleRecovered(Message msg) {
+        int restarted = msg.from;
+        int resumeSeqnum = (Integer) msg.info;
+        System.out.println("Arbiter | node " + restarted + " recovered, dropping its requests below seqnum " + resumeSeqnum);
+        markCancelled(new Request(resumeSeqnum - 1, restarted));
+        long queued = waitQueue.keyOfNode(restarted);
+        if (queued != RequestHeap.EMPTY && RequestHeap.seqnumOf(queued) < resumeSeqnum) {
+            dequeue(restarted);
+        }
+        failOvertakenRequest();
+        if (lockingRequest != null && lockingRequest.nodeId == restarted && lockingRequest.seqnum < resumeSeqnum) {
+            resetLock();
+            grantNext();
+        } else if (lockingRequest != null && restarted == currNode.getNodeId()) {
+            tcpClient.sendLockedFor(currNode, currNode.getNodeById(lockingRequest.nodeId), lockingRequest);
+        }
+    }
+
+    private void snapshotIfDue() {
+        if (wal != null && wal.wantsSnapshot()) {
+            wal.snapshot(lockingRequest, grantStamp, waitQueue.keys(), cancelledSeqnums, currNode.getSeqnum());
+        }
+    }
+
+    private void countRequest() {
+        requestsInWindow++;
+        long elapsed = System.nanoTime() - rateWindowStart;
+        if (elapsed >= RATE_WINDOW_NANOS) {
+            requestRate = (int) (requestsInWindow * TimeUnit.SECONDS.toNanos(1) / elapsed);
+            requestsInWindow = 0;
+            rateWindowStart += elapsed;
+        }
+    }
+
+    private void grantNext() {
+        if (waitQueue.isEmpty()) {
+            System.out.println("Arbiter | No pending requests. Node is now UNLOCKED");
+            return;
+        }
+        Request nextReq = RequestHeap.toRequest(waitQueue.pollKey());
+        System.out.println("Arbiter | Serving next request from node " + nextReq.nodeId);
+        grant(nextReq);
+    }
+
+    private void grant(Request req) {
+        if (req.equals(deferredFailed)) {
+            counters.recordSuppressed(MessageType.FAILED);
+            deferredFailed = null;
+        }
+        lockingRequest = req;
+        isLocked = true;
+        holderInquired = false;
+        grantStamp++;
+        grantedNanos = System.nanoTime();
+        if (wal != null) {
+            wal.grant(req, grantStamp);
+        }
+        tcpClient.sendLockedFor(currNode, currNode.getNodeById(req.nodeId), req);
+    }
+
+    private void resetLock() {
+        lockingRequest = null;
+        isLocked = false;
+        holderInquired = false;
+        if (wal != null) {
+            wal.unlock();
+        }
+    }
+
+    private void addReqToOutstandingQueue(Request req) {
+        if (waitQueue.offer(req) && wal != null) {
+            wal.enqueue(req);
+        }
+    }
+
+    private void dequeue(int nodeId) {
+        if (waitQueue.removeNode(nodeId) && wal != null) {
+            wal.dequeue(nodeId);
+        }
+    }
+
+    private void removeFromWaitQueue(Request cancelledReq) {
+        long queued = waitQueue.keyOfNode(cancelledReq.nodeId);
+        if (queued != RequestHeap.EMPTY && RequestHeap.seqnumOf(queued) <= cancelledReq.seqnum) {
+            dequeue(cancelledReq.nodeId);
+        }
+    }
+
+    /**
+     * Remembers the newest cancelled request of each node so a REQUEST that
+     * arrives after its own CANCEL is not granted.
+     */
+    private void markCancelled(Request cancelledReq) {
+        cancelledSeqnums.merge(cancelledReq.nodeId, cancelledReq.seqnum, Math::max);
+        if (wal != null) {
+            wal.cancelled(cancelledReq.nodeId, cancelledReq.seqnum);
+        }
+    }
+
+    private boolean isCancelled(Request req) {
+        Integer cancelledUpTo = cancelledSeqnums.get(req.nodeId);
+        return cancelledUpTo != null && req.seqnum <= cancelledUpTo;
+    }
+}
@@ -0,0 +1,447 @@
+package com.os;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of one arbiter's decisions, so a node that crashed can restart with
+ * the grant, wait queue and cancellations it had and rejoin a running cluster.
+ *
+ * <p>Records are appended from the arbiter's event loop and written by one flusher
+ * thread, which forces every record that piled up during the previous force in one go
+ * (group commit). The arbiter's outgoing messages wait for the records before them, see
+ * {@link #afterCommit}, so no LOCKED ever leaves that a restart could forget. Every
+ * {@code -Dwal.snapshotEvery} records the arbiter's whole state is written to a snapshot
+ * and the log starts over. Records carry an LSN and a CRC; replay skips what the
+ * snapshot already covers and stops at a torn tail.
+ *
+ * <p>Enabled with {@code -Dwal.dir}; the files of a node that finished its run cleanly
+ * are removed, so only a crashed node finds state to recover.
+ */
+public class ArbiterLog {
+    static final String DIR = System.getProperty("wal.dir");
+    private static final int SNAPSHOT_EVERY = Integer.getInteger("wal.snapshotEvery", 4096);
+    // Seqnums handed out ahead of the log; a restarted node resumes above the lease.
+    private static final int SEQNUM_LEASE = 1024;
+    // Bumped when the snapshot layout changes; queued requests used to be packed heap keys.
+    private static final int SNAPSHOT_MAGIC = 0x4D4B5332;
+
+    private static final byte GRANT = 1;
+    private static final byte UNLOCK = 2;
+    private static final byte ENQUEUE = 3;
+    private static final byte DEQUEUE = 4;
+    private static final byte CANCELLED = 5;
+    private static final byte LEASE = 6;
+
+    private final int nodeId;
+    private final Path logPath;
+    private final Path snapshotPath;
+    private final FileChannel log;
+    private final SerialExecutor outbox;
+    private final ByteBuffer record = ByteBuffer.allocate(64);
+    private final CRC32 crc = new CRC32();
+
+    // Guarded by this: what the flusher has not written yet.
+    private final ArrayDeque<Object> pending = new ArrayDeque<>();
+    private long nextLsn = 1;
+    private long durableLsn = 0;
+    private int seqnumCeiling = 0;
+    private int recordsSinceSnapshot = 0;
+    private boolean closed = false;
+    private Thread flusher;
+
+    /**
+     * The state replayed from disk: the last snapshot plus the records after it.
+     */
+    static final class State {
+        Request lockingRequest;
+        int grantStamp;
+        final RequestHeap waitQueue = new RequestHeap();
+        final Map<Integer, Integer> cancelledSeqnums = new HashMap<>();
+        int maxSeqnum = -1;
+        int seqnumCeiling;
+        long lastLsn;
+        boolean empty = true;
+
+        /**
+         * @return a seqnum above every request the node may have issued or seen before
+         * the crash
+         */
+        int resumeSeqnum() {
+            return Math.max(seqnumCeiling, maxSeqnum + 1);
+        }
+    }
+
+    ArbiterLog(int nodeId, Path dir) throws IOException {
+        this.nodeId = nodeId;
+        Files.createDirectories(dir);
+        this.logPath = dir.resolve("arbiter-" + nodeId + ".wal");
+        this.snapshotPath = dir.resolve("arbiter-" + nodeId + ".snapshot");
+        this.log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.outbox = new SerialExecutor("ArbiterOut-" + nodeId);
+    }
+
+    /**
+     * @return the node's log, or null if {@code -Dwal.dir} is not set
+     */
+    static ArbiterLog open(int nodeId) {
+        if (DIR == null) {
+            return null;
+        }
+        try {
+            return new ArbiterLog(nodeId, Paths.get(DIR));
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot open the arbiter log in " + DIR + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Replays the snapshot and the log, cuts off a torn tail and starts the flusher.
+     * Must be called once, before any record is appended.
+     */
+    State recover() throws IOException {
+        State state = new State();
+        readSnapshot(state);
+        ByteBuffer in = ByteBuffer.allocate((int) log.size());
+        while (in.hasRemaining() && log.read(in, in.position()) > 0) {
+        }
+        in.flip();
+        int replayed = 0;
+        while (in.remaining() >= 8) {
+            int start = in.position();
+            int len = in.getInt();
+            int sum = in.getInt();
+            if (len < 9 || len > in.remaining()) {
+                in.position(start);
+                break;
+            }
+            crc.reset();
+            crc.update(in.array(), in.position(), len);
+            if ((int) crc.getValue() != sum) {
+                in.position(start);
+                break;
+            }
+            ByteBuffer body = ByteBuffer.wrap(in.array(), in.position(), len);
+            in.position(in.position() + len);
+            long lsn = body.getLong();
+            if (lsn > state.lastLsn) {
+                apply(state, body.get(), body);
+                state.lastLsn = lsn;
+                state.empty = false;
+                replayed++;
+            }
+        }
+        log.truncate(in.position());
+        log.position(in.position());
+        nextLsn = state.lastLsn + 1;
+        durableLsn = state.lastLsn;
+        seqnumCeiling = state.seqnumCeiling;
+        recordsSinceSnapshot = replayed;
+        flusher = new Thread(this::flushLoop, "ArbiterLog-" + nodeId);
+        flusher.setDaemon(true);
+        flusher.start();
+        if (!state.empty) {
+            System.out.println("ArbiterLog | node " + nodeId + " replayed " + replayed + " records up to lsn "
+                    + state.lastLsn + ", holder " + state.lockingRequest + ", " + state.waitQueue.size() + " queued");
+        }
+        return state;
+    }
+
+    private static void apply(State state, byte type, ByteBuffer body) {
+        switch (type) {
+            case GRANT: {
+                Request req = readRequest(body);
+                state.grantStamp = body.getInt();
+                state.lockingRequest = req;
+                if (state.waitQueue.keyOfNode(req.nodeId) == RequestHeap.keyOf(req)) {
+                    state.waitQueue.removeNode(req.nodeId);
+                }
+                state.maxSeqnum = Math.max(state.maxSeqnum, req.seqnum);
+                break;
+            }
+            case UNLOCK:
+                state.lockingRequest = null;
+                break;
+            case ENQUEUE: {
+                Request req = readRequest(body);
+                state.waitQueue.offer(req);
+                state.maxSeqnum = Math.max(state.maxSeqnum, req.seqnum);
+                break;
+            }
+            case DEQUEUE:
+                state.waitQueue.removeNode(body.getInt());
+                break;
+            case CANCELLED:
+                state.cancelledSeqnums.merge(body.getInt(), body.getInt(), Math::max);
+                break;
+            case LEASE:
+                state.seqnumCeiling = Math.max(state.seqnumCeiling, body.getInt());
+                break;
+            default:
+                throw new IllegalStateException("unknown arbiter log record " + type);
+        }
+    }
+
+    private static Request readRequest(ByteBuffer body) {
+        return new Request(body.getInt(), body.getInt(), PriorityClass.values()[body.get()]);
+    }
+
+    synchronized void grant(Request req, int stamp) {
+        append(begin(GRANT).putInt(req.seqnum).putInt(req.nodeId).put((byte) req.priority.ordinal()).putInt(stamp));
+    }
+
+    synchronized void unlock() {
+        append(begin(UNLOCK));
+    }
+
+    synchronized void enqueue(Request req) {
+        append(begin(ENQUEUE).putInt(req.seqnum).putInt(req.nodeId).put((byte) req.priority.ordinal()));
+    }
+
+    synchronized void dequeue(int requesterId) {
+        append(begin(DEQUEUE).putInt(requesterId));
+    }
+
+    synchronized void cancelled(int requesterId, int seqnum) {
+        append(begin(CANCELLED).putInt(requesterId).putInt(seqnum));
+    }
+
+    /**
+     * Makes sure a restart resumes above {@code seqnum} before the node sends a request
+     * with it. Blocks on the log only when the lease runs out.
+     */
+    synchronized void reserveSeqnum(int seqnum) {
+        if (seqnum < seqnumCeiling) {
+            return;
+        }
+        seqnumCeiling = seqnum + SEQNUM_LEASE;
+        long lsn = append(begin(LEASE).putInt(seqnumCeiling));
+        boolean interrupted = false;
+        while (durableLsn < lsn && !closed) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs {@code task} on this log's outbox once every record appended so far is on disk.
+     * Tasks run in the order they were handed in.
+     */
+    synchronized void afterCommit(Runnable task) {
+        pending.add(task);
+        notifyAll();
+    }
+
+    synchronized boolean wantsSnapshot() {
+        return recordsSinceSnapshot >= SNAPSHOT_EVERY;
+    }
+
+    /**
+     * Replaces the log with a snapshot of the arbiter's state as of the last record.
+     * Called from the arbiter's event loop, which owns the arguments.
+     */
+    synchronized void snapshot(Request lockingRequest, int grantStamp, long[] queued, Map<Integer, Integer> cancelled,
+                               int maxSeqnum) {
+        ByteBuffer out = ByteBuffer.allocate(64 + queued.length * 9 + cancelled.size() * 8);
+        out.putInt(SNAPSHOT_MAGIC).putLong(nextLsn - 1).putInt(grantStamp).putInt(seqnumCeiling).putInt(maxSeqnum);
+        if (lockingRequest == null) {
+            out.put((byte) 0);
+        } else {
+            out.put((byte) 1).putInt(lockingRequest.seqnum).putInt(lockingRequest.nodeId)
+                    .put((byte) lockingRequest.priority.ordinal());
+        }
+        // Raw fields, as in ENQUEUE: a heap key's seqnum depends on -Dpriority.agingWindow,
+        // which a restarted node may run with a different value of.
+        out.putInt(queued.length);
+        for (long key : queued) {
+            out.putInt(RequestHeap.seqnumOf(key)).putInt(RequestHeap.nodeIdOf(key))
+                    .put((byte) RequestHeap.priorityOf(key).ordinal());
+        }
+        out.putInt(cancelled.size());
+        for (Map.Entry<Integer, Integer> e : cancelled.entrySet()) {
+            out.putInt(e.getKey()).putInt(e.getValue());
+        }
+        out.flip();
+        pending.add(out);
+        recordsSinceSnapshot = 0;
+        notifyAll();
+    }
+
+    private void readSnapshot(State state) throws IOException {
+        if (!Files.isRegularFile(snapshotPath)) {
+            return;
+        }
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshotPath));
+        if (in.remaining() < 12 || in.getInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("corrupt arbiter snapshot " + snapshotPath);
+        }
+        try {
+            state.lastLsn = in.getLong();
+            state.grantStamp = in.getInt();
+            state.seqnumCeiling = in.getInt();
+            state.maxSeqnum = in.getInt();
+            if (in.get() == 1) {
+                state.lockingRequest = readRequest(in);
+            }
+            for (int i = in.getInt(); i > 0; i--) {
+                state.waitQueue.offer(readRequest(in));
+            }
+            for (int i = in.getInt(); i > 0; i--) {
+                state.cancelledSeqnums.put(in.getInt(), in.getInt());
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("corrupt arbiter snapshot " + snapshotPath + ": " + e, e);
+        }
+        state.empty = false;
+    }
+
+    // Callers hold the monitor: the record buffer is shared.
+    private ByteBuffer begin(byte type) {
+        record.clear();
+        record.position(8);
+        record.putLong(0).put(type);
+        return record;
+    }
+
+    /**
+     * Frames the record being built, stamps it with the next LSN and queues it for the
+     * flusher.
+     *
+     * @return its LSN
+     */
+    private synchronized long append(ByteBuffer body) {
+        long lsn = nextLsn++;
+        int len = body.position() - 8;
+        body.putLong(8, lsn);
+        crc.reset();
+        crc.update(body.array(), 8, len);
+        body.putInt(0, len).putInt(4, (int) crc.getValue());
+        byte[] framed = new byte[body.position()];
+        System.arraycopy(body.array(), 0, framed, 0, framed.length);
+        pending.add(framed);
+        recordsSinceSnapshot++;
+        notifyAll();
+        return lsn;
+    }
+
+    private void flushLoop() {
+        ByteBuffer batch = ByteBuffer.allocateDirect(1 << 16);
+        ArrayDeque<Object> taken = new ArrayDeque<>();
+        while (true) {
+            long upTo;
+            synchronized (this) {
+                while (pending.isEmpty() && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                taken.addAll(pending);
+                pending.clear();
+                upTo = nextLsn - 1;
+            }
+            try {
+                for (Object entry : taken) {
+                    if (entry instanceof byte[]) {
+                        byte[] framed = (byte[]) entry;
+                        if (batch.remaining() < framed.length) {
+                            write(batch);
+                        }
+                        batch.put(framed);
+                    } else if (entry instanceof ByteBuffer) {
+                        write(batch);
+                        writeSnapshot((ByteBuffer) entry);
+                    }
+                }
+                write(batch);
+                log.force(false);
+            } catch (IOException e) {
+                // Sending on would let a restart forget what was sent; stop instead.
+                System.err.println("ArbiterLog | node " + nodeId + " cannot write its log, halting: " + e.getMessage());
+                Runtime.getRuntime().halt(1);
+            }
+            for (Object entry : taken) {
+                if (entry instanceof Runnable) {
+                    outbox.execute((Runnable) entry);
+                }
+            }
+            taken.clear();
+            synchronized (this) {
+                durableLsn = upTo;
+                notifyAll();
+            }
+        }
+    }
+
+    private void write(ByteBuffer batch) throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            log.write(batch);
+        }
+        batch.clear();
+    }
+
+    // The records before the snapshot may only go once the snapshot is in place.
+    private void writeSnapshot(ByteBuffer snapshot) throws IOException {
+        Path tmp = snapshotPath.resolveSibling(snapshotPath.getFileName() + ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (snapshot.hasRemaining()) {
+                ch.write(snapshot);
+            }
+            ch.force(true);
+        }
+        Files.move(tmp, snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.truncate(0);
+        log.position(0);
+    }
+
+    /**
+     * Stops the flusher once it has written what is pending. With {@code finished} the
+     * node's run is over and its files are removed, so the next start begins afresh.
+     */
+    void close(boolean finished) {
+        synchronized (this) {
+            closed = true;
+            notifyAll();
+        }
+        try {
+            if (flusher != null) {
+                flusher.join(5000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (finished) {
+            try {
+                log.close();
+                Files.deleteIfExists(logPath);
+                Files.deleteIfExists(snapshotPath);
+            } catch (IOException e) {
+                System.err.println("ArbiterLog | could not remove the log of node " + nodeId + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.os;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Start and stop barriers for a run. A node generates load only after every peer
+ * has said HELLO, and shuts down once every node, itself included, has announced
+ * DONE with its last CS request, so no node leaves while others still need it as
+ * an arbiter.
+ */
+public class ClusterCoordinator {
+    /** How long HELLO, RECOVERED and JOIN keep retrying an unreachable peer, and how long to wait for every HELLO. */
+    static final long START_TIMEOUT_MS = Long.getLong("cluster.startTimeoutMs", 300_000L);
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private final Node currNode;
+    private final TCPClient tcpClient = new TCPClient();
+    private final Set<Integer> helloFrom = ConcurrentHashMap.newKeySet();
+    private final Set<Integer> doneFrom = ConcurrentHashMap.newKeySet();
+    private final CountDownLatch clusterReady = new CountDownLatch(1);
+    private final CountDownLatch clusterDone = new CountDownLatch(1);
+
+    ClusterCoordinator(Node node) {
+        this.currNode = node;
+    }
+
+    /**
+     * Sends HELLO to every peer, retrying until it is delivered, then blocks until
+     * HELLO has arrived from every peer. The caller's TCPServer must already be up.
+     *
+     * @throws IllegalStateException if that takes longer than {@link #START_TIMEOUT_MS}
+     */
+    public void awaitClusterReady() throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(START_TIMEOUT_MS);
+        for (Node peer : currNode.getNeighbors()) {
+            if (peer.getNodeId() == currNode.getNodeId()) {
+                continue;
+            }
+            sendUntil(tcpClient, peer, new Message(MessageType.HELLO, currNode.getNodeId(), peer.getNodeId(), null),
+                    deadline);
+        }
+        checkReady();
+        if (!clusterReady.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            throw new IllegalStateException("only " + helloFrom.size() + " of " + (clusterSize() - 1)
+                    + " peers said HELLO within " + START_TIMEOUT_MS + "ms");
+        }
+        System.out.println("ClusterCoordinator | all " + clusterSize() + " nodes are up");
+    }
+
+    /**
+     * Sends the message, trying again with growing pauses while the peer is unreachable.
+     *
+     * @throws IllegalStateException if it is still undelivered at {@code deadlineNanos}
+     */
+    static void sendUntil(TCPClient client, Node peer, Message msg, long deadlineNanos) throws InterruptedException {
+        long backoffMs = 500;
+        while (!client.sendMessage(peer, msg)) {
+            long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+            if (remainingMs <= 0) {
+                throw new IllegalStateException("node " + peer.getNodeId() + " at " + peer.getHostName() + ":"
+                        + peer.getPort() + " did not take " + msg.type + " within " + START_TIMEOUT_MS + "ms");
+            }
+            System.out.println("ClusterCoordinator | node " + peer.getNodeId() + " not reachable, retrying " + msg.type
+                    + " in " + backoffMs + "ms");
+            Thread.sleep(Math.min(backoffMs, remainingMs));
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    public void onHello(Message msg) {
+        helloFrom.add(msg.from);
+        checkReady();
+    }
+
+    /**
+     * Rejoins a cluster that is already running after this node restarted from its
+     * {@link ArbiterLog}: tells every peer, and itself, that none of its requests below
+     * {@code resumeSeqnum} is wanted any more, instead of waiting for HELLOs the peers
+     * sent to the node before it crashed.
+     *
+     * @throws IllegalStateException if a peer stays unreachable for {@link #START_TIMEOUT_MS}
+     */
+    public void announceRecovered(int resumeSeqnum) throws InterruptedException {
+        System.out.println("ClusterCoordinator | Node " + currNode.getNodeId() + " recovered, rejoining at seqnum "
+                + resumeSeqnum);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(START_TIMEOUT_MS);
+        for (Node peer : currNode.getNeighbors()) {
+            if (peer.getNodeId() == currNode.getNodeId()) {
+                continue;
+            }
+            sendUntil(tcpClient, peer,
+                    new Message(MessageType.RECOVERED, currNode.getNodeId(), peer.getNodeId(), resumeSeqnum), deadline);
+        }
+        currNode.getEngine().onMessage(new Message(MessageType.RECOVERED, currNode.getNodeId(), currNode.getNodeId(),
+                resumeSeqnum));
+        clusterReady.countDown();
+    }
+
+    /**
+     * A restarted peer runs its requests again and announces DONE again; the DONE this
+     * node sent it before the crash is lost, so it is sent once more.
+     */
+    public void onRecovered(Message msg) {
+        helloFrom.add(msg.from);
+        doneFrom.remove(msg.from);
+        if (doneFrom.contains(currNode.getNodeId())) {
+            Node peer = currNode.getNodeById(msg.from);
+            if (peer != null) {
+                tcpClient.sendMessage(peer, new Message(MessageType.DONE, currNode.getNodeId(), msg.from,
+                        currNode.getNumReqPerNode()));
+            }
+        }
+    }
+
+    /**
+     * Tells every node, including this one, that this node has finished its requests.
+     */
+    public void announceDone() {
+        System.out.println("ClusterCoordinator | Node " + currNode.getNodeId() + " finished its requests");
+        for (Node peer : currNode.getNeighbors()) {
+            if (peer.getNodeId() == currNode.getNodeId()) {
+                continue;
+            }
+            tcpClient.sendMessage(peer, new Message(MessageType.DONE, currNode.getNodeId(), peer.getNodeId(),
+                    currNode.getNumReqPerNode()));
+        }
+        // Counted last so this JVM cannot exit before every peer has been told.
+        markDone(currNode.getNodeId());
+    }
+
+    public void onDone(Message msg) {
+        markDone(msg.from);
+    }
+
+    /**
+     * Re-counts the DONE barrier against the current members after a membership change.
+     */
+    public void onMembershipChanged() {
+        checkDone();
+    }
+
+    /**
+     * Ends this node's part in the run once it has been drained from the cluster; it no
+     * longer waits for anyone's DONE.
+     */
+    public void onLeft() {
+        clusterDone.countDown();
+    }
+
+    public void awaitClusterDone() throws InterruptedException {
+        clusterDone.await();
+        System.out.println("ClusterCoordinator | all " + clusterSize() + " nodes finished");
+    }
+
+    private void markDone(int nodeId) {
+        doneFrom.add(nodeId);
+        checkDone();
+    }
+
+    // Only current members count, so a DONE from a node drained since is ignored.
+    private void checkDone() {
+        NodeDirectory members = currNode.getDirectory();
+        long done = doneFrom.stream().filter(members::contains).count();
+        if (!members.contains(currNode.getNodeId()) && doneFrom.contains(currNode.getNodeId())) {
+            done++;
+        }
+        if (done >= clusterSize()) {
+            clusterDone.countDown();
+        }
+    }
+
+    private void checkReady() {
+        if (helloFrom.size() >= clusterSize() - 1) {
+            clusterReady.countDown();
+        }
+    }
+
+    private int clusterSize() {
+        NodeDirectory members = currNode.getDirectory();
+        return members.contains(currNode.getNodeId()) ? members.size() : members.size() + 1;
+    }
+}
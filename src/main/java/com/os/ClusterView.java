@@ -0,0 +1,81 @@
+package com.os;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * One epoch of cluster membership: every member, sorted by id, and the quorum each one
+ * uses in this epoch. Quorums come from a grid over the members (row plus column,
+ * including the member itself), so any two of them intersect whatever the cluster size.
+ */
+public class ClusterView implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final int epoch;
+    final MemberAddress[] members;
+    final int[][] quorums;
+
+    private ClusterView(int epoch, MemberAddress[] members, int[][] quorums) {
+        this.epoch = epoch;
+        this.members = members;
+        this.quorums = quorums;
+    }
+
+    static ClusterView withGridQuorums(int epoch, List<MemberAddress> members) {
+        MemberAddress[] sorted = members.toArray(new MemberAddress[0]);
+        Arrays.sort(sorted, Comparator.comparingInt(m -> m.nodeId));
+        int n = sorted.length;
+        int width = (int) Math.ceil(Math.sqrt(n));
+        int[][] quorums = new int[n][];
+        for (int i = 0; i < n; i++) {
+            int row = i / width;
+            int col = i % width;
+            int[] quorum = new int[n];
+            int size = 0;
+            for (int j = 0; j < n; j++) {
+                if (j / width == row || j % width == col) {
+                    quorum[size++] = sorted[j].nodeId;
+                }
+            }
+            quorums[i] = Arrays.copyOf(quorum, size);
+        }
+        return new ClusterView(epoch, sorted, quorums);
+    }
+
+    public int indexOf(int nodeId) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i].nodeId == nodeId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean contains(int nodeId) {
+        return indexOf(nodeId) >= 0;
+    }
+
+    public int coordinatorId() {
+        return members[0].nodeId;
+    }
+
+    public List<Integer> quorumOf(int nodeId) {
+        List<Integer> quorum = new ArrayList<>();
+        for (int q : quorums[indexOf(nodeId)]) {
+            quorum.add(q);
+        }
+        return quorum;
+    }
+
+    public List<MemberAddress> memberList() {
+        return new ArrayList<>(Arrays.asList(members));
+    }
+
+    @Override
+    public String toString() {
+        return "ClusterView{epoch=" + epoch + ", members=" + Arrays.toString(members) + "}";
+    }
+}
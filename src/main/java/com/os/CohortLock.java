@@ -0,0 +1,44 @@
+package com.os;
+
+/**
+ * Decides how long a node keeps a quorum grant it already holds for its own threads.
+ * While the grant is held, local threads get the CS in turn with no messages at all,
+ * both those that queued while it was being collected and those that arrive later.
+ * The node gives the grant up once {@code cohort.bound} threads have used it, or as
+ * soon as the current holder leaves after an arbiter sent INQUIRE on its behalf; the
+ * threads still waiting then move to the next round.
+ */
+public class CohortLock {
+    static final int FAIRNESS_BOUND = Integer.getInteger("cohort.bound", 8);
+
+    private final int bound;
+
+    CohortLock() {
+        this(FAIRNESS_BOUND);
+    }
+
+    CohortLock(int bound) {
+        this.bound = Math.max(1, bound);
+    }
+
+    /**
+     * Whether a thread arriving now may queue on the held grant instead of waiting for
+     * the next round.
+     */
+    public boolean mayJoin(QuorumRound holding) {
+        return holding != null && holding.servedCount() + holding.waiterCount() < bound && !isWanted(holding);
+    }
+
+    /**
+     * Whether the thread leaving the CS should hand it to the next local waiter rather
+     * than release the quorum.
+     */
+    public boolean mayHandOff(QuorumRound holding) {
+        return holding.hasWaiters() && holding.servedCount() < bound && !isWanted(holding);
+    }
+
+    // An INQUIRE on a granted round means a higher-priority request elsewhere waits on it.
+    private boolean isWanted(QuorumRound holding) {
+        return !holding.getDeferredInquiries().isEmpty();
+    }
+}
@@ -0,0 +1,151 @@
+package com.os;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the config one byte buffer at a time and hands out the tokens of each line that
+ * starts with a digit; everything after '#' and every other line is skipped. Integers
+ * are parsed straight from the buffer, so a large topology is read without splitting
+ * lines or boxing numbers.
+ */
+class ConfigTokenizer {
+    private final InputStream in;
+    private final String source;
+    private final byte[] buf = new byte[1 << 16];
+    private int pos = 0;
+    private int limit = 0;
+    private int lineNo = 0;
+    private boolean atLineEnd = true;
+
+    ConfigTokenizer(InputStream in, String source) {
+        this.in = in;
+        this.source = source;
+    }
+
+    /**
+     * Moves to the next line whose first non-blank character is a digit.
+     *
+     * @return false at end of input
+     */
+    boolean nextLine() throws IOException {
+        if (!atLineEnd) {
+            skipRestOfLine();
+        }
+        while (true) {
+            int c = peek();
+            if (c < 0) {
+                return false;
+            }
+            lineNo++;
+            skipBlanks();
+            c = peek();
+            if (c >= '0' && c <= '9') {
+                atLineEnd = false;
+                return true;
+            }
+            skipRestOfLine();
+        }
+    }
+
+    /**
+     * @return true if the current line has another token
+     */
+    boolean hasToken() throws IOException {
+        if (atLineEnd) {
+            return false;
+        }
+        skipBlanks();
+        int c = peek();
+        if (c < 0 || c == '\n' || c == '\r' || c == '#') {
+            skipRestOfLine();
+            return false;
+        }
+        return true;
+    }
+
+    int nextInt(String what) throws IOException {
+        if (!hasToken()) {
+            throw error("expected " + what);
+        }
+        long value = 0;
+        int digits = 0;
+        int c;
+        while ((c = peek()) >= '0' && c <= '9') {
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw error(what + " is out of range");
+            }
+            digits++;
+            pos++;
+        }
+        if (digits == 0 || !isDelimiter(c)) {
+            throw error("expected " + what + " to be a non-negative integer");
+        }
+        return (int) value;
+    }
+
+    String nextWord(String what) throws IOException {
+        if (!hasToken()) {
+            throw error("expected " + what);
+        }
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while (!isDelimiter(c = peek())) {
+            sb.append((char) c);
+            pos++;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Fails if the current line has tokens left.
+     */
+    void endLine(String what) throws IOException {
+        if (hasToken()) {
+            throw error("unexpected extra token after " + what);
+        }
+    }
+
+    int getLineNo() {
+        return lineNo;
+    }
+
+    IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException(source + ":" + lineNo + ": " + msg);
+    }
+
+    private static boolean isDelimiter(int c) {
+        return c < 0 || c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '#';
+    }
+
+    private void skipBlanks() throws IOException {
+        int c;
+        while ((c = peek()) == ' ' || c == '\t') {
+            pos++;
+        }
+    }
+
+    private void skipRestOfLine() throws IOException {
+        int c;
+        while ((c = peek()) >= 0) {
+            pos++;
+            if (c == '\n') {
+                break;
+            }
+        }
+        atLineEnd = true;
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buf[pos] & 0xff;
+    }
+}
@@ -0,0 +1,48 @@
+package com.os;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what a node sees of contention: how many CS requests it issues, how long they
+ * wait and hold the CS, and the FAILED and INQUIRE messages it receives. Drained once
+ * per reporting window.
+ */
+public class ContentionMonitor {
+    private final AtomicLong csEntries = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong inquiries = new AtomicLong();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong holdNanos = new AtomicLong();
+
+    public void recordRequest() {
+        requests.incrementAndGet();
+    }
+
+    public void recordEntry(long waitedNanos) {
+        csEntries.incrementAndGet();
+        waitNanos.addAndGet(waitedNanos);
+    }
+
+    public void recordExit(long heldNanos) {
+        holdNanos.addAndGet(heldNanos);
+    }
+
+    public void recordMessage(MessageType type) {
+        switch (type) {
+            case FAILED:
+                failed.incrementAndGet();
+                break;
+            case INQUIRE:
+                inquiries.incrementAndGet();
+                break;
+            default:
+                break;
+        }
+    }
+
+    public ContentionReport drain(int queueDepth) {
+        return new ContentionReport(csEntries.getAndSet(0), waitNanos.getAndSet(0), failed.getAndSet(0),
+                inquiries.getAndSet(0), requests.getAndSet(0), holdNanos.getAndSet(0), queueDepth);
+    }
+}
@@ -0,0 +1,30 @@
+package com.os;
+
+import java.io.Serializable;
+
+/**
+ * One node's contention counters for a reporting window, sent to the node that
+ * decides when to switch protocol modes.
+ */
+public class ContentionReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final long csEntries;
+    final long waitNanos;
+    final long failed;
+    final long inquiries;
+    final long requests;
+    final long holdNanos;
+    final int queueDepth;
+
+    ContentionReport(long csEntries, long waitNanos, long failed, long inquiries, long requests, long holdNanos,
+                     int queueDepth) {
+        this.csEntries = csEntries;
+        this.waitNanos = waitNanos;
+        this.failed = failed;
+        this.inquiries = inquiries;
+        this.requests = requests;
+        this.holdNanos = holdNanos;
+        this.queueDepth = queueDepth;
+    }
+}
@@ -0,0 +1,33 @@
+package com.os;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+/**
+ * Appends the ENTER/EXIT lines that collect_and_check.py reads to output/node-&lt;id&gt;.txt.
+ * Every mutual-exclusion engine writes the same format so runs can be compared directly.
+ */
+public final class CsLog {
+    private CsLog() {
+    }
+
+    public static void write(String outputDir, int nodeId, String msg) {
+        String filename = outputDir + "/node-" + nodeId + ".txt";
+        String logEntry = System.currentTimeMillis() + " -> Node: " + nodeId + " => " + msg + "\n";
+
+        try {
+            File dir = new File(outputDir);
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            try (FileWriter fw = new FileWriter(filename, true);
+                 BufferedWriter bw = new BufferedWriter(fw)) {
+                bw.write(logEntry);
+            }
+        } catch (IOException e) {
+            System.err.println("CsLog | Failed to write log: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.os;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Makes the network between nodes misbehave on purpose, for measuring the protocol under
+ * WAN-like conditions. {@link TCPClient} routes every message to another node through
+ * here, and over TCP, once any of these is set:
+ * <ul>
+ * <li>{@code -Dfault.latency}: one-way delay in ms, {@code const:MS}, {@code uniform:MIN:MAX},
+ * {@code normal:MEAN:SD}, {@code exp:MEAN} or {@code pareto:SCALE:SHAPE}</li>
+ * <li>{@code -Dfault.jitterMs}: plus or minus up to this much on top</li>
+ * <li>{@code -Dfault.reorder}: share of messages that skip the link's FIFO order and wait up
+ * to another {@code -Dfault.reorderMs} (default 50), so later ones can pass them</li>
+ * <li>{@code -Dfault.drop}: share of send attempts that fail, which {@link TCPClient} retries
+ * after its back-off</li>
+ * <li>{@code -Dfault.duplicate}: share of messages delivered twice</li>
+ * <li>{@code -Dfault.partitions}: {@code GROUPS@START+LENGTH} separated by {@code ;}, e.g.
+ * {@code 0,1,2|3,4@5000+3000} fails every attempt between the two groups from 5s to 8s
+ * after {@code -Dfault.startMs} (epoch ms, default this JVM's start; pass the same value
+ * to every node)</li>
+ * </ul>
+ * {@code -Dfault.link.A-B} overrides any of these for the link between nodes A and B, both
+ * ways, as {@code key=value} pairs such as {@code latency=const:80,drop=0.05}. Each direction
+ * of a link draws from its own {@link Random} seeded from {@code -Dfault.seed} and the two
+ * node ids, so the n-th message on a link meets the same faults in every run.
+ *
+ * <p>Messages of the mutex protocols are handed over and delivered later, so a slow link
+ * does not hold up the sender. Everything else waits for its delivery, since callers
+ * such as {@link ClusterCoordinator} retry until a send went through.
+ */
+public final class FaultInjector {
+    private static final String PREFIX = "fault.";
+    static final boolean ENABLED = isConfigured();
+    private static final long SEED = Long.getLong("fault.seed", 1L);
+    private static final long START_MS = Long.getLong("fault.startMs", System.currentTimeMillis());
+    private static final Faults DEFAULTS = Faults.fromProperties();
+    private static final List<Partition> PARTITIONS = Partition.parseAll(System.getProperty("fault.partitions", ""));
+    private static final Set<MessageType> FIRE_AND_FORGET = EnumSet.of(MessageType.REQUEST, MessageType.RELEASE,
+            MessageType.INQUIRE, MessageType.RELINQUISH, MessageType.LOCKED, MessageType.FAILED, MessageType.CANCEL,
+            MessageType.TOKEN_REQUEST, MessageType.TOKEN);
+
+    private static final Map<Long, Link> links = new ConcurrentHashMap<>();
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "FaultInjector");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final AtomicInteger pending = new AtomicInteger();
+    private static final AtomicLong delayed = new AtomicLong();
+    private static final AtomicLong reordered = new AtomicLong();
+    private static final AtomicLong duplicated = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong partitioned = new AtomicLong();
+
+    private FaultInjector() {
+    }
+
+    private static boolean isConfigured() {
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX) && !name.equals("fault.seed") && !name.equals("fault.startMs")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Schedules {@code msg} on its link, and a copy if it is picked for duplication.
+     * {@code deliver} does the actual send, with retries, on the link's own
+     * {@link SerialExecutor}.
+     *
+     * @return whether the message went through, or true at once for protocol messages
+     */
+    static boolean send(Node dest, Message msg, BiPredicate<Node, Message> deliver) {
+        Link link = link(msg.from, dest.getNodeId());
+        long now = System.nanoTime();
+        long due;
+        long copyDue = -1;
+        synchronized (link) {
+            due = link.nextDue(now);
+            if (link.rng.nextDouble() < link.faults.duplicate) {
+                copyDue = link.nextDue(now);
+                duplicated.incrementAndGet();
+            }
+        }
+        CompletableFuture<Boolean> result = schedule(link, now, due, () -> deliver.test(dest, msg));
+        if (copyDue >= 0) {
+            schedule(link, now, copyDue, () -> deliver.test(dest, msg));
+        }
+        return FIRE_AND_FORGET.contains(msg.type) || result.join();
+    }
+
+    /**
+     * Called before each TCP send attempt.
+     *
+     * @return the failure to inject into this attempt, or null to let it through
+     */
+    static IOException failure(Message msg) {
+        if (!ENABLED || msg.from == msg.to) {
+            return null;
+        }
+        long sinceStart = System.currentTimeMillis() - START_MS;
+        for (Partition p : PARTITIONS) {
+            if (p.separates(msg.from, msg.to, sinceStart)) {
+                partitioned.incrementAndGet();
+                return new ConnectException("injected partition between " + msg.from + " and " + msg.to);
+            }
+        }
+        Link link = link(msg.from, msg.to);
+        synchronized (link) {
+            if (link.rng.nextDouble() < link.faults.drop) {
+                dropped.incrementAndGet();
+                return new IOException("injected drop of " + msg.type + " to " + msg.to);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Prints what was injected. Messages still scheduled are left behind: a node only
+     * stops once every node has finished, and control messages such as DONE, which wait
+     * for delivery, leave their link after everything sent on it before.
+     */
+    static void report() {
+        if (ENABLED) {
+            System.out.println("FaultInjector | seed=" + SEED + " delayed=" + delayed + " reordered=" + reordered
+                    + " duplicated=" + duplicated + " dropped=" + dropped + " partitioned=" + partitioned
+                    + " undelivered=" + pending);
+        }
+    }
+
+    private static CompletableFuture<Boolean> schedule(Link link, long now, long due, BooleanSupplier send) {
+        CompletableFuture<Boolean> result = new CompletableFuture<>();
+        pending.incrementAndGet();
+        Runnable delivery = () -> link.out.execute(() -> {
+            try {
+                result.complete(send.getAsBoolean());
+            } catch (RuntimeException e) {
+                result.complete(false);
+                throw e;
+            } finally {
+                pending.decrementAndGet();
+            }
+        });
+        if (due > now) {
+            delayed.incrementAndGet();
+            timer.schedule(delivery, due - now, TimeUnit.NANOSECONDS);
+        } else {
+            delivery.run();
+        }
+        return result;
+    }
+
+    private static Link link(int from, int to) {
+        return links.computeIfAbsent(((long) from << 32) | (to & 0xffffffffL), key -> new Link(from, to));
+    }
+
+    /**
+     * One direction of a link: its faults, its random stream and the order its messages
+     * leave in.
+     */
+    static final class Link {
+        final Faults faults;
+        final Random rng;
+        final SerialExecutor out;
+        private long lastDue;
+
+        Link(int from, int to) {
+            this(from, to, faultsFor(from, to), SEED);
+        }
+
+        Link(int from, int to, Faults faults, long seed) {
+            this.faults = faults;
+            this.rng = new Random(seed * 31 * 31 + from * 31L + to);
+            this.out = new SerialExecutor("FaultLink-" + from + "-" + to);
+        }
+
+        private static Faults faultsFor(int from, int to) {
+            String override = System.getProperty(PREFIX + "link." + Math.min(from, to) + "-" + Math.max(from, to));
+            return override == null ? DEFAULTS : DEFAULTS.with(override);
+        }
+
+        /**
+         * @return when, in {@link System#nanoTime()}, the next message on this link is due;
+         * no earlier than the one before unless it is picked for reordering
+         */
+        long nextDue(long now) {
+            double delayMs = faults.latency.sample(rng);
+            if (faults.jitterMs > 0) {
+                delayMs += (rng.nextDouble() * 2 - 1) * faults.jitterMs;
+            }
+            long due = now + TimeUnit.MICROSECONDS.toNanos((long) (Math.max(0, delayMs) * 1000));
+            if (rng.nextDouble() < faults.reorder) {
+                reordered.incrementAndGet();
+                return due + TimeUnit.MILLISECONDS.toNanos(rng.nextInt(faults.reorderMs + 1));
+            }
+            lastDue = Math.max(due, lastDue);
+            return lastDue;
+        }
+    }
+
+    /**
+     * What one link does to its messages.
+     */
+    static final class Faults {
+        final Latency latency;
+        final double jitterMs;
+        final double reorder;
+        final int reorderMs;
+        final double drop;
+        final double duplicate;
+
+        Faults(Latency latency, double jitterMs, double reorder, int reorderMs, double drop, double duplicate) {
+            this.latency = latency;
+            this.jitterMs = jitterMs;
+            this.reorder = reorder;
+            this.reorderMs = reorderMs;
+            this.drop = drop;
+            this.duplicate = duplicate;
+        }
+
+        static Faults fromProperties() {
+            Map<String, String> values = new HashMap<>();
+            for (String key : new String[]{"latency", "jitterMs", "reorder", "reorderMs", "drop", "duplicate"}) {
+                String value = System.getProperty(PREFIX + key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            return new Faults(Latency.parse("const:0"), 0, 0, 50, 0, 0).with(values);
+        }
+
+        /**
+         * @param overrides {@code key=value} pairs separated by commas
+         */
+        Faults with(String overrides) {
+            Map<String, String> values = new HashMap<>();
+            for (String part : overrides.split(",")) {
+                String[] kv = part.trim().split("=", 2);
+                if (kv.length != 2) {
+                    throw new IllegalArgumentException("fault link setting is not key=value: " + part);
+                }
+                values.put(kv[0].trim(), kv[1].trim());
+            }
+            return with(values);
+        }
+
+        private Faults with(Map<String, String> values) {
+            for (String key : values.keySet()) {
+                if (!key.matches("latency|jitterMs|reorder|reorderMs|drop|duplicate")) {
+                    throw new IllegalArgumentException("Unknown fault setting: " + key);
+                }
+            }
+            return new Faults(
+                    values.containsKey("latency") ? Latency.parse(values.get("latency")) : latency,
+                    values.containsKey("jitterMs") ? Double.parseDouble(values.get("jitterMs")) : jitterMs,
+                    values.containsKey("reorder") ? share(values.get("reorder")) : reorder,
+                    values.containsKey("reorderMs") ? Integer.parseInt(values.get("reorderMs")) : reorderMs,
+                    values.containsKey("drop") ? share(values.get("drop")) : drop,
+                    values.containsKey("duplicate") ? share(values.get("duplicate")) : duplicate);
+        }
+
+        private static double share(String value) {
+            double p = Double.parseDouble(value);
+            if (p < 0 || p > 1) {
+                throw new IllegalArgumentException("fault share not in [0, 1]: " + value);
+            }
+            return p;
+        }
+    }
+
+    /**
+     * A one-way delay distribution, in ms.
+     */
+    static final class Latency {
+        private final String kind;
+        private final double a;
+        private final double b;
+
+        private Latency(String kind, double a, double b) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+        }
+
+        static Latency parse(String spec) {
+            String[] parts = spec.trim().split(":");
+            try {
+                switch (parts[0]) {
+                    case "const":
+                    case "exp":
+                        return new Latency(parts[0], Double.parseDouble(parts[1]), 0);
+                    case "uniform":
+                    case "normal":
+                    case "pareto":
+                        return new Latency(parts[0], Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                    default:
+                        break;
+                }
+            } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+                // reported below
+            }
+            throw new IllegalArgumentException("fault.latency is not const:MS, uniform:MIN:MAX, normal:MEAN:SD,"
+                    + " exp:MEAN or pareto:SCALE:SHAPE: " + spec);
+        }
+
+        double sample(Random rng) {
+            switch (kind) {
+                case "uniform":
+                    return a + rng.nextDouble() * (b - a);
+                case "normal":
+                    return a + rng.nextGaussian() * b;
+                case "exp":
+                    return -a * Math.log(1 - rng.nextDouble());
+                case "pareto":
+                    return a / Math.pow(1 - rng.nextDouble(), 1 / b);
+                default:
+                    return a;
+            }
+        }
+    }
+
+    /**
+     * Node groups that cannot reach each other for a while.
+     */
+    static final class Partition {
+        private final List<Set<Integer>> groups;
+        private final long startMs;
+        private final long endMs;
+
+        private Partition(List<Set<Integer>> groups, long startMs, long endMs) {
+            this.groups = groups;
+            this.startMs = startMs;
+            this.endMs = endMs;
+        }
+
+        static List<Partition> parseAll(String spec) {
+            List<Partition> partitions = new ArrayList<>();
+            for (String part : spec.split(";")) {
+                if (!part.trim().isEmpty()) {
+                    partitions.add(parse(part.trim()));
+                }
+            }
+            return partitions;
+        }
+
+        private static Partition parse(String spec) {
+            int at = spec.indexOf('@');
+            int plus = spec.indexOf('+', at);
+            if (at < 0 || plus < 0) {
+                throw new IllegalArgumentException("fault.partitions entry is not GROUPS@START+LENGTH: " + spec);
+            }
+            List<Set<Integer>> groups = new ArrayList<>();
+            for (String group : spec.substring(0, at).split("\\|")) {
+                groups.add(Main.parseNodeIds(group));
+            }
+            long start = Long.parseLong(spec.substring(at + 1, plus).trim());
+            return new Partition(groups, start, start + Long.parseLong(spec.substring(plus + 1).trim()));
+        }
+
+        boolean separates(int from, int to, long sinceStartMs) {
+            if (sinceStartMs < startMs || sinceStartMs >= endMs) {
+                return false;
+            }
+            int fromGroup = -1;
+            int toGroup = -1;
+            for (int g = 0; g < groups.size(); g++) {
+                if (groups.get(g).contains(from)) {
+                    fromGroup = g;
+                }
+                if (groups.get(g).contains(to)) {
+                    toGroup = g;
+                }
+            }
+            return fromGroup >= 0 && toGroup >= 0 && fromGroup != toGroup;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.os;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Serves each hosted node's state over HTTP on its port plus {@code -Dintrospect.portOffset}
+ * (off when 0, the default). {@code GET /state} answers in plain text, one
+ * {@code kind key=value...} line each: the node, its requester and every round in
+ * flight, its arbiter and every request queued there. {@link StallDetector} polls these
+ * to build the cluster's wait-for graph; curl does for a single node.
+ */
+public final class Introspection {
+    static final int PORT_OFFSET = Integer.getInteger("introspect.portOffset", 0);
+    /** How long a snapshot waits for the requester lock and for the arbiter's event loop. */
+    static final long TIMEOUT_MS = 1000;
+
+    private static final List<HttpServer> servers = new ArrayList<>();
+
+    private Introspection() {
+    }
+
+    public static synchronized void start(List<Node> nodes) {
+        if (PORT_OFFSET <= 0) {
+            return;
+        }
+        for (Node node : nodes) {
+            int port = node.getPort() + PORT_OFFSET;
+            try {
+                HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+                server.createContext("/state", exchange -> {
+                    byte[] body = snapshot(node).getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream os = exchange.getResponseBody()) {
+                        os.write(body);
+                    }
+                });
+                server.start();
+                servers.add(server);
+                System.out.println("Introspection | Node " + node.getNodeId() + " state on http://"
+                        + node.getHostName() + ":" + port + "/state");
+            } catch (IOException e) {
+                System.err.println("Introspection | Cannot serve node " + node.getNodeId() + " on port " + port
+                        + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public static synchronized void stop() {
+        for (HttpServer server : servers) {
+            server.stop(0);
+        }
+        servers.clear();
+    }
+
+    static String snapshot(Node node) {
+        StringBuilder out = new StringBuilder();
+        out.append("node id=").append(node.getNodeId())
+                .append(" engine=").append(node.getEngine().getClass().getSimpleName())
+                .append(" seqnum=").append(node.getSeqnum())
+                .append('\n');
+        node.getEngine().describe(out);
+        try {
+            if (!node.getArbiter().describe(out, TIMEOUT_MS)) {
+                out.append("arbiter busy=true\n");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return the ids comma-separated, empty if there are none
+     */
+    static String join(Collection<Integer> ids) {
+        StringBuilder sb = new StringBuilder();
+        for (int id : ids) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(id);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package com.os;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long this node's CS requests waited to enter, per {@link PriorityClass}. Kept as raw
+ * samples, since a node issues few enough requests that exact percentiles are cheap.
+ */
+public class LatencyStats {
+    private final long[][] samples = new long[PriorityClass.values().length][16];
+    private final int[] counts = new int[PriorityClass.values().length];
+    private final int[] timeouts = new int[PriorityClass.values().length];
+
+    public synchronized void record(PriorityClass priority, long waitedNanos) {
+        int c = priority.ordinal();
+        if (counts[c] == samples[c].length) {
+            samples[c] = Arrays.copyOf(samples[c], counts[c] * 2);
+        }
+        samples[c][counts[c]++] = waitedNanos;
+    }
+
+    /**
+     * Counts a tryEnter that gave up; the wait recorded once the request gets in still
+     * runs from its first attempt.
+     */
+    public synchronized void recordTimeout(PriorityClass priority) {
+        timeouts[priority.ordinal()]++;
+    }
+
+    /**
+     * One line per class that had requests: count, mean, p50, p99 and max wait in ms, the
+     * wait of the class's first request, which pays for a cold JVM, and how many attempts
+     * gave up at the deadline.
+     */
+    public synchronized String summary(int nodeId) {
+        StringBuilder sb = new StringBuilder();
+        for (PriorityClass priority : PriorityClass.values()) {
+            int c = priority.ordinal();
+            if (counts[c] == 0) {
+                continue;
+            }
+            long[] sorted = Arrays.copyOf(samples[c], counts[c]);
+            Arrays.sort(sorted);
+            long total = 0;
+            for (long s : sorted) {
+                total += s;
+            }
+            sb.append(String.format("node=%d class=%s n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms first=%.2fms timeouts=%d\n",
+                    nodeId, priority, sorted.length, millis(total / sorted.length), millis(percentile(sorted, 50)),
+                    millis(percentile(sorted, 99)), millis(sorted[sorted.length - 1]), millis(samples[c][0]), timeouts[c]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Prints the summary and writes it to output/latency-&lt;id&gt;.txt next to the CS log.
+     */
+    public void report(String outputDir, int nodeId) {
+        String summary = summary(nodeId);
+        for (String line : summary.split("\n")) {
+            if (!line.isEmpty()) {
+                System.out.println("LatencyStats | " + line);
+            }
+        }
+        File dir = new File(outputDir);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(new File(dir, "latency-" + nodeId + ".txt")))) {
+            bw.write(summary);
+        } catch (IOException e) {
+            System.err.println("LatencyStats | Failed to write latencies: " + e.getMessage());
+        }
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, idx)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,23 @@
+package com.os;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Nodes hosted in this JVM. Messages between them skip TCP and are handed straight
+ * to the destination's inbox.
+ */
+public final class LocalNodes {
+    private static final Map<Integer, Node> hosted = new ConcurrentHashMap<>();
+
+    private LocalNodes() {
+    }
+
+    public static void register(Node node) {
+        hosted.put(node.getNodeId(), node);
+    }
+
+    public static Node lookup(int nodeId) {
+        return hosted.get(nodeId);
+    }
+}
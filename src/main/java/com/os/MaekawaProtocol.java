@@ -1,15 +1,17 @@
 package com.os;
 
-import java.io.*;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-public class MaekawaProtocol implements Runnable {
+import java.util.concurrent.TimeUnit;
+public class MaekawaProtocol implements Runnable, MutexEngine, Reconfigurable {
     private Node currNode;
     private final TCPClient tcpClient = new TCPClient();
+    private final CohortLock cohort = new CohortLock();
+    private QuorumBalancer balancer;
+    private final AdmissionControl admission = new AdmissionControl();
+    private MutexEvents.CriticalSection csEvent;    // of the thread in the CS, guarded by the requester lock
     private String outputDir = "output";
-    private final Map<Integer, Message> deferredInquiries = new ConcurrentHashMap<>();
     MaekawaProtocol(Node node) {
         this.currNode = node;
     }
@@ -19,6 +21,7 @@ public class MaekawaProtocol implements Runnable {
         this.outputDir = outputDir;
     }
 
+    @Override
     public void setOutputDir(String outputDir) {
         this.outputDir = outputDir;
     }
@@ -29,79 +32,389 @@ public class MaekawaProtocol implements Runnable {
         csEnter();
     }
 
+    /**
+     * Blocks until this thread holds the critical section. Several local threads may
+     * call this at once; {@link CohortLock} lets them share one quorum acquisition in
+     * turn before the RELEASE.
+     */
+    @Override
     public void csEnter() {
-        currNode.lockNode.lock();
-        System.out.println("MaekawaProtocol | Sending request to all quorum members to enter CS");
+        csEnter(PriorityClass.NORMAL);
+    }
+
+    /**
+     * Like {@link #csEnter()}; a new round is requested at the given class. A thread that
+     * joins a round another local thread opened shares that round's class.
+     */
+    @Override
+    public void csEnter(PriorityClass priority) {
+        Requester requester = currNode.getRequester();
+        MutexEvents.CsWait waitEvent = new MutexEvents.CsWait();
+        waitEvent.begin();
+        requester.lock.lock();
         try {
-            currNode.setNodeState(NodeState.REQUESTING);
-            Request reqToSend = new Request(currNode.getSeqnum(), currNode.getNodeId());
-            currNode.incrementSeqNum();
-            currNode.clearRecdRepliesMap();
-            deferredInquiries.clear();
-            System.out.println("MaekawaProtocol | recd replies size = " + currNode.getRecdReplies().size());
-            sendRequestToQuorum(currNode, reqToSend);
-            while (currNode.countLockedReplies() < currNode.getQuorum().size()) {
+            joinRound(priority, Long.MAX_VALUE);
+            while (!mayEnter()) {
                 System.out.println("MaekawaProtocol | quorum not fulfiled");
-                currNode.getCsGrant().await();
+                requester.getCsGrant().await();
+            }
+            enterCs();
+            waitEvent.entered = true;
+        } catch (InterruptedException e) {
+            System.out.println("MaekawaProtocol | CS entry interrupted");
+            leaveRound();
+            Thread.currentThread().interrupt();
+        } finally {
+            requester.lock.unlock();
+            commitWait(waitEvent, priority);
+        }
+    }
+
+    /**
+     * Like {@link #csEnter()} but gives up once {@code timeoutMs} has passed. If no
+     * other local thread still waits on the round it is cancelled at all quorum
+     * members, which drop it from their wait queues or pass on a grant they already gave.
+     * A request held back by {@link AdmissionControl} for the whole time is shed without
+     * ever reaching the arbiters.
+     *
+     * @return true if the thread is now in the CS, false if it gave up
+     */
+    @Override
+    public boolean tryEnter(long timeoutMs) {
+        return tryEnter(timeoutMs, PriorityClass.NORMAL);
+    }
+
+    @Override
+    public boolean tryEnter(long timeoutMs, PriorityClass priority) {
+        Requester requester = currNode.getRequester();
+        MutexEvents.CsWait waitEvent = new MutexEvents.CsWait();
+        waitEvent.begin();
+        requester.lock.lock();
+        System.out.println("MaekawaProtocol | Sending request to all quorum members, giving up after " + timeoutMs + "ms");
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            if (!joinRound(priority, deadline)) {
+                System.out.println("MaekawaProtocol | quorum saturated, shedding request");
+                return false;
+            }
+            long remainingNanos = deadline - System.nanoTime();
+            while (!mayEnter()) {
+                if (remainingNanos <= 0) {
+                    leaveRound();
+                    return false;
+                }
+                remainingNanos = requester.getCsGrant().awaitNanos(remainingNanos);
             }
-            System.out.println("MaekawaProtocol | executiong CS now");
-            currNode.setNodeState(NodeState.EXEC);
-            currNode.setInCs(true);
-            writeLOG("ENTER");
+            enterCs();
+            waitEvent.entered = true;
+            return true;
         } catch (InterruptedException e) {
             System.out.println("MaekawaProtocol | CS entry interrupted");
+            leaveRound();
             Thread.currentThread().interrupt();
+            return false;
         } finally {
-            currNode.lockNode.unlock();
+            requester.lock.unlock();
+            commitWait(waitEvent, priority);
+        }
+    }
+
+    /**
+     * The {@code requester} line, then a line per round in flight. Leaves the rounds out
+     * if the requester lock stays taken for {@link Introspection#TIMEOUT_MS}.
+     */
+    @Override
+    public void describe(StringBuilder out) {
+        Requester requester = currNode.getRequester();
+        try {
+            if (!requester.lock.tryLock(Introspection.TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                out.append("requester busy=true\n");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        try {
+            out.append("requester state=").append(requester.getNodeState())
+                    .append(" inCs=").append(requester.isInCs())
+                    .append(" paused=").append(requester.isPaused())
+                    .append(" rounds=").append(requester.getOutstandingRounds())
+                    .append('\n');
+            for (QuorumRound round : requester.getRounds()) {
+                String role = round == requester.getHoldingRound() ? "holding"
+                        : round == requester.getCollectingRound() ? "collecting" : "other";
+                round.describe(out, role);
+            }
+        } finally {
+            requester.lock.unlock();
+        }
+    }
+
+    private void commitWait(MutexEvents.CsWait waitEvent, PriorityClass priority) {
+        if (waitEvent.shouldCommit()) {
+            waitEvent.nodeId = currNode.getNodeId();
+            waitEvent.priority = priority.name();
+            waitEvent.commit();
+        }
+    }
+
+    /**
+     * Queues the calling thread on the grant this node already holds if the cohort
+     * allows it, and otherwise on the round still collecting grants. A new round waits
+     * while {@link AdmissionControl} holds back its quorum.
+     *
+     * @return false if {@code deadline} (a {@link System#nanoTime()} value) passed first
+     */
+    private boolean joinRound(PriorityClass priority, long deadline) throws InterruptedException {
+        Requester requester = currNode.getRequester();
+        while (true) {
+            long waitNanos = 0;
+            if (requester.isPaused()) {
+                System.out.println("MaekawaProtocol | membership change in progress, waiting");
+                waitNanos = Long.MAX_VALUE;
+            } else {
+                QuorumRound holding = requester.getHoldingRound();
+                if (cohort.mayJoin(holding)) {
+                    holding.addWaiter(Thread.currentThread());
+                    System.out.println("MaekawaProtocol | joining held grant " + holding.request);
+                    return true;
+                }
+                if (requester.getCollectingRound() == null) {
+                    waitNanos = admission.delayNanos(nextQuorum());
+                }
+                if (waitNanos <= 0) {
+                    QuorumRound round = collectingRound(priority);
+                    round.addWaiter(Thread.currentThread());
+                    System.out.println("MaekawaProtocol | " + round.waiterCount() + " local waiter(s) on " + round.request);
+                    return true;
+                }
+                System.out.println("MaekawaProtocol | quorum saturated, holding back request for " + waitNanos / 1_000_000 + "ms");
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            if (deadline == Long.MAX_VALUE && waitNanos == Long.MAX_VALUE) {
+                requester.getCsGrant().await();
+            } else {
+                requester.getCsGrant().awaitNanos(Math.min(waitNanos, remaining));
+            }
+        }
+    }
+
+    // While a grant is still held the next round must go to the same arbiters, or both
+    // rounds could hold every grant at once.
+    private List<Integer> nextQuorum() {
+        QuorumRound holding = currNode.getRequester().getHoldingRound();
+        return holding != null ? holding.quorum : balancer().choose();
+    }
+
+    /**
+     * Returns the round still collecting grants, issuing a new one if there is none. Its
+     * REQUEST is then already queued at the arbiters while the current grant is in use.
+     */
+    private QuorumRound collectingRound(PriorityClass priority) {
+        Requester requester = currNode.getRequester();
+        QuorumRound round = requester.getCollectingRound();
+        if (round == null) {
+            int seqnum = currNode.nextSeqnum();
+            currNode.getArbiter().reserveSeqnum(seqnum);
+            round = new QuorumRound(new Request(seqnum, currNode.getNodeId(), priority), nextQuorum());
+            requester.addRound(round);
+            requester.setCollectingRound(round);
+            if (requester.getNodeState() == NodeState.RELEASED) {
+                requester.setNodeState(NodeState.REQUESTING);
+            }
+            System.out.println("MaekawaProtocol | Sending request to all quorum members to enter CS");
+            MutexEvents.RequestIssued issued = new MutexEvents.RequestIssued();
+            if (issued.shouldCommit()) {
+                issued.nodeId = currNode.getNodeId();
+                issued.seqnum = round.request.seqnum;
+                issued.priority = priority.name();
+                issued.quorumSize = round.quorum.size();
+                issued.commit();
+            }
+            sendRequestToQuorum(currNode, round);
         }
+        return round;
+    }
+
+    // The quorum is only set once Main has parsed the config, after this engine exists.
+    private QuorumBalancer balancer() {
+        if (balancer == null) {
+            balancer = new QuorumBalancer(currNode.getNodeId(), currNode.getQuorumCandidates());
+        }
+        return balancer;
+    }
+
+    private boolean mayEnter() {
+        Requester requester = currNode.getRequester();
+        QuorumRound holding = requester.getHoldingRound();
+        return holding != null && !requester.isInCs() && holding.isNextWaiter(Thread.currentThread());
     }
 
+    private void enterCs() {
+        Requester requester = currNode.getRequester();
+        QuorumRound holding = requester.getHoldingRound();
+        System.out.println("MaekawaProtocol | executiong CS now");
+        holding.removeWaiter(Thread.currentThread());
+        MutexEvents.CriticalSection event = new MutexEvents.CriticalSection();
+        if (event.isEnabled()) {
+            event.begin();
+            event.nodeId = currNode.getNodeId();
+            event.seqnum = holding.request.seqnum;
+            event.servedBefore = holding.servedCount();
+            csEvent = event;
+        }
+        holding.recordServed();
+        requester.setNodeState(NodeState.EXEC);
+        requester.setInCs(true);
+        writeLOG("ENTER");
+    }
+
+    /**
+     * Takes a thread that gave up off its round. If it was the last waiter, a held grant
+     * nobody is using is released and a round still collecting is cancelled.
+     */
+    private void leaveRound() {
+        Requester requester = currNode.getRequester();
+        Thread self = Thread.currentThread();
+        QuorumRound holding = requester.getHoldingRound();
+        QuorumRound collecting = requester.getCollectingRound();
+        if (holding != null && holding.removeWaiter(self)) {
+            if (!holding.hasWaiters() && !requester.isInCs()) {
+                releaseRound(holding);
+            }
+        } else if (collecting != null && collecting.removeWaiter(self) && !collecting.hasWaiters()) {
+            cancelRound(collecting);
+        }
+        requester.getCsGrant().signalAll();
+    }
+
+    private void cancelRound(QuorumRound round) {
+        Requester requester = currNode.getRequester();
+        System.out.println("MaekawaProtocol | Node " + currNode.getNodeId() + " giving up on " + round.request);
+        requester.removeRound(round);
+        for (int q : round.quorum) {
+            if (q == currNode.getNodeId()) {
+                currNode.getArbiter().onCancel(new Message(MessageType.CANCEL, currNode.getNodeId(), q, round.request));
+            } else {
+                tcpClient.sendCancel(currNode, currNode.getNodeById(q), round.request);
+            }
+        }
+        // Only now: the drain callback may let a leaving quorum member shut down.
+        updateNodeState();
+    }
+
+    /**
+     * Leaves the CS. The next local waiter enters on the same grant, without any
+     * messages, while the cohort allows it; otherwise every quorum member is released
+     * and the remaining waiters move to the next round.
+     */
+    @Override
     public void csLeave() {
-        currNode.lockNode.lock();
+        Requester requester = currNode.getRequester();
+        requester.lock.lock();
+        MutexEvents.RequesterLockHeld held = lockHeld("csLeave");
         try {
             System.out.println("MaekawaProtocol | Node " + currNode.getNodeId() + " leaving CS");
-
-            currNode.setInCs(false);
-            currNode.setNodeState(NodeState.RELEASED);
-            currNode.clearRecdRepliesMap();
-            deferredInquiries.clear();
+            QuorumRound round = requester.getHoldingRound();
+            requester.setInCs(false);
             writeLOG("EXIT");
-            for (int q : currNode.getQuorum()) {
-                Node quorumNode = currNode.getNodeById(q);
-                if (q == currNode.getNodeId()) {
-                    Message releaseMsg = new Message(MessageType.RELEASE, currNode.getNodeId(), q, null);
-                    currNode.lockNode.unlock();
-                    try {
-                        onRelease(releaseMsg);
-                    } finally {
-                        currNode.lockNode.lock();
-                    }
-                } else {
-                    tcpClient.sendReleaseToRequester(currNode, quorumNode);
-                }
+            if (csEvent != null) {
+                csEvent.commit();
+                csEvent = null;
+            }
+            if (cohort.mayHandOff(round)) {
+                System.out.println("MaekawaProtocol | handing CS to next local waiter on " + round.request);
+                requester.setNodeState(NodeState.LOCKED);
+                requester.getCsGrant().signalAll();
+                return;
             }
-            System.out.println("MaekawaProtocol | released all quo");
+            if (round.hasWaiters()) {
+                System.out.println("MaekawaProtocol | giving up grant after " + round.servedCount() + " local entries, "
+                        + round.waiterCount() + " thread(s) move to the next round");
+                round.moveWaitersTo(collectingRound(round.request.priority));
+            }
+            releaseRound(round);
         } catch (Exception e) {
             System.out.println("MaekawaProtocol | Exception in csLeave: " + e.getMessage());
         } finally {
-            currNode.lockNode.unlock();
+            held.commit();
+            requester.lock.unlock();
+        }
+    }
+
+    private void releaseRound(QuorumRound round) {
+        Requester requester = currNode.getRequester();
+        requester.removeRound(round);
+        for (int q : round.quorum) {
+            Node quorumNode = currNode.getNodeById(q);
+            if (q == currNode.getNodeId()) {
+                currNode.getArbiter().onRelease(new Message(MessageType.RELEASE, currNode.getNodeId(), q, round.request));
+            } else {
+                tcpClient.sendReleaseToRequester(currNode, quorumNode, round.request);
+            }
+        }
+        System.out.println("MaekawaProtocol | released all quo");
+        // Only now: the drain callback may let a leaving quorum member shut down.
+        updateNodeState();
+        requester.getCsGrant().signalAll();
+    }
+
+    private void updateNodeState() {
+        Requester requester = currNode.getRequester();
+        requester.setNodeState(requester.getOutstandingRounds() > 0 ? NodeState.REQUESTING : NodeState.RELEASED);
+        runDrainedCallback();
+    }
+
+    private void runDrainedCallback() {
+        Runnable onDrained = currNode.getRequester().takeDrainedCallback();
+        if (onDrained != null) {
+            onDrained.run();
+        }
+    }
+
+    /**
+     * Lets threads already queued on a round finish, but starts no new round; new
+     * callers wait in {@link #joinRound} until {@link #resume()}.
+     */
+    @Override
+    public void quiesce(Runnable onDrained) {
+        Requester requester = currNode.getRequester();
+        requester.lock.lock();
+        try {
+            requester.pause(onDrained);
+            runDrainedCallback();
+        } finally {
+            requester.lock.unlock();
         }
     }
 
-    private void sendRequestToQuorum(Node currNode, Request req) {
-        List<Integer> quorum = currNode.getQuorum();
+    @Override
+    public void resume() {
+        Requester requester = currNode.getRequester();
+        requester.lock.lock();
+        try {
+            balancer = null;
+            requester.unpause();
+            requester.getCsGrant().signalAll();
+        } finally {
+            requester.lock.unlock();
+        }
+    }
+
+    private void sendRequestToQuorum(Node currNode, QuorumRound round) {
+        Request req = round.request;
+        List<Integer> quorum = round.quorum;
         System.out.println("MaekawaProtocol | Sending req to quo: " + quorum);
 
         for (int q : quorum) {
             Node dest = currNode.getNodeById(q);
             Message msg = new Message(MessageType.REQUEST, currNode.getNodeId(), q, req);
             if (q == currNode.getNodeId()) {
-                currNode.lockNode.unlock();
-                try {
-                    onRequest(msg);
-                } finally {
-                    currNode.lockNode.lock();
-                }
+                currNode.getArbiter().onRequest(msg);
             } else {
                 try {
                     tcpClient.sendMessage(dest, msg);
@@ -114,182 +427,243 @@ public class MaekawaProtocol implements Runnable {
     }
 
     public void onRequest(Message req) {
-        currNode.lockNode.lock();
-        try {
-            Request incomingReq = (Request) req.info;
-            currNode.seqnumupdate(incomingReq.seqnum);
-            if (!currNode.isLocked()) {
-                System.out.println("MaekawaProtocol | locked for: " + incomingReq.nodeId);
-                currNode.setLockingRequest(incomingReq);
-                currNode.setLocked(true);
-                tcpClient.sendLockedFor(currNode, currNode.getNodeById(incomingReq.nodeId));
-
-            } else {
-                Request currentReq = currNode.getLockingRequest();
-                System.out.println("MaekawaProtocol | Node is locked for seq=" + currentReq.seqnum);
-                currNode.addReqToOutstandingQueue(incomingReq);
-                System.out.println("MaekawaProtocol | q'd the req");
-                if (incomingReq.precedes(currentReq)) {
-                    Request headOfQueue = currNode.peekWaitQueue();
-                    if (headOfQueue != null && incomingReq.equals(headOfQueue)) {
-                        System.out.println("MaekawaProtocol | incmg has higher priority. Sending inq to "+currentReq.nodeId);
-                        System.out.println("MaekawaProtocol | sending fail to " + incomingReq.nodeId);
-                        tcpClient.sendInquiry(currNode, currNode.getNodeById(currentReq.nodeId));
-                        tcpClient.sendFailed(currNode, currNode.getNodeById(incomingReq.nodeId));
-                    } else {
-                        System.out.println("MaekawaProtocol | icnmg has higher priority but not at top of q. failing...");
-                        tcpClient.sendFailed(currNode, currNode.getNodeById(incomingReq.nodeId));
-                    }
-                } else {
-                    System.out.println("MaekawaProtocol | currReq has higher priority. failing "+ incomingReq.nodeId);
-                    tcpClient.sendFailed(currNode, currNode.getNodeById(incomingReq.nodeId));
-                }
-            }
-        } finally {
-            currNode.lockNode.unlock();
-        }
+        currNode.getArbiter().onRequest(req);
     }
 
     public void onLocked(Message locked) {
-        currNode.lockNode.lock();
+        Requester requester = currNode.getRequester();
+        requester.lock.lock();
+        MutexEvents.RequesterLockHeld held = lockHeld("LOCKED");
         try {
             System.out.println("MaekawaProtocol | Node " + currNode.getNodeId()+" received LOCKED from node " + locked.from);
-            currNode.addReplyMessage(locked);
-            currNode.addToLockedMembers(locked.from);
-            int lockedCount = Math.toIntExact(currNode.countLockedReplies());
-            int quorumSize = currNode.getQuorum().size();
-            if (lockedCount >= quorumSize) {
+            QuorumRound round = requester.getRound(locked.info);
+            if (round == null) {
+                // Normally a RELEASE or CANCEL is on its way already; after the arbiter
+                // restarted, this RELEASE is the only one it gets.
+                System.out.println("MaekawaProtocol | stale LOCKED for " + locked.info + ", releasing it");
+                releaseStaleGrant(locked);
+                return;
+            }
+            if (round.wasRelinquished(locked.from, locked.grantStamp)) {
+                // Its INQUIRE overtook it and was already answered with a RELINQUISH.
+                System.out.println("MaekawaProtocol | LOCKED from " + locked.from + " already relinquished, ignoring");
+                return;
+            }
+            balancer().observe(locked.from, locked.arbiterRate);
+            admission.observe(locked.from, locked.queueDepth);
+            round.addReply(locked);
+            Message inquiry = round.getDeferredInquiries().get(locked.from);
+            if (!round.isGranted() && inquiry != null && inquiry.grantStamp == locked.grantStamp
+                    && round.countFailedReplies() > 0) {
+                // The INQUIRE overtook this LOCKED; the arbiter sends it only once per grant.
+                System.out.println("MaekawaProtocol | INQUIRE from " + locked.from + " came first, yielding now");
+                relinquishTo(round, inquiry);
+                return;
+            }
+            int lockedCount = Math.toIntExact(round.countLockedReplies());
+            int quorumSize = round.quorum.size();
+            if (lockedCount >= quorumSize && !round.isGranted()) {
                 System.out.println("MaekawaProtocol | got all locks");
-                currNode.getCsGrant().signalAll();
+                round.setGranted(true);
+                if (round.grantEvent.shouldCommit()) {
+                    round.grantEvent.nodeId = currNode.getNodeId();
+                    round.grantEvent.seqnum = round.request.seqnum;
+                    round.grantEvent.replies = lockedCount;
+                    round.grantEvent.commit();
+                }
+                requester.setHoldingRound(round);
+                if (requester.getCollectingRound() == round) {
+                    requester.setCollectingRound(null);
+                }
+                requester.setNodeState(NodeState.LOCKED);
+                requester.getCsGrant().signalAll();
             }
         } finally {
-            currNode.lockNode.unlock();
+            held.commit();
+            requester.lock.unlock();
         }
     }
 
     public void onFailed(Message failure) {
-        currNode.lockNode.lock();
+        Requester requester = currNode.getRequester();
+        requester.lock.lock();
+        MutexEvents.RequesterLockHeld held = lockHeld("FAILED");
         try {
             System.out.println("MaekawaProtocol | Node " + currNode.getNodeId() + "got fail from:" + failure.from);
-            Message existingReply = currNode.getRecdReplies().get(failure.from);
+            QuorumRound round = requester.getRound(failure.info);
+            if (round == null) {
+                System.out.println("MaekawaProtocol | stale FAILED for " + failure.info + ", ignoring");
+                return;
+            }
+            balancer().observe(failure.from, failure.arbiterRate);
+            admission.observe(failure.from, failure.queueDepth);
+            Message existingReply = round.getReply(failure.from);
             if (existingReply != null && existingReply.type == MessageType.LOCKED) {
                 System.out.println("MaekawaProtocol | already locked for " + failure.from + ", no-op...");
                 return;
             }
-            currNode.addReplyMessage(failure);
+            round.addReply(failure);
+            Map<Integer, Message> deferredInquiries = round.getDeferredInquiries();
             if (!deferredInquiries.isEmpty()) {
                 System.out.println("MaekawaProtocol | inquiring previous msgs..");
-                List<Integer> inquirersToRelinquish = new ArrayList<>();
+                List<Message> inquiriesToAnswer = new ArrayList<>();
                 for (Map.Entry<Integer, Message> entry : deferredInquiries.entrySet()) {
                     int inquirerId = entry.getKey();
-                    Message reply = currNode.getRecdReplies().get(inquirerId);
+                    Message reply = round.getReply(inquirerId);
                     if (reply != null && reply.type == MessageType.LOCKED) {
-                        inquirersToRelinquish.add(inquirerId);
+                        inquiriesToAnswer.add(entry.getValue());
                     }
                 }
-                for (int inquirerId : inquirersToRelinquish) {
-                    System.out.println("MaekawaProtocol | Sending yield to node " + inquirerId);
-                    currNode.getRecdReplies().remove(inquirerId);
-                    deferredInquiries.remove(inquirerId);
-                    tcpClient.sendRelinquish(currNode, currNode.getNodeById(inquirerId));
+                for (Message inquiry : inquiriesToAnswer) {
+                    System.out.println("MaekawaProtocol | Sending yield to node " + inquiry.from);
+                    relinquishTo(round, inquiry);
                 }
             }
-            currNode.getCsGrant().signalAll();
+            requester.getCsGrant().signalAll();
         } finally {
-            currNode.lockNode.unlock();
+            held.commit();
+            requester.lock.unlock();
         }
     }
 
     public void onInquire(Message msg) {
-        currNode.lockNode.lock();
+        Requester requester = currNode.getRequester();
+        requester.lock.lock();
+        MutexEvents.RequesterLockHeld held = lockHeld("INQUIRE");
         try {
             System.out.println("MaekawaProtocol | Node " + currNode.getNodeId() + " req to yield by " + msg.from);
-            deferredInquiries.put(msg.from, msg);
-            if (currNode.isInCs()) {
+            QuorumRound round = requester.getRound(msg.info);
+            if (round == null) {
+                System.out.println("MaekawaProtocol | nothing outstanding, ignoring INQUIRE from " + msg.from);
+                return;
+            }
+            admission.observe(msg.from, msg.queueDepth);
+            round.getDeferredInquiries().put(msg.from, msg);
+            if (round.isGranted()) {
+                // CohortLock stops handing the grant to local waiters once this is recorded.
                 System.out.println("MaekawaProtocol | in CS. yieklding later to:" + msg.from);
                 return;
             }
-            long failedCount = currNode.countFailedReplies();
+            long failedCount = round.countFailedReplies();
             if (failedCount == 0) {
                 return;
             }
 
             System.out.println("MaekawaProtocol | some quo failed, yielding to  " + msg.from);
-            deferredInquiries.remove(msg.from);
-            currNode.getRecdReplies().remove(msg.from);
-            tcpClient.sendRelinquish(currNode, currNode.getNodeById(msg.from));
+            relinquishTo(round, msg);
         } finally {
-            currNode.lockNode.unlock();
+            held.commit();
+            requester.lock.unlock();
         }
     }
 
-    public void onRelinquish(Message msg) {
-        currNode.lockNode.lock();
-        try {
-            System.out.println("MaekawaProtocol | Node " + currNode.getNodeId() + " received RELINQUISH from node " + msg.from);
-            Request currentReq = currNode.getLockingRequest();
-            if (currentReq == null || currentReq.nodeId != msg.from) {
-                System.out.println("MaekawaProtocol | Unexpected RELINQUISH from " + msg.from);
-                return;
-            }
-            currNode.addReqToOutstandingQueue(currentReq);
-            System.out.println("MaekawaProtocol | Placed req back in queue");
-            if (currNode.getWaitQueue().isEmpty()) {
-                currNode.setLocked(false);
-                currNode.setLockingRequest(null);
-                return;
-            }
+    /**
+     * @return a started event for the requester lock, which the caller holds, to commit
+     * just before unlocking
+     */
+    private MutexEvents.RequesterLockHeld lockHeld(String operation) {
+        MutexEvents.RequesterLockHeld held = new MutexEvents.RequesterLockHeld();
+        if (held.isEnabled()) {
+            held.begin();
+            held.nodeId = currNode.getNodeId();
+            held.operation = operation;
+        }
+        return held;
+    }
 
-            Request nextReq = currNode.popWaitQueue();
-            currNode.setLockingRequest(nextReq);
-            System.out.println("MaekawaProtocol | locked for next req: " + nextReq.nodeId);
-            tcpClient.sendLockedFor(currNode, currNode.getNodeById(nextReq.nodeId));
-            System.out.println("MaekawaProtocol | Sent LOCKED to node " + nextReq.nodeId);
-        } finally {
-            currNode.lockNode.unlock();
+    private void relinquishTo(QuorumRound round, Message inquiry) {
+        int arbiterId = inquiry.from;
+        round.getDeferredInquiries().remove(arbiterId);
+        round.markRelinquished(arbiterId, inquiry.grantStamp);
+        // The arbiter re-queues us behind a higher-priority request, so its grant now
+        // counts as a failure; otherwise a later INQUIRE from another arbiter would be
+        // deferred forever while we wait on this one.
+        round.addReply(new Message(MessageType.FAILED, arbiterId, currNode.getNodeId(), round.request));
+        tcpClient.sendRelinquish(currNode, currNode.getNodeById(arbiterId), round.request);
+    }
+
+    private void releaseStaleGrant(Message locked) {
+        Request stale = (Request) locked.info;
+        if (locked.from == currNode.getNodeId()) {
+            currNode.getArbiter().onRelease(new Message(MessageType.RELEASE, currNode.getNodeId(), locked.from, stale));
+        } else {
+            tcpClient.sendReleaseToRequester(currNode, currNode.getNodeById(locked.from), stale);
         }
     }
 
-    public void onRelease(Message msg) {
-        currNode.lockNode.lock();
+    /**
+     * A quorum member restarted from its log and lost whatever was in flight: rounds that
+     * still collect grants forget its answers and send it their REQUEST again. A granted
+     * round keeps its grant, which the log holds.
+     */
+    public void onRecovered(Message msg) {
+        currNode.getArbiter().onRecovered(msg);
+        if (msg.from == currNode.getNodeId()) {
+            return;
+        }
+        Requester requester = currNode.getRequester();
+        requester.lock.lock();
         try {
-            System.out.println("MaekawaProtocol | Node " + currNode.getNodeId() + " received RELEASE from node " + msg.from);
-            Request currentReq = currNode.getLockingRequest();
-            if (currentReq == null || currentReq.nodeId != msg.from) {
-                return;
-            }
-            currNode.resetNodeLock();
-            if (currNode.getWaitQueue().isEmpty()) {
-                System.out.println("MaekawaProtocol | No pending requests. Node is now UNLOCKED");
-                currNode.setLocked(false);
-            } else {
-                Request nextReq = currNode.popWaitQueue();
-                currNode.setLockingRequest(nextReq);
-                currNode.setLocked(true);
-                System.out.println("MaekawaProtocol | Serving next request from node " + nextReq.nodeId);
-                tcpClient.sendLockedFor(currNode, currNode.getNodeById(nextReq.nodeId));
-                System.out.println("MaekawaProtocol | locked for: " + nextReq.nodeId);
+            for (QuorumRound round : requester.getRounds()) {
+                if (round.isGranted() || !round.quorum.contains(msg.from)) {
+                    continue;
+                }
+                System.out.println("MaekawaProtocol | arbiter " + msg.from + " recovered, re-sending " + round.request);
+                round.forgetArbiter(msg.from);
+                tcpClient.sendMessage(currNode.getNodeById(msg.from),
+                        new Message(MessageType.REQUEST, currNode.getNodeId(), msg.from, round.request));
             }
+            requester.getCsGrant().signalAll();
         } finally {
-            currNode.lockNode.unlock();
+            requester.lock.unlock();
         }
     }
 
-    public void writeLOG(String msg){
-        String filename = outputDir + "/node-" + currNode.getNodeId() + ".txt";
-        String logEntry = System.currentTimeMillis() + " -> Node: " + currNode.getNodeId() + " => " + msg + "\n";
+    public void onRelinquish(Message msg) {
+        currNode.getArbiter().onRelinquish(msg);
+    }
 
-        try {
-            File dir = new File(outputDir);
-            if (!dir.exists()) {
-                dir.mkdirs();
-            }
-            try (FileWriter fw = new FileWriter(filename, true);
-                 BufferedWriter bw = new BufferedWriter(fw)) {
-                bw.write(logEntry);
-            }
-        } catch (IOException e) {
-            System.err.println("MaekawaProtocol | Failed to write log: " + e.getMessage());
+    public void onRelease(Message msg) {
+        currNode.getArbiter().onRelease(msg);
+    }
+
+    public void onCancel(Message msg) {
+        currNode.getArbiter().onCancel(msg);
+    }
+
+    @Override
+    public boolean onMessage(Message msg) {
+        switch (msg.type) {
+            case REQUEST:
+                onRequest(msg);
+                return true;
+            case INQUIRE:
+                onInquire(msg);
+                return true;
+            case RELEASE:
+                onRelease(msg);
+                return true;
+            case RELINQUISH:
+                onRelinquish(msg);
+                return true;
+            case FAILED:
+                onFailed(msg);
+                return true;
+            case LOCKED:
+                onLocked(msg);
+                return true;
+            case CANCEL:
+                onCancel(msg);
+                return true;
+            case RECOVERED:
+                onRecovered(msg);
+                return true;
+            default:
+                return false;
         }
     }
-}
\ No newline at end of file
+
+    public void writeLOG(String msg){
+        CsLog.write(outputDir, currNode.getNodeId(), msg);
+    }
+}
@@ -1,65 +1,154 @@
 package com.os;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class Main {
-    private static final long INIT_DELAY_MS = 30000;
-    private static final long SHUTDOWN_DELAY_MS = 120000;
-
     public static void main(String[] args) throws InterruptedException {
         if (args.length < 2 || args.length > 3) {
             return;
         }
 
-        int currNodeId;
+        Set<Integer> nodeIds;
         try {
-            currNodeId = Integer.parseInt(args[0]);
+            nodeIds = parseNodeIds(args[0]);
         } catch (NumberFormatException e) {
             return;
         }
 
+        try {
+            WorkloadTrace.checkSpeed();
+        } catch (IllegalArgumentException e) {
+            System.err.println("err " + e.getMessage());
+            return;
+        }
+
         String configFilePath = args[1];
         String outputDir = args.length > 2 ? args[2] : "output";
-        System.out.println("delay " + (INIT_DELAY_MS / 1000) + " seconds for other nodes to launch...");
-        Thread.sleep(INIT_DELAY_MS);
         System.out.println("running appln...");
         Parser parser = new Parser();
         parser.setOutputDir(outputDir);
-        parser.loadFromFile(configFilePath);
-        parser.connectToNeighborasFromCOnfig();
-        Node currNode = parser.getNodeById(currNodeId);
-        if (currNode == null) {
+        try {
+            parser.loadFromFile(configFilePath);
+        } catch (IllegalArgumentException e) {
+            System.err.println("err invalid config " + e.getMessage());
             return;
         }
+        parser.connectToNeighborasFromCOnfig();
 
-        List<Integer> quorum = parser.getQuorumSetOfNode(currNodeId);
-        if (quorum == null || quorum.isEmpty()) {
-            System.err.println("err no quorum for node " + currNodeId);
-            return;
+        Map<Integer, List<List<Integer>>> quorumCandidates = parser.computeQuorumCandidates();
+        List<Node> hostedNodes = new ArrayList<>();
+        Map<Integer, Integer> resumeSeqnums = new HashMap<>();
+        for (int currNodeId : nodeIds) {
+            Node currNode = parser.getNodeById(currNodeId);
+            if (currNode == null) {
+                return;
+            }
+            List<Integer> quorum = parser.getQuorumSetOfNode(currNodeId);
+            if (MembershipService.JOIN_ON_START) {
+                // The quorum comes with the view that admits the node.
+                quorum = new ArrayList<>();
+            } else if (quorum == null || quorum.isEmpty()) {
+                System.err.println("err no quorum for node " + currNodeId);
+                return;
+            }
+            if (MembershipService.JOIN_ON_START || MembershipService.LEAVE_WHEN_DONE) {
+                try {
+                    currNode.getMembership().requireReconfigurable();
+                } catch (IllegalStateException e) {
+                    System.err.println("err node " + currNodeId + ": " + e.getMessage());
+                    return;
+                }
+            }
+            currNode.setQuorum(quorum);
+            currNode.setQuorumCandidates(quorumCandidates.get(currNodeId));
+            try {
+                int resumeSeqnum = currNode.getArbiter().openLog();
+                if (resumeSeqnum >= 0) {
+                    currNode.seqnumupdate(resumeSeqnum);
+                    resumeSeqnums.put(currNodeId, resumeSeqnum);
+                }
+            } catch (IOException e) {
+                System.err.println("err cannot recover node " + currNodeId + ": " + e.getMessage());
+                return;
+            }
+            LocalNodes.register(currNode);
+            hostedNodes.add(currNode);
         }
-        currNode.setQuorum(quorum);
         parser.print();
-        TCPServer server = new TCPServer(currNode);
-        Thread serverThread = new Thread(server, "TCPServer-" + currNodeId);
+        ShmTransport.start(hostedNodes, parser.getColocatedNodes(nodeIds));
+        Introspection.start(hostedNodes);
+        TCPServer server = new TCPServer(hostedNodes);
+        Thread serverThread = new Thread(server, "TCPServer-" + args[0]);
         serverThread.start();
-        Thread.sleep(2000);
-        Thread appThread = new Thread(new ApplicationLayer(currNode), "Application-" + currNodeId);
-        appThread.start();
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("MAIN | Shutdown hook triggered");
             server.stop();
+            ShmTransport.stop();
+            Introspection.stop();
         }));
-        Thread shutdownTimer = new Thread(() -> {
-            try {
-                Thread.sleep(SHUTDOWN_DELAY_MS);
-            } catch (InterruptedException e) {
-                return;
+        for (Node currNode : hostedNodes) {
+            Thread appThread = new Thread(() -> {
+                try {
+                    Integer resumeSeqnum = resumeSeqnums.get(currNode.getNodeId());
+                    if (resumeSeqnum != null) {
+                        currNode.getCoordinator().announceRecovered(resumeSeqnum);
+                    } else if (MembershipService.JOIN_ON_START) {
+                        currNode.getMembership().join();
+                    } else {
+                        currNode.getCoordinator().awaitClusterReady();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } catch (IllegalStateException e) {
+                    System.err.println("err node " + currNode.getNodeId() + " cannot start: " + e.getMessage());
+                    System.exit(1);
+                }
+                System.out.println("Node " + currNode.getNodeId() + " up and running");
+                currNode.getEngine().start();
+                new ApplicationLayer(currNode).run();
+            }, "Application-" + currNode.getNodeId());
+            appThread.start();
+        }
+        for (Node currNode : hostedNodes) {
+            currNode.getCoordinator().awaitClusterDone();
+        }
+        FaultInjector.report();
+        for (Node currNode : hostedNodes) {
+            MessageCounters.of(currNode.getNodeId()).report(currNode.getOutputDir(), currNode.getNodeId());
+            currNode.getArbiter().closeLog();
+        }
+        System.out.println("Shutting down...");
+        hostedNodes.get(0).shutdownNodeGracefully();
+    }
+
+    /**
+     * Parses the node ids to host in this JVM: a single id ("3"), a range ("0-9")
+     * or a comma-separated mix of both ("0,2,5-7").
+     */
+    static Set<Integer> parseNodeIds(String spec) {
+        Set<Integer> nodeIds = new LinkedHashSet<>();
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            int dash = part.indexOf('-', 1);
+            if (dash < 0) {
+                nodeIds.add(Integer.parseInt(part));
+            } else {
+                int from = Integer.parseInt(part.substring(0, dash).trim());
+                int to = Integer.parseInt(part.substring(dash + 1).trim());
+                for (int id = from; id <= to; id++) {
+                    nodeIds.add(id);
+                }
             }
-            System.out.println("Shutting down...");
-            System.exit(0);
-        }, "ShutdownTimer");
-        shutdownTimer.setDaemon(true);
-        shutdownTimer.start();
-        System.out.println("Node " + currNodeId + " up and running");
+        }
+        if (nodeIds.isEmpty()) {
+            throw new NumberFormatException("no node ids in " + spec);
+        }
+        return nodeIds;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,30 @@
+package com.os;
+
+import java.io.Serializable;
+
+/**
+ * Where to reach a cluster member; what a joining node announces and what a
+ * {@link ClusterView} lists for every member.
+ */
+public class MemberAddress implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final int nodeId;
+    final String hostName;
+    final int port;
+
+    MemberAddress(int nodeId, String hostName, int port) {
+        this.nodeId = nodeId;
+        this.hostName = hostName;
+        this.port = port;
+    }
+
+    static MemberAddress of(Node node) {
+        return new MemberAddress(node.getNodeId(), node.getHostName(), node.getPort());
+    }
+
+    @Override
+    public String toString() {
+        return nodeId + "@" + hostName + ":" + port;
+    }
+}
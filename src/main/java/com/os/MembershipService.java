@@ -0,0 +1,292 @@
+package com.os;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds and drains nodes while the cluster keeps running. A node started with
+ * {@code -Dmembership.join=true} sends JOIN to the first other node in its config; a
+ * node started with {@code -Dmembership.leaveWhenDone=true} sends LEAVE once its
+ * requests are done instead of waiting for everyone else.
+ *
+ * <p>The lowest member id coordinates one change at a time. It computes the next
+ * {@link ClusterView}, with fresh grid quorums, and sends RECONFIG_PREPARE to the old
+ * and new members. Each stops taking new CS requests and answers RECONFIG_READY once
+ * all of its own requests have been released, so no grant from the old epoch is still
+ * held anywhere. RECONFIG_COMMIT then installs the view and reopens every node.
+ */
+public class MembershipService {
+    static final boolean JOIN_ON_START = Boolean.getBoolean("membership.join");
+    static final boolean LEAVE_WHEN_DONE = Boolean.getBoolean("membership.leaveWhenDone");
+
+    private final Node currNode;
+    private final TCPClient tcpClient = new TCPClient();
+    private final CountDownLatch joined = new CountDownLatch(1);
+    private final CountDownLatch left = new CountDownLatch(1);
+
+    private ClusterView view;                   // null until first needed
+    private int preparedEpoch = 0;
+
+    // Only used on the coordinator.
+    private final Queue<Message> pendingChanges = new ArrayDeque<>();
+    private ClusterView proposed;
+    private final Set<Integer> participants = new HashSet<>();
+    private final Set<Integer> readyFrom = new HashSet<>();
+
+    MembershipService(Node node) {
+        this.currNode = node;
+    }
+
+    /**
+     * Asks the cluster to admit this node and blocks until a view including it is
+     * committed. The caller's TCPServer must already be up.
+     *
+     * @throws IllegalStateException if that takes longer than {@link ClusterCoordinator#START_TIMEOUT_MS}
+     */
+    public void join() throws InterruptedException {
+        requireReconfigurable();
+        MemberAddress self = MemberAddress.of(currNode);
+        Node seed = null;
+        for (Node peer : currNode.getNeighbors()) {
+            if (peer.getNodeId() != currNode.getNodeId() && (seed == null || peer.getNodeId() < seed.getNodeId())) {
+                seed = peer;
+            }
+        }
+        if (seed == null) {
+            throw new IllegalStateException("no other node in config to join through");
+        }
+        System.out.println("Membership | Node " + currNode.getNodeId() + " asking node " + seed.getNodeId() + " to join");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ClusterCoordinator.START_TIMEOUT_MS);
+        ClusterCoordinator.sendUntil(tcpClient, seed,
+                new Message(MessageType.JOIN, currNode.getNodeId(), seed.getNodeId(), self), deadline);
+        if (!joined.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            throw new IllegalStateException("no view admitting node " + currNode.getNodeId() + " within "
+                    + ClusterCoordinator.START_TIMEOUT_MS + "ms");
+        }
+    }
+
+    /**
+     * Asks the cluster to drain this node and blocks until a view without it is committed.
+     *
+     * @throws IllegalStateException if that takes longer than {@link ClusterCoordinator#START_TIMEOUT_MS}
+     */
+    public void leave() throws InterruptedException {
+        requireReconfigurable();
+        int coordinatorId = currentView().coordinatorId();
+        System.out.println("Membership | Node " + currNode.getNodeId() + " asking to leave");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ClusterCoordinator.START_TIMEOUT_MS);
+        ClusterCoordinator.sendUntil(tcpClient, currNode.getNodeById(coordinatorId),
+                new Message(MessageType.LEAVE, currNode.getNodeId(), coordinatorId, MemberAddress.of(currNode)), deadline);
+        if (!left.await(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+            throw new IllegalStateException("no view without node " + currNode.getNodeId() + " within "
+                    + ClusterCoordinator.START_TIMEOUT_MS + "ms");
+        }
+    }
+
+    public synchronized void onMessage(Message msg) {
+        switch (msg.type) {
+            case JOIN:
+            case LEAVE:
+                onChangeRequest(msg);
+                break;
+            case RECONFIG_PREPARE:
+                onPrepare(msg);
+                break;
+            case RECONFIG_READY:
+                onReady(msg);
+                break;
+            case RECONFIG_COMMIT:
+                onCommit((ClusterView) msg.info);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void onChangeRequest(Message msg) {
+        ClusterView current = currentView();
+        if (current.coordinatorId() != currNode.getNodeId()) {
+            int coordinatorId = current.coordinatorId();
+            System.out.println("Membership | forwarding " + msg.type + " of " + msg.info + " to node " + coordinatorId);
+            tcpClient.sendMessage(currNode.getNodeById(coordinatorId),
+                    new Message(msg.type, msg.from, coordinatorId, (MemberAddress) msg.info));
+            return;
+        }
+        if (reconfigurable() == null) {
+            System.err.println("Membership | " + currNode.getEngine().getClass().getSimpleName()
+                    + " cannot change membership, ignoring " + msg.type + " from " + msg.from);
+            return;
+        }
+        pendingChanges.add(msg);
+        startNextChange();
+    }
+
+    private void startNextChange() {
+        if (proposed != null || pendingChanges.isEmpty()) {
+            return;
+        }
+        ClusterView current = currentView();
+        Message change = pendingChanges.poll();
+        MemberAddress subject = (MemberAddress) change.info;
+        List<MemberAddress> members = current.memberList();
+        members.removeIf(m -> m.nodeId == subject.nodeId);
+        if (change.type == MessageType.JOIN) {
+            members.add(subject);
+        } else if (members.isEmpty()) {
+            System.err.println("Membership | refusing to drain the last node " + subject.nodeId);
+            startNextChange();
+            return;
+        }
+        proposed = ClusterView.withGridQuorums(current.epoch + 1, members);
+        participants.clear();
+        readyFrom.clear();
+        for (MemberAddress m : current.members) {
+            participants.add(m.nodeId);
+        }
+        participants.add(subject.nodeId);
+        System.out.println("Membership | " + change.type + " of " + subject + ", proposing " + proposed);
+        sendToParticipants(MessageType.RECONFIG_PREPARE, proposed, subject);
+    }
+
+    private void onPrepare(Message msg) {
+        ClusterView next = (ClusterView) msg.info;
+        if (next.epoch <= currentView().epoch || next.epoch <= preparedEpoch) {
+            return;
+        }
+        Reconfigurable engine = reconfigurable();
+        if (engine == null) {
+            // Only a coordinator running another engine would ask; it never gets RECONFIG_READY.
+            System.err.println("Membership | " + currNode.getEngine().getClass().getSimpleName()
+                    + " cannot change membership, ignoring epoch " + next.epoch + " from " + msg.from);
+            return;
+        }
+        preparedEpoch = next.epoch;
+        int coordinatorId = msg.from;
+        System.out.println("Membership | Node " + currNode.getNodeId() + " draining for epoch " + next.epoch);
+        engine.quiesce(() -> tcpClient.sendMessage(currNode.getNodeById(coordinatorId),
+                new Message(MessageType.RECONFIG_READY, currNode.getNodeId(), coordinatorId, next.epoch)));
+    }
+
+    private void onReady(Message msg) {
+        if (proposed == null || (Integer) msg.info != proposed.epoch) {
+            return;
+        }
+        readyFrom.add(msg.from);
+        if (!readyFrom.containsAll(participants)) {
+            return;
+        }
+        ClusterView committed = proposed;
+        proposed = null;
+        System.out.println("Membership | all " + participants.size() + " nodes drained, committing " + committed);
+        // Others first: installing the view here may let this JVM exit.
+        sendToParticipants(MessageType.RECONFIG_COMMIT, committed, null);
+        onCommit(committed);
+        startNextChange();
+    }
+
+    private void onCommit(ClusterView next) {
+        if (next.epoch <= currentView().epoch) {
+            return;
+        }
+        view = next;
+        if (!next.contains(currNode.getNodeId())) {
+            System.out.println("Membership | Node " + currNode.getNodeId() + " drained at epoch " + next.epoch);
+            left.countDown();
+            return;
+        }
+        List<Node> members = new ArrayList<>();
+        for (MemberAddress m : next.members) {
+            members.add(resolve(m));
+        }
+        currNode.setNeighbors(members);
+        currNode.setQuorum(next.quorumOf(currNode.getNodeId()));
+        currNode.setQuorumCandidates(null);
+        System.out.println("Membership | Node " + currNode.getNodeId() + " now at epoch " + next.epoch
+                + " with quorum " + currNode.getQuorum());
+        currNode.getCoordinator().onMembershipChanged();
+        Reconfigurable engine = reconfigurable();
+        if (engine != null) {
+            engine.resume();
+        }
+        joined.countDown();
+    }
+
+    /**
+     * @return the node's engine if membership can change under it, otherwise null
+     */
+    private Reconfigurable reconfigurable() {
+        MutexEngine engine = currNode.getEngine();
+        return engine instanceof Reconfigurable ? (Reconfigurable) engine : null;
+    }
+
+    /**
+     * @throws IllegalStateException if the node's engine cannot change membership
+     */
+    void requireReconfigurable() {
+        if (reconfigurable() == null) {
+            throw new IllegalStateException(currNode.getEngine().getClass().getSimpleName()
+                    + " cannot change membership; joins and drains need -D" + MutexEngine.ENGINE_PROPERTY + "=maekawa");
+        }
+    }
+
+    // Keeps existing Node objects so their addresses and co-hosted inboxes are reused.
+    private Node resolve(MemberAddress m) {
+        if (m.nodeId == currNode.getNodeId()) {
+            return currNode;
+        }
+        Node known = currNode.getNodeById(m.nodeId);
+        if (known == null) {
+            known = LocalNodes.lookup(m.nodeId);
+        }
+        if (known == null) {
+            known = new Node(m.nodeId, m.hostName, m.port, currNode.getMeanInterReqDelay(), currNode.getMeanCsExecTime(),
+                    currNode.getNumReqPerNode(), 0, currNode.getOutputDir());
+        }
+        return known;
+    }
+
+    private void sendToParticipants(MessageType type, ClusterView payload, MemberAddress extra) {
+        for (int id : participants) {
+            if (type == MessageType.RECONFIG_COMMIT && id == currNode.getNodeId()) {
+                continue;
+            }
+            Node dest = currNode.getNodeById(id);
+            if (dest == null && extra != null && extra.nodeId == id) {
+                dest = new Node(extra.nodeId, extra.hostName, extra.port, currNode.getMeanInterReqDelay(),
+                        currNode.getMeanCsExecTime(), currNode.getNumReqPerNode(), 0, currNode.getOutputDir());
+            }
+            if (dest == null) {
+                dest = resolve(addressIn(payload, id));
+            }
+            tcpClient.sendMessage(dest, new Message(type, currNode.getNodeId(), id, payload));
+        }
+    }
+
+    private static MemberAddress addressIn(ClusterView v, int nodeId) {
+        return v.members[v.indexOf(nodeId)];
+    }
+
+    /**
+     * The view this node is running in. Before any change that is the config it was
+     * started with, at epoch 0.
+     */
+    public synchronized ClusterView currentView() {
+        if (view == null) {
+            List<MemberAddress> members = new ArrayList<>();
+            for (Node n : currNode.getNeighbors()) {
+                members.add(MemberAddress.of(n));
+            }
+            if (members.stream().noneMatch(m -> m.nodeId == currNode.getNodeId())) {
+                members.add(MemberAddress.of(currNode));
+            }
+            view = ClusterView.withGridQuorums(0, members);
+        }
+        return view;
+    }
+}
@@ -2,20 +2,14 @@ package com.os;
 
 import java.io.Serializable;
 
-enum MessageType{
-    REQUEST,
-    RELEASE,
-    INQUIRE,
-    RELINQUISH,
-    LOCKED,
-    FAILED
-}
-
 public class Message implements Serializable {
     public MessageType type;
     public int from;
     public int to;
     public Object info;
+    public int arbiterRate = -1;    // REQUESTs/s seen by the sending arbiter, on LOCKED and FAILED
+    public int queueDepth = -1;     // requests waiting at the sending arbiter, on LOCKED, FAILED and INQUIRE
+    public int grantStamp = -1;     // which grant of the sending arbiter, on LOCKED and INQUIRE
 
     public Message(MessageType type, int from, int to, Request req){
         this.type = type;
@@ -24,6 +18,13 @@ public class Message implements Serializable {
         this.info = req;
     }
 
+    public Message(MessageType type, int from, int to, Serializable payload){
+        this.type = type;
+        this.from = from;
+        this.to = to;
+        this.info = payload;
+    }
+
     public Message(MessageType type, int from, int to, int finishingTimestamp){
         this.type = type;
         this.from = from;
@@ -0,0 +1,82 @@
+package com.os;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Protocol messages each node hosted in this JVM has sent, by type, plus the FAILED and
+ * INQUIRE replies its arbiter held back. Written next to the CS log at the end of a run
+ * so runs with and without {@code -Dmaekawa.lazyReplies} can be compared.
+ */
+public final class MessageCounters {
+    private static final Map<Integer, MessageCounters> BY_NODE = new ConcurrentHashMap<>();
+    private static final MessageType[] TYPES = MessageType.values();
+
+    private final AtomicLongArray sent = new AtomicLongArray(TYPES.length);
+    private final AtomicLongArray suppressed = new AtomicLongArray(TYPES.length);
+
+    private MessageCounters() {
+    }
+
+    public static MessageCounters of(int nodeId) {
+        return BY_NODE.computeIfAbsent(nodeId, id -> new MessageCounters());
+    }
+
+    public void recordSent(MessageType type) {
+        sent.incrementAndGet(type.ordinal());
+    }
+
+    public void recordSuppressed(MessageType type) {
+        suppressed.incrementAndGet(type.ordinal());
+    }
+
+    public long sent(MessageType type) {
+        return sent.get(type.ordinal());
+    }
+
+    public long suppressed(MessageType type) {
+        return suppressed.get(type.ordinal());
+    }
+
+    /**
+     * @return "TYPE=count" for every type sent or held back at least once
+     */
+    public String summary(int nodeId) {
+        StringBuilder sb = new StringBuilder("node=" + nodeId);
+        long total = 0;
+        for (MessageType type : TYPES) {
+            long n = sent(type);
+            total += n;
+            if (n > 0) {
+                sb.append(' ').append(type).append('=').append(n);
+            }
+        }
+        sb.append(" total=").append(total);
+        for (MessageType type : TYPES) {
+            if (suppressed(type) > 0) {
+                sb.append(" suppressed_").append(type).append('=').append(suppressed(type));
+            }
+        }
+        return sb.toString();
+    }
+
+    public void report(String outputDir, int nodeId) {
+        String summary = summary(nodeId);
+        System.out.println("MessageCounters | " + summary);
+        File dir = new File(outputDir);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(new File(dir, "messages-" + nodeId + ".txt")))) {
+            bw.write(summary);
+            bw.newLine();
+        } catch (IOException e) {
+            System.err.println("MessageCounters | Failed to write counters: " + e.getMessage());
+        }
+    }
+}
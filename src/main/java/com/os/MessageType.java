@@ -0,0 +1,25 @@
+package com.os;
+
+enum MessageType{
+    REQUEST,
+    RELEASE,
+    INQUIRE,
+    RELINQUISH,
+    LOCKED,
+    FAILED,
+    CANCEL,
+    HELLO,
+    DONE,
+    TOKEN_REQUEST,
+    TOKEN,
+    CONTENTION_REPORT,
+    SWITCH_PREPARE,
+    SWITCH_READY,
+    SWITCH_COMMIT,
+    JOIN,
+    LEAVE,
+    RECONFIG_PREPARE,
+    RECONFIG_READY,
+    RECONFIG_COMMIT,
+    RECOVERED
+}
@@ -0,0 +1,29 @@
+package com.os;
+
+import java.io.Serializable;
+
+/**
+ * Payload of SWITCH_PREPARE and SWITCH_COMMIT: the epoch being entered and the
+ * protocol mode the cluster runs in during it.
+ */
+public class ModeSwitch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    enum Mode {
+        QUORUM,
+        TOKEN
+    }
+
+    final int epoch;
+    final Mode mode;
+
+    ModeSwitch(int epoch, Mode mode) {
+        this.epoch = epoch;
+        this.mode = mode;
+    }
+
+    @Override
+    public String toString() {
+        return "ModeSwitch{epoch=" + epoch + ", mode=" + mode + "}";
+    }
+}
@@ -0,0 +1,79 @@
+package com.os;
+
+/**
+ * A distributed mutual-exclusion algorithm as seen by {@link ApplicationLayer} and
+ * {@link TCPServer}. Pick one per run with {@code -Dmutex.engine=maekawa|suzuki-kasami|raymond|adaptive};
+ * Maekawa is the default.
+ */
+public interface MutexEngine {
+    String ENGINE_PROPERTY = "mutex.engine";
+
+    /**
+     * Blocks until this node holds the critical section.
+     */
+    void csEnter();
+
+    /**
+     * Like {@link #csEnter()} but gives up after {@code timeoutMs}.
+     *
+     * @return true if the node is now in the CS
+     */
+    boolean tryEnter(long timeoutMs);
+
+    /**
+     * Like {@link #csEnter()} for a request of the given class. Engines without priority
+     * support serve it like any other request.
+     */
+    default void csEnter(PriorityClass priority) {
+        csEnter();
+    }
+
+    /**
+     * Like {@link #tryEnter(long)} for a request of the given class.
+     */
+    default boolean tryEnter(long timeoutMs, PriorityClass priority) {
+        return tryEnter(timeoutMs);
+    }
+
+    void csLeave();
+
+    /**
+     * Handles a protocol message addressed to this node.
+     *
+     * @return false if the message type does not belong to this engine
+     */
+    boolean onMessage(Message msg);
+
+    void setOutputDir(String outputDir);
+
+    /**
+     * Starts whatever background work the engine needs once this JVM hosts the node and
+     * it is up. Engines are also built for every other node in the config, which never
+     * get here.
+     */
+    default void start() {
+    }
+
+    /**
+     * Appends this node's requester state for {@link Introspection}, one
+     * {@code kind key=value...} line each. Engines that keep none write nothing.
+     */
+    default void describe(StringBuilder out) {
+    }
+
+    static MutexEngine create(String name, Node node, String outputDir) {
+        if (name == null || name.isEmpty() || name.equalsIgnoreCase("maekawa")) {
+            return new MaekawaProtocol(node, outputDir);
+        }
+        if (name.equalsIgnoreCase("suzuki-kasami")) {
+            return new SuzukiKasamiProtocol(node, outputDir);
+        }
+        if (name.equalsIgnoreCase("raymond")) {
+            return new RaymondProtocol(node, outputDir);
+        }
+        if (name.equalsIgnoreCase("adaptive")) {
+            return new AdaptiveMutexEngine(node, outputDir);
+        }
+        throw new IllegalArgumentException("Unknown " + ENGINE_PROPERTY + ": " + name);
+    }
+}
@@ -0,0 +1,140 @@
+package com.os;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder events for the CS lifecycle and for message handling. Nothing is
+ * recorded unless a recording is running, e.g. one started with the {@code maekawa.jfc}
+ * profile in the project root; until then every event is disabled, is never committed
+ * and usually has its allocation removed by the JIT, so a normal run pays next to
+ * nothing. Events fired per message or per lock hold leave out stack traces.
+ */
+public final class MutexEvents {
+    private MutexEvents() {
+    }
+
+    @Name("com.os.RequestIssued")
+    @Label("Request Issued")
+    @Category({"Mutual Exclusion", "Requester"})
+    @Description("A node sent a new REQUEST to its quorum")
+    public static class RequestIssued extends Event {
+        @Label("Node")
+        int nodeId;
+        @Label("Seqnum")
+        int seqnum;
+        @Label("Priority")
+        String priority;
+        @Label("Quorum Size")
+        int quorumSize;
+    }
+
+    @Name("com.os.GrantReceived")
+    @Label("Grant Received")
+    @Category({"Mutual Exclusion", "Requester"})
+    @Description("From a REQUEST going out until every arbiter in the quorum has granted it")
+    public static class GrantReceived extends Event {
+        @Label("Node")
+        int nodeId;
+        @Label("Seqnum")
+        int seqnum;
+        @Label("Replies")
+        int replies;
+    }
+
+    @Name("com.os.CsWait")
+    @Label("CS Wait")
+    @Category({"Mutual Exclusion", "Requester"})
+    @Description("A thread blocked in csEnter or tryEnter, until it entered or gave up")
+    public static class CsWait extends Event {
+        @Label("Node")
+        int nodeId;
+        @Label("Priority")
+        String priority;
+        @Label("Entered")
+        boolean entered;
+    }
+
+    @Name("com.os.CriticalSection")
+    @Label("Critical Section")
+    @Category({"Mutual Exclusion", "Requester"})
+    @Description("A thread in the CS, from entering to csLeave")
+    public static class CriticalSection extends Event {
+        @Label("Node")
+        int nodeId;
+        @Label("Seqnum")
+        int seqnum;
+        @Label("Local Entry")
+        @Description("Entries on this grant before this one")
+        int servedBefore;
+    }
+
+    @Name("com.os.RequesterLockHeld")
+    @StackTrace(false)
+    @Label("Requester Lock Held")
+    @Category({"Mutual Exclusion", "Requester"})
+    @Description("A message handler or csLeave holding the requester lock")
+    public static class RequesterLockHeld extends Event {
+        @Label("Node")
+        int nodeId;
+        @Label("Operation")
+        String operation;
+    }
+
+    @Name("com.os.MessageSent")
+    @StackTrace(false)
+    @Label("Message Sent")
+    @Category({"Mutual Exclusion", "Transport"})
+    @Description("One message handed to a node in this JVM, a shared-memory ring or TCP, retries included")
+    public static class MessageSent extends Event {
+        @Label("Type")
+        String type;
+        @Label("From")
+        int from;
+        @Label("To")
+        int to;
+        @Label("Transport")
+        String transport;
+        @Label("Attempts")
+        int attempts;
+        @Label("Delivered")
+        boolean delivered;
+    }
+
+    @Name("com.os.SendRetry")
+    @Label("Send Retry")
+    @Category({"Mutual Exclusion", "Transport"})
+    @Description("A TCP send attempt that failed and will be retried after a back-off")
+    public static class SendRetry extends Event {
+        @Label("Type")
+        String type;
+        @Label("To")
+        int to;
+        @Label("Attempt")
+        int attempt;
+        @Label("Back-off")
+        @Timespan(Timespan.MILLISECONDS)
+        long backoffMs;
+        @Label("Error")
+        String error;
+    }
+
+    @Name("com.os.MessageReceived")
+    @StackTrace(false)
+    @Label("Message Received")
+    @Category({"Mutual Exclusion", "Transport"})
+    @Description("A node's handler running for one incoming message")
+    public static class MessageReceived extends Event {
+        @Label("Type")
+        String type;
+        @Label("From")
+        int from;
+        @Label("Node")
+        int nodeId;
+    }
+}
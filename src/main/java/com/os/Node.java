@@ -2,12 +2,7 @@ package com.os;
 
 import java.io.Serializable;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
-
-import static com.os.MessageType.FAILED;
-import static com.os.MessageType.LOCKED;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Node implements Serializable {
     private final int nodeId;
@@ -18,20 +13,16 @@ public class Node implements Serializable {
     private String outputDir = "output";
 
     private final List<Integer> quorum = new ArrayList<>();
-    private final List<Integer> lockedQuoMembers = new ArrayList<>();
-    private List<Node> neighbors = new ArrayList<>();
-
-    private boolean isLocked = false;
-    private Request lockingRequest = null;
-    public ReentrantLock lockNode = new ReentrantLock();
-    private int seqnum = 0;
-    private NodeState nodeState = NodeState.RELEASED;
-
-    private Map<Integer, Message> repliesMap = new ConcurrentHashMap<>();
-    private boolean isInCs = false;
-    private PriorityQueue<Request> waitQueue = new PriorityQueue<>();
-    private MaekawaProtocol mkwp;
-    private final Condition csGrant = lockNode.newCondition();
+    private List<List<Integer>> quorumCandidates = null;
+    private volatile NodeDirectory directory = NodeDirectory.EMPTY;
+
+    private final AtomicInteger seqnum = new AtomicInteger(0);
+    private final Requester requester = new Requester();
+    private final Arbiter arbiter;
+    private final SerialExecutor inbox;
+    private final ClusterCoordinator coordinator = new ClusterCoordinator(this);
+    private final MembershipService membership = new MembershipService(this);
+    private MutexEngine engine;
     private int numReqPerNode;
 
     Node(int nodeId, String hostName, int port, int meanInterReqDelay, int meanCsExecTime, int numReqPerNode, int totalNodes) {
@@ -41,7 +32,9 @@ public class Node implements Serializable {
         this.meanInterReqDelay = meanInterReqDelay;
         this.meanCsExecTime = meanCsExecTime;
         this.numReqPerNode = numReqPerNode;
-        mkwp = new MaekawaProtocol(this);
+        this.arbiter = new Arbiter(this);
+        this.inbox = new SerialExecutor("Inbox-" + nodeId);
+        engine = MutexEngine.create(System.getProperty(MutexEngine.ENGINE_PROPERTY), this, this.outputDir);
     }
 
     Node(int nodeId, String hostName, int port, int meanInterReqDelay, int meanCsExecTime, int numReqPerNode, int totalNodes, String outputDir) {
@@ -52,7 +45,9 @@ public class Node implements Serializable {
         this.meanCsExecTime = meanCsExecTime;
         this.numReqPerNode = numReqPerNode;
         this.outputDir = (outputDir != null && !outputDir.trim().isEmpty()) ? outputDir : "output";
-        mkwp = new MaekawaProtocol(this, this.outputDir);
+        this.arbiter = new Arbiter(this);
+        this.inbox = new SerialExecutor("Inbox-" + nodeId);
+        engine = MutexEngine.create(System.getProperty(MutexEngine.ENGINE_PROPERTY), this, this.outputDir);
     }
 
     public String getOutputDir() {
@@ -61,8 +56,8 @@ public class Node implements Serializable {
 
     public void setOutputDir(String outputDir) {
         this.outputDir = outputDir;
-        if (mkwp != null) {
-            mkwp.setOutputDir(outputDir);
+        if (engine != null) {
+            engine.setOutputDir(outputDir);
         }
     }
 
@@ -79,6 +74,7 @@ public class Node implements Serializable {
     }
 
     public void setQuorum(List<Integer> quo) {
+        this.quorum.clear();
         this.quorum.addAll(quo);
     }
 
@@ -86,6 +82,18 @@ public class Node implements Serializable {
         return this.quorum;
     }
 
+    /**
+     * Quorums this node may use in place of its configured one; the configured quorum
+     * alone unless Main set the ones the Parser found.
+     */
+    public List<List<Integer>> getQuorumCandidates() {
+        return quorumCandidates != null ? quorumCandidates : Collections.singletonList(quorum);
+    }
+
+    public void setQuorumCandidates(List<List<Integer>> quorumCandidates) {
+        this.quorumCandidates = quorumCandidates;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) return true;
@@ -112,142 +120,72 @@ public class Node implements Serializable {
         System.exit(0);
     }
 
+    /**
+     * @return every member of the cluster, this node included
+     */
     public List<Node> getNeighbors() {
-        return neighbors;
+        return directory.nodes();
     }
 
     public void setNeighbors(List<Node> neighbors) {
-        this.neighbors = neighbors;
+        this.directory = new NodeDirectory(new ArrayList<>(neighbors));
     }
 
-    public NodeState getNodeState() {
-        return this.nodeState;
+    public NodeDirectory getDirectory() {
+        return directory;
     }
 
-    public void setNodeState(NodeState nodeState) {
-        this.nodeState = nodeState;
+    public void setDirectory(NodeDirectory directory) {
+        this.directory = directory;
     }
 
     public int getSeqnum() {
-        return this.seqnum;
-    }
-
-    public void incrementSeqNum() {
-        ++this.seqnum;
-    }
-
-    public Map<Integer, Message> getRecdReplies() {
-        return this.repliesMap;
-    }
-
-    public void clearRecdRepliesMap() {
-        System.out.println("Node | clearing replies map...");
-        this.repliesMap.clear();
-        this.lockedQuoMembers.clear();  // Also clear locked members list
+        return this.seqnum.get();
     }
 
-    public void addReplyMessage(Message msg) {
-        this.repliesMap.put(msg.from, msg);
+    /**
+     * Returns the current sequence number for a new request and advances the clock past it.
+     */
+    public int nextSeqnum() {
+        return this.seqnum.getAndIncrement();
     }
 
     public Node getNodeById(int nodeId) {
-        // Also check if it's self
         if (nodeId == this.nodeId) {
             return this;
         }
-        return neighbors.stream()
-                .filter(n -> n.nodeId == nodeId)
-                .findFirst()
-                .orElse(null);
-    }
-
-    public void resetNodeLock() {
-        this.lockingRequest = null;
-        this.isLocked = false;
-    }
-
-    public Request getLockingRequest() {
-        return lockingRequest;
-    }
-
-    public void setLockingRequest(Request lockingRequest) {
-        this.lockingRequest = lockingRequest;
-        if (lockingRequest != null) {
-            setLocked(true);
-        }
-    }
-
-    public boolean isLocked() {
-        return isLocked;
-    }
-
-    public void setLocked(boolean locked) {
-        isLocked = locked;
+        return directory.get(nodeId);
     }
 
-    public boolean didAnyQuorumMemFail() {
-        return repliesMap.values().stream()
-                .anyMatch(reply -> reply.type == FAILED);
+    public MutexEngine getEngine() {
+        return engine;
     }
 
-    public boolean isInCs() {
-        return isInCs;
+    public void setEngine(MutexEngine engine) {
+        this.engine = engine;
     }
 
-    public void setInCs(boolean inCs) {
-        isInCs = inCs;
+    public Requester getRequester() {
+        return requester;
     }
 
-    public PriorityQueue<Request> getWaitQueue() {
-        return waitQueue;
+    public Arbiter getArbiter() {
+        return arbiter;
     }
 
-    public void setWaitQueue(PriorityQueue<Request> waitQueue) {
-        this.waitQueue = waitQueue;
+    /**
+     * Executor on which this node handles its incoming messages, one at a time in arrival order.
+     */
+    public SerialExecutor getInbox() {
+        return inbox;
     }
 
-    public Request popWaitQueue() {
-        return this.waitQueue.poll();
+    public ClusterCoordinator getCoordinator() {
+        return coordinator;
     }
 
-    public Request peekWaitQueue() {
-        return this.waitQueue.peek();
-    }
-
-    public void removeFromWaitQueue(Node nodeThatIsDoneWithCS) {
-        this.waitQueue.removeIf(req -> req.nodeId == nodeThatIsDoneWithCS.getNodeId());
-    }
-
-    public void queueRequest(Request reqToQueue) {
-        this.waitQueue.add(reqToQueue);
-    }
-
-    public List<Integer> getLockedQuoMembers() {
-        return lockedQuoMembers;
-    }
-
-    public void addToLockedMembers(int nodeId) {
-        if (!this.lockedQuoMembers.contains(nodeId)) {
-            this.lockedQuoMembers.add(nodeId);
-        }
-    }
-
-    public MaekawaProtocol getMkwp() {
-        return mkwp;
-    }
-
-    public void setMkwp(MaekawaProtocol mkwp) {
-        this.mkwp = mkwp;
-    }
-
-    public void addReqToOutstandingQueue(Request req) {
-        if (!this.waitQueue.contains(req)) {
-            this.waitQueue.add(req);
-        }
-    }
-
-    public Condition getCsGrant() {
-        return csGrant;
+    public MembershipService getMembership() {
+        return membership;
     }
 
     public int getMeanInterReqDelay() {
@@ -259,19 +197,7 @@ public class Node implements Serializable {
     }
 
     public void seqnumupdate(int other) {
-        this.seqnum = Math.max(this.seqnum, other) + 1;
-    }
-
-    public long countLockedReplies() {
-        return repliesMap.values().stream()
-                .filter(m -> m.type == LOCKED)
-                .count();
-    }
-
-    public long countFailedReplies() {
-        return repliesMap.values().stream()
-                .filter(m -> m.type == FAILED)
-                .count();
+        this.seqnum.accumulateAndGet(other, (curr, recd) -> Math.max(curr, recd) + 1);
     }
 
     public int getNumReqPerNode() {
@@ -282,4 +208,4 @@ public class Node implements Serializable {
     public String toString() {
         return "Node{id=" + nodeId + ", host=" + hostName + ", port=" + port + "}";
     }
-}
\ No newline at end of file
+}
\ No newline at end of file
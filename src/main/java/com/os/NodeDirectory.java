@@ -0,0 +1,74 @@
+package com.os;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Every member of the cluster, indexed by id so that looking up a message's destination
+ * is O(1). Immutable and shared by all nodes built from the same config; a membership
+ * change gives a node a new one.
+ */
+public final class NodeDirectory {
+    static final NodeDirectory EMPTY = new NodeDirectory(Collections.emptyList());
+
+    private final List<Node> nodes;
+    private final int[] sortedIds;
+    private final Node[] byId;                  // used while ids are dense
+    private final Map<Integer, Node> sparse;    // used otherwise
+
+    NodeDirectory(List<Node> nodes) {
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.sortedIds = nodes.stream().mapToInt(Node::getNodeId).sorted().distinct().toArray();
+        int maxId = sortedIds.length == 0 ? -1 : sortedIds[sortedIds.length - 1];
+        if (maxId < 4 * sortedIds.length + 1024) {
+            byId = new Node[maxId + 1];
+            for (Node node : nodes) {
+                byId[node.getNodeId()] = node;
+            }
+            sparse = null;
+        } else {
+            byId = null;
+            sparse = new HashMap<>(nodes.size() * 2);
+            for (Node node : nodes) {
+                sparse.put(node.getNodeId(), node);
+            }
+        }
+    }
+
+    public Node get(int nodeId) {
+        if (byId != null) {
+            return nodeId >= 0 && nodeId < byId.length ? byId[nodeId] : null;
+        }
+        return sparse.get(nodeId);
+    }
+
+    public boolean contains(int nodeId) {
+        return get(nodeId) != null;
+    }
+
+    /**
+     * @return the members in config order
+     */
+    public List<Node> nodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the member ids in ascending order; shared, so callers must not modify it
+     */
+    public int[] sortedIds() {
+        return sortedIds;
+    }
+
+    public int size() {
+        return sortedIds.length;
+    }
+
+    @Override
+    public String toString() {
+        return "NodeDirectory" + Arrays.toString(sortedIds);
+    }
+}
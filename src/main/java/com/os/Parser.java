@@ -1,93 +1,111 @@
 package com.os;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 public class Parser {
+    static final int MAX_QUORUM_CANDIDATES = Integer.getInteger("quorum.candidates", 4);
+    static final String SNAPSHOT_PROPERTY = "config.snapshot";
+    // Checking every alternate against every other node's is cubic in the cluster size.
+    private static final int MAX_NODES_FOR_CANDIDATES = 512;
+    private static final int MAX_NODES_TO_PRINT = 64;
+
     private int numOfNodes;
     private int interRequestDelay;
     private int csExecTime;
     private int numReqPerNode;
     private String outputDir;
 
+    private Topology topology;
+    private final Map<Integer, Integer> indexOfId = new HashMap<>();
     private List<Node> nodesInNetwork = new ArrayList<>();
-    private final Map<Integer, List<Integer>> nodeAndQuorum = new HashMap<>();
+    private NodeDirectory directory = NodeDirectory.EMPTY;
 
     public Parser() {
     }
 
+    /**
+     * Loads the config, from its binary snapshot if one was written for this exact
+     * version of the file, otherwise by parsing the text and writing the snapshot for
+     * the next start. {@code -Dconfig.snapshot} names the snapshot file ("off" to not
+     * use one); it defaults to the config path plus ".snapshot".
+     *
+     * @throws IllegalArgumentException if the config is malformed
+     */
     public void loadFromFile(String path) {
-        try (BufferedReader r = new BufferedReader(new FileReader(path))) {
-            String line;
-            int numOfLines = 0;
-
-            while ((line = r.readLine()) != null) { // readung lines till the parser reads no line
-                line = line.trim();
+        Path source = Paths.get(path);
+        try {
+            long size = Files.size(source);
+            long mtime = Files.getLastModifiedTime(source).toMillis();
+            String snapshotProp = System.getProperty(SNAPSHOT_PROPERTY, path + ".snapshot");
+            Path snapshot = "off".equals(snapshotProp) ? null : Paths.get(snapshotProp);
 
-                if (line.isEmpty() || !Character.isDigit(line.charAt(0))) {
-                    continue;
+            Topology loaded = null;
+            if (snapshot != null) {
+                try {
+                    loaded = Topology.readSnapshot(snapshot, size, mtime);
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Parser | ignoring unreadable snapshot " + snapshot + ": " + e);
                 }
-
-                String[] inputTokens = line.split("\\s+");
-
-                if (numOfLines == 0) {               // try to read only the first line and print -> this is how i config my system
-                    this.numOfNodes = Integer.parseInt(inputTokens[0]);
-                    this.interRequestDelay = Integer.parseInt(inputTokens[1]);
-                    this.csExecTime = Integer.parseInt(inputTokens[2]);
-                    this.numReqPerNode = Integer.parseInt(inputTokens[3]);
-                } else if (numOfLines <= numOfNodes) {
-                    //input shoudl have n lines of node vconfiguration with host and port
-                    Node nodeConfig = new Node(
-                            Integer.parseInt(inputTokens[0]),
-                            inputTokens[1],
-                            Integer.parseInt(inputTokens[2]),
-                            getMeanInterRequestDelay(),
-                            getCsExecTime(),
-                            numReqPerNode,
-                            this.numOfNodes
-                    );
-                    this.nodesInNetwork.add(nodeConfig);
-                } else if (numOfLines > numOfNodes && numOfLines <= 2 * numOfNodes) { //to read only next 'n' lines of network toplogy
-                    int idxNode = numOfLines - numOfNodes - 1;
-                    int currentNodeId = nodesInNetwork.get(idxNode).getNodeId();
-                    List<Integer> quorumOfNode = new ArrayList<>();
-                    for (String inputToken : inputTokens) {
-                        int q = Integer.parseInt(inputToken);
-                        if(q != currentNodeId) quorumOfNode.add(q);
+            }
+            if (loaded != null) {
+                System.out.println("Parser | loaded " + loaded.numOfNodes + " nodes from snapshot " + snapshot);
+            } else {
+                try (InputStream in = new BufferedInputStream(Files.newInputStream(source), 1 << 16)) {
+                    loaded = Topology.parse(in, path);
+                }
+                if (snapshot != null) {
+                    try {
+                        loaded.writeSnapshot(snapshot, size, mtime);
+                    } catch (IOException e) {
+                        System.out.println("Parser | could not write snapshot " + snapshot + ": " + e);
                     }
-                    nodeAndQuorum.put(currentNodeId, quorumOfNode);
                 }
-
-                numOfLines++;
             }
-        } catch (FileNotFoundException e) {
+            useTopology(loaded);
+        } catch (NoSuchFileException | FileNotFoundException e) {
             System.out.println("File not found: " + path);
         } catch (IOException e) {
             System.out.println("Error parsing the file: " + e.getMessage());
         }
     }
 
+    private void useTopology(Topology t) {
+        this.topology = t;
+        this.numOfNodes = t.numOfNodes;
+        this.interRequestDelay = t.interRequestDelay;
+        this.csExecTime = t.csExecTime;
+        this.numReqPerNode = t.numReqPerNode;
+        nodesInNetwork = new ArrayList<>(t.numOfNodes);
+        indexOfId.clear();
+        for (int i = 0; i < t.numOfNodes; i++) {
+            nodesInNetwork.add(new Node(t.ids[i], t.hosts[i], t.ports[i], interRequestDelay, csExecTime,
+                    numReqPerNode, numOfNodes));
+            indexOfId.put(t.ids[i], i);
+        }
+        directory = new NodeDirectory(nodesInNetwork);
+    }
+
+    /**
+     * Gives every node the same directory of all members.
+     */
     public void connectToNeighborasFromCOnfig() {
         for (Node node : nodesInNetwork) {
-            List<Integer> neighborNodeIds = nodeAndQuorum.get(node.getNodeId());
-            System.out.println(neighborNodeIds);
-            List<Node> neighborNodes = new ArrayList<>();
-            if (neighborNodeIds != null) {
-                for (int neighborNodeId : neighborNodeIds) {
-                    Node neighbor = getNodeById(neighborNodeId);
-                    if (neighbor != null) {
-                        neighborNodes.add(neighbor);
-                    }
-                }
-            }
-            node.getNeighbors().clear();
-            node.setNeighbors(nodesInNetwork);
+            node.setDirectory(directory);
         }
     }
 
@@ -111,23 +129,189 @@ public class Parser {
         return nodesInNetwork;
     }
 
+    /**
+     * @return the configured quorum of the node, without the node itself, or null if
+     * the node is not in the config
+     */
     public List<Integer> getQuorumSetOfNode(int nodeId) {
-        return nodeAndQuorum.get(nodeId);
+        Integer idx = indexOfId.get(nodeId);
+        return idx == null ? null : quorumAt(idx);
+    }
+
+    /**
+     * @return for each of {@code nodeIds}, the other configured nodes with the same host
+     * name that are not in {@code nodeIds}; nodes alone on their host are left out
+     */
+    public Map<Integer, List<Integer>> getColocatedNodes(Collection<Integer> nodeIds) {
+        Map<String, List<Integer>> idsByHost = new HashMap<>();
+        for (int i = 0; i < numOfNodes; i++) {
+            idsByHost.computeIfAbsent(topology.hosts[i], h -> new ArrayList<>()).add(topology.ids[i]);
+        }
+        Map<Integer, List<Integer>> colocated = new HashMap<>();
+        for (int nodeId : nodeIds) {
+            Integer idx = indexOfId.get(nodeId);
+            if (idx == null) {
+                continue;
+            }
+            List<Integer> peers = new ArrayList<>();
+            for (int peer : idsByHost.get(topology.hosts[idx])) {
+                if (!nodeIds.contains(peer)) {
+                    peers.add(peer);
+                }
+            }
+            if (!peers.isEmpty()) {
+                colocated.put(nodeId, peers);
+            }
+        }
+        return colocated;
+    }
+
+    private List<Integer> quorumAt(int idx) {
+        List<Integer> quorum = new ArrayList<>(topology.quorumStart[idx + 1] - topology.quorumStart[idx]);
+        for (int j = topology.quorumStart[idx]; j < topology.quorumStart[idx + 1]; j++) {
+            quorum.add(topology.quorumMembers[j]);
+        }
+        return quorum;
+    }
+
+    /**
+     * How many configured quorums each node is an arbiter in, indexed by node id.
+     */
+    public int[] getArbiterLoad() {
+        if (topology == null) {
+            return new int[0];
+        }
+        int maxId = -1;
+        for (int id : topology.ids) {
+            maxId = Math.max(maxId, id);
+        }
+        int[] load = new int[maxId + 1];
+        for (int q : topology.quorumMembers) {
+            load[q]++;
+        }
+        return load;
+    }
+
+    /**
+     * Quorums each node may use interchangeably: its configured one first, then copies
+     * with one member swapped for a node that arbitrates no more quorums. A swap is kept
+     * only if it intersects every candidate already kept for every other node, so any
+     * mix of choices across the cluster still has a common arbiter for each pair.
+     * Clusters above {@value #MAX_NODES_FOR_CANDIDATES} nodes only get their configured
+     * quorum.
+     */
+    public Map<Integer, List<List<Integer>>> computeQuorumCandidates() {
+        Map<Integer, List<List<Integer>>> candidates = new TreeMap<>();
+        if (topology == null) {
+            return candidates;
+        }
+        int n = topology.numOfNodes;
+        for (int i = 0; i < n; i++) {
+            List<List<Integer>> own = new ArrayList<>();
+            own.add(quorumAt(i));
+            candidates.put(topology.ids[i], own);
+        }
+        if (n > MAX_NODES_FOR_CANDIDATES || MAX_QUORUM_CANDIDATES <= 1) {
+            if (n > MAX_NODES_FOR_CANDIDATES) {
+                System.out.println("Parser | " + n + " nodes, using configured quorums only");
+            }
+            return candidates;
+        }
+        int[] load = getArbiterLoad();
+        Map<Integer, List<BitSet>> candidateSets = new HashMap<>();
+        for (Map.Entry<Integer, List<List<Integer>>> entry : candidates.entrySet()) {
+            List<BitSet> ownSets = new ArrayList<>();
+            ownSets.add(toBitSet(entry.getValue().get(0)));
+            candidateSets.put(entry.getKey(), ownSets);
+        }
+        for (Map.Entry<Integer, List<List<Integer>>> entry : candidates.entrySet()) {
+            int nodeId = entry.getKey();
+            List<Integer> configured = entry.getValue().get(0);
+            BitSet configuredSet = candidateSets.get(nodeId).get(0);
+            List<Integer> replacements = new ArrayList<>();
+            for (int id : topology.ids) {
+                if (id != nodeId && !configuredSet.get(id)) {
+                    replacements.add(id);
+                }
+            }
+            replacements.sort(Comparator.comparingInt(id -> load[id]));
+            for (int i = 0; i < configured.size() && entry.getValue().size() < MAX_QUORUM_CANDIDATES; i++) {
+                for (int replacement : replacements) {
+                    if (entry.getValue().size() >= MAX_QUORUM_CANDIDATES || load[replacement] > load[configured.get(i)]) {
+                        break;
+                    }
+                    List<Integer> swapped = new ArrayList<>(configured);
+                    swapped.set(i, replacement);
+                    BitSet swappedSet = toBitSet(swapped);
+                    if (intersectsAllOthers(nodeId, swappedSet, candidateSets)) {
+                        entry.getValue().add(swapped);
+                        candidateSets.get(nodeId).add(swappedSet);
+                    }
+                }
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean intersectsAllOthers(int nodeId, BitSet quorum, Map<Integer, List<BitSet>> candidateSets) {
+        for (Map.Entry<Integer, List<BitSet>> other : candidateSets.entrySet()) {
+            if (other.getKey() == nodeId) {
+                continue;
+            }
+            for (BitSet otherQuorum : other.getValue()) {
+                if (!quorum.intersects(otherQuorum)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static BitSet toBitSet(List<Integer> quorum) {
+        BitSet set = new BitSet();
+        for (int q : quorum) {
+            set.set(q);
+        }
+        return set;
     }
 
     public Node getNodeById(int nodeId){
-        return nodesInNetwork
-                .stream()
-                .filter(node -> node.getNodeId() == nodeId)
-                .findFirst().orElse(null
-                );
+        return directory.get(nodeId);
     }
 
     public void print(){
-        System.out.println(nodeAndQuorum);
+        if (topology == null) {
+            return;
+        }
+        int[] load = getArbiterLoad();
+        int max = 0;
+        int total = 0;
+        for (int l : load) {
+            max = Math.max(max, l);
+            total += l;
+        }
+        if (numOfNodes <= MAX_NODES_TO_PRINT) {
+            Map<Integer, List<Integer>> quorums = new TreeMap<>();
+            for (int i = 0; i < numOfNodes; i++) {
+                quorums.put(topology.ids[i], quorumAt(i));
+            }
+            System.out.println(quorums);
+        }
+        StringBuilder sb = new StringBuilder("Parser | arbiter load:");
+        if (numOfNodes <= MAX_NODES_TO_PRINT) {
+            for (int id = 0; id < load.length; id++) {
+                sb.append(' ').append(id).append('=').append(load[id]);
+            }
+        } else {
+            sb.append(' ').append(numOfNodes).append(" nodes, ").append(total).append(" quorum slots, max ").append(max);
+        }
+        if (total > 0) {
+            sb.append(String.format(" (max/mean %.2f)", max * (double) load.length / total));
+        }
+        System.out.println(sb);
     }
 
     public void setOutputDir(String outputDir) {
         this.outputDir = outputDir;
     }
-}
\ No newline at end of file
+}
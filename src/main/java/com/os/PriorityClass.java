@@ -0,0 +1,17 @@
+package com.os;
+
+/**
+ * Urgency of a CS request. Arbiters serve a more urgent class first among requests
+ * issued within {@link Request#AGING_WINDOW} Lamport ticks of each other; see
+ * {@link Request#compareTo}.
+ */
+public enum PriorityClass {
+    HIGH, NORMAL, LOW;
+
+    /**
+     * @return how many aging windows later than its seqnum a request of this class is ordered
+     */
+    int handicap() {
+        return ordinal();
+    }
+}
@@ -0,0 +1,78 @@
+package com.os;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the quorum for each new round among a node's interchangeable quorums (see
+ * {@link Parser#computeQuorumCandidates()}). Arbiters piggyback their REQUEST rate on
+ * LOCKED and FAILED; a quorum is scored by the summed rate of its members, and the
+ * node only moves when another candidate is clearly less busy. Rates not refreshed
+ * for a while count as zero so an arbiter the node stopped using gets tried again.
+ * Turned off with {@code -Dquorum.rebalance=false}. Guarded by the requester lock.
+ */
+public class QuorumBalancer {
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("quorum.rebalance", "true"));
+    private static final long STALE_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final double SWITCH_MARGIN = 0.8;
+
+    private final int nodeId;
+    private final List<List<Integer>> candidates;
+    private final Map<Integer, Integer> rates = new HashMap<>();
+    private final Map<Integer, Long> seenAt = new HashMap<>();
+    private List<Integer> current;
+
+    QuorumBalancer(int nodeId, List<List<Integer>> candidates) {
+        this.nodeId = nodeId;
+        this.candidates = candidates;
+        this.current = candidates.get(0);
+        System.out.println("QuorumBalancer | Node " + nodeId + " quorum candidates: " + candidates);
+    }
+
+    public void observe(int arbiterId, int requestRate) {
+        if (requestRate < 0) {
+            return;
+        }
+        rates.put(arbiterId, requestRate);
+        seenAt.put(arbiterId, System.nanoTime());
+    }
+
+    public List<Integer> choose() {
+        if (!ENABLED || candidates.size() < 2) {
+            return current;
+        }
+        long now = System.nanoTime();
+        List<Integer> best = current;
+        long bestScore = score(current, now);
+        for (List<Integer> candidate : candidates) {
+            long candidateScore = score(candidate, now);
+            if (candidateScore < bestScore) {
+                best = candidate;
+                bestScore = candidateScore;
+            }
+        }
+        if (best != current && bestScore < score(current, now) * SWITCH_MARGIN) {
+            System.out.println("QuorumBalancer | Node " + nodeId + " moving from quorum " + current + " to " + best);
+            current = best;
+        }
+        return current;
+    }
+
+    private long score(List<Integer> quorum, long now) {
+        long sum = 0;
+        for (int q : quorum) {
+            sum += rateOf(q, now);
+        }
+        return sum;
+    }
+
+    private long rateOf(int arbiterId, long now) {
+        Long at = seenAt.get(arbiterId);
+        if (at == null || now - at > STALE_NANOS) {
+            return 0;
+        }
+        return rates.get(arbiterId);
+    }
+}
@@ -0,0 +1,164 @@
+package com.os;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.os.MessageType.FAILED;
+import static com.os.MessageType.LOCKED;
+
+/**
+ * One quorum acquisition by this node: its REQUEST, the quorum it went to, the reply and any deferred INQUIRE
+ * from each arbiter, and the local threads it lets into the CS one after another once
+ * every arbiter has granted it. Guarded by the owning {@link Requester}'s lock.
+ */
+public class QuorumRound {
+    final Request request;
+    final List<Integer> quorum;
+    private final Map<Integer, Message> replies = new HashMap<>();
+    private final Map<Integer, Message> deferredInquiries = new HashMap<>();
+    private final Map<Integer, Integer> relinquishedGrants = new HashMap<>();
+    private final ArrayDeque<Thread> waiters = new ArrayDeque<>();
+    private boolean granted = false;
+    private int served = 0;
+    private final long issuedNanos = System.nanoTime();
+    // Spans the REQUEST to the last grant; committed when the round is granted.
+    final MutexEvents.GrantReceived grantEvent = new MutexEvents.GrantReceived();
+
+    QuorumRound(Request request, List<Integer> quorum) {
+        this.request = request;
+        this.quorum = quorum;
+        grantEvent.begin();
+    }
+
+    public boolean isGranted() {
+        return granted;
+    }
+
+    public void setGranted(boolean granted) {
+        this.granted = granted;
+    }
+
+    public void addReply(Message msg) {
+        replies.put(msg.from, msg);
+    }
+
+    public Message getReply(int arbiterId) {
+        return replies.get(arbiterId);
+    }
+
+    public long countLockedReplies() {
+        return replies.values().stream().filter(m -> m.type == LOCKED).count();
+    }
+
+    public long countFailedReplies() {
+        return replies.values().stream().filter(m -> m.type == FAILED).count();
+    }
+
+    public Map<Integer, Message> getDeferredInquiries() {
+        return deferredInquiries;
+    }
+
+    /**
+     * Remembers the newest grant of an arbiter this round gave back, identified by the
+     * stamp its INQUIRE carried.
+     */
+    public void markRelinquished(int arbiterId, int grantStamp) {
+        relinquishedGrants.merge(arbiterId, grantStamp, Math::max);
+    }
+
+    /**
+     * @return true if a LOCKED with this stamp is for a grant already given back, so it
+     * arrived after the INQUIRE that took it away
+     */
+    public boolean wasRelinquished(int arbiterId, int grantStamp) {
+        Integer relinquished = relinquishedGrants.get(arbiterId);
+        return relinquished != null && grantStamp <= relinquished;
+    }
+
+    /**
+     * Drops everything heard from an arbiter that restarted, which answers the REQUEST
+     * again from its log.
+     */
+    public void forgetArbiter(int arbiterId) {
+        replies.remove(arbiterId);
+        deferredInquiries.remove(arbiterId);
+        relinquishedGrants.remove(arbiterId);
+    }
+
+    public void addWaiter(Thread thread) {
+        waiters.add(thread);
+    }
+
+    /**
+     * @return false if the thread was not waiting on this round
+     */
+    public boolean removeWaiter(Thread thread) {
+        return waiters.remove(thread);
+    }
+
+    public boolean isNextWaiter(Thread thread) {
+        return waiters.peek() == thread;
+    }
+
+    public boolean hasWaiters() {
+        return !waiters.isEmpty();
+    }
+
+    public int waiterCount() {
+        return waiters.size();
+    }
+
+    /**
+     * Moves every local thread still waiting here to the front of another round, keeping
+     * their order, since they have waited longer than anyone queued there.
+     */
+    public void moveWaitersTo(QuorumRound next) {
+        while (!waiters.isEmpty()) {
+            next.waiters.addFirst(waiters.pollLast());
+        }
+    }
+
+    public void recordServed() {
+        served++;
+    }
+
+    /**
+     * @return how many local threads have entered the CS on this round's grant
+     */
+    public int servedCount() {
+        return served;
+    }
+
+    /**
+     * One {@code round} line for {@link Introspection}: the request, how long ago it went
+     * out, and which arbiters answered it how.
+     */
+    void describe(StringBuilder out, String role) {
+        out.append("round seq=").append(request.seqnum)
+                .append(" class=").append(request.priority)
+                .append(" role=").append(role)
+                .append(" granted=").append(granted)
+                .append(" age=").append(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - issuedNanos))
+                .append(" quorum=").append(Introspection.join(quorum))
+                .append(" locked=").append(Introspection.join(repliedWith(LOCKED)))
+                .append(" failed=").append(Introspection.join(repliedWith(FAILED)))
+                .append(" inquired=").append(Introspection.join(deferredInquiries.keySet()))
+                .append(" waiters=").append(waiters.size())
+                .append(" served=").append(served)
+                .append('\n');
+    }
+
+    private List<Integer> repliedWith(MessageType type) {
+        List<Integer> arbiters = new ArrayList<>();
+        for (Message reply : replies.values()) {
+            if (reply.type == type) {
+                arbiters.add(reply.from);
+            }
+        }
+        return arbiters;
+    }
+}
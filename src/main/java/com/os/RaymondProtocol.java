@@ -0,0 +1,215 @@
+package com.os;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Raymond's tree algorithm: nodes form a static spanning tree (a binary heap over the
+ * sorted node ids) and each points towards the current token holder. Requests and
+ * the token travel only along tree edges, so a CS costs O(log N) messages.
+ */
+public class RaymondProtocol implements MutexEngine {
+    private static final int NO_NODE = -1;
+
+    private final Node currNode;
+    private final TCPClient tcpClient = new TCPClient();
+    private String outputDir;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition privileged = lock.newCondition();
+    private final Condition localTurn = lock.newCondition();
+    private boolean localBusy = false;      // a local thread is requesting or in the CS
+    private int holder = NO_NODE;           // self when this node has the token, else the tree neighbor towards it
+    private final ArrayDeque<Integer> requestQ = new ArrayDeque<>();
+    private boolean asked = false;
+    private boolean usingCs = false;
+
+    RaymondProtocol(Node node, String outputDir) {
+        this.currNode = node;
+        this.outputDir = outputDir;
+    }
+
+    @Override
+    public void setOutputDir(String outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    @Override
+    public void csEnter() {
+        lock.lock();
+        boolean ownsTurn = false;
+        try {
+            while (localBusy) {
+                localTurn.await();
+            }
+            localBusy = ownsTurn = true;
+            ensureInit();
+            requestQ.add(currNode.getNodeId());
+            assignPrivilege();
+            makeRequest();
+            while (!usingCs) {
+                System.out.println("Raymond | waiting for token via " + holder);
+                privileged.await();
+            }
+            CsLog.write(outputDir, currNode.getNodeId(), "ENTER");
+        } catch (InterruptedException e) {
+            System.out.println("Raymond | CS entry interrupted");
+            if (ownsTurn) {
+                withdraw();
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean tryEnter(long timeoutMs) {
+        lock.lock();
+        boolean ownsTurn = false;
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (localBusy) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = localTurn.awaitNanos(remainingNanos);
+            }
+            localBusy = ownsTurn = true;
+            ensureInit();
+            requestQ.add(currNode.getNodeId());
+            assignPrivilege();
+            makeRequest();
+            while (!usingCs) {
+                if (remainingNanos <= 0) {
+                    System.out.println("Raymond | giving up on token");
+                    withdraw();
+                    return false;
+                }
+                remainingNanos = privileged.awaitNanos(remainingNanos);
+            }
+            CsLog.write(outputDir, currNode.getNodeId(), "ENTER");
+            return true;
+        } catch (InterruptedException e) {
+            System.out.println("Raymond | CS entry interrupted");
+            if (ownsTurn) {
+                withdraw();
+            }
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void csLeave() {
+        lock.lock();
+        try {
+            System.out.println("Raymond | Node " + currNode.getNodeId() + " leaving CS");
+            CsLog.write(outputDir, currNode.getNodeId(), "EXIT");
+            usingCs = false;
+            localBusy = false;
+            localTurn.signal();
+            assignPrivilege();
+            makeRequest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean onMessage(Message msg) {
+        switch (msg.type) {
+            case TOKEN_REQUEST:
+                onTokenRequest(msg);
+                return true;
+            case TOKEN:
+                onToken(msg);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void onTokenRequest(Message msg) {
+        lock.lock();
+        try {
+            ensureInit();
+            System.out.println("Raymond | Node " + currNode.getNodeId() + " got request from " + msg.from);
+            requestQ.add(msg.from);
+            assignPrivilege();
+            makeRequest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onToken(Message msg) {
+        lock.lock();
+        try {
+            ensureInit();
+            System.out.println("Raymond | Node " + currNode.getNodeId() + " received token from " + msg.from);
+            holder = currNode.getNodeId();
+            assignPrivilege();
+            makeRequest();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops this node's own entry so the token is never handed to it for a request it
+     * no longer wants. A request already forwarded up the tree still brings the token
+     * here, and assignPrivilege passes it on to whoever else is queued. Also lets the
+     * next local thread have its turn.
+     */
+    private void withdraw() {
+        if (!usingCs) {
+            requestQ.removeFirstOccurrence(currNode.getNodeId());
+        }
+        localBusy = false;
+        localTurn.signal();
+    }
+
+    private void assignPrivilege() {
+        int self = currNode.getNodeId();
+        if (holder != self || usingCs || requestQ.isEmpty()) {
+            return;
+        }
+        int next = requestQ.poll();
+        asked = false;
+        if (next == self) {
+            usingCs = true;
+            privileged.signalAll();
+        } else {
+            holder = next;
+            System.out.println("Raymond | Node " + self + " passing token to " + next);
+            tcpClient.sendMessage(currNode.getNodeById(next), new Message(MessageType.TOKEN, self, next, null));
+        }
+    }
+
+    private void makeRequest() {
+        int self = currNode.getNodeId();
+        if (holder == self || requestQ.isEmpty() || asked) {
+            return;
+        }
+        asked = true;
+        System.out.println("Raymond | Node " + self + " asking " + holder + " for the token");
+        tcpClient.sendMessage(currNode.getNodeById(holder), new Message(MessageType.TOKEN_REQUEST, self, holder, null));
+    }
+
+    // The tree is a binary heap over the sorted node ids, rooted at the lowest id which
+    // starts with the token; every other node initially points at its parent.
+    private void ensureInit() {
+        if (holder != NO_NODE) {
+            return;
+        }
+        int[] ids = currNode.getDirectory().sortedIds();
+        int pos = Arrays.binarySearch(ids, currNode.getNodeId());
+        holder = pos <= 0 ? currNode.getNodeId() : ids[(pos - 1) / 2];
+    }
+}
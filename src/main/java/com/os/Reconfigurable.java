@@ -0,0 +1,18 @@
+package com.os;
+
+/**
+ * A {@link MutexEngine} that {@link MembershipService} can change the cluster under.
+ * Only Maekawa is one; with any other engine, joins and drains are refused.
+ */
+public interface Reconfigurable {
+    /**
+     * Holds back new CS requests and runs {@code onDrained} once none of this node's
+     * requests is in flight any more, possibly on the calling thread.
+     */
+    void quiesce(Runnable onDrained);
+
+    /**
+     * Lets requests through again after {@link #quiesce}, using the node's current quorum.
+     */
+    void resume();
+}
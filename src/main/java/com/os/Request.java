@@ -4,37 +4,65 @@ import java.io.Serializable;
 import java.util.Objects;
 
 public class Request implements Comparable<Request>, Serializable {
+    /**
+     * Lamport ticks a request may be overtaken by a more urgent class. Must be the same
+     * on every node, or arbiters would disagree on the order of requests.
+     */
+    static final int AGING_WINDOW = Integer.getInteger("priority.agingWindow", 32);
+
     int seqnum;
     int nodeId;
+    PriorityClass priority = PriorityClass.NORMAL;
 
     Request(int lampClock, int nodeId) {
         this.seqnum = lampClock;
         this.nodeId = nodeId;
     }
 
+    Request(int lampClock, int nodeId, PriorityClass priority) {
+        this.seqnum = lampClock;
+        this.nodeId = nodeId;
+        this.priority = priority;
+    }
+
     Request() {
     }
 
+    /**
+     * Orders by {@link #agedSeqnum()}, then class, then node id. A request of a less urgent
+     * class therefore goes after more urgent ones issued up to {@link #AGING_WINDOW} ticks
+     * per class step after it, but ahead of anything issued later, so it is never starved.
+     * The order only depends on the request, so every arbiter agrees on it.
+     */
     @Override
     public int compareTo(Request other) {
-        // First compare by sequence number - lower seqnum = higher priority
-        if (this.seqnum != other.seqnum) {
-            return Integer.compare(this.seqnum, other.seqnum);
+        if (this.agedSeqnum() != other.agedSeqnum()) {
+            return Long.compare(this.agedSeqnum(), other.agedSeqnum());
+        }
+        if (this.priority != other.priority) {
+            return Integer.compare(this.priority.handicap(), other.priority.handicap());
         }
         // Tie-breaker: lower nodeId = higher priority
         return Integer.compare(this.nodeId, other.nodeId);
     }
 
+    /**
+     * @return the seqnum this request is ordered at: its own, pushed back by one aging
+     * window per class step below {@link PriorityClass#HIGH}
+     */
+    long agedSeqnum() {
+        return (long) seqnum + (long) priority.handicap() * AGING_WINDOW;
+    }
+
     /**
      * Returns true if this request has higher priority than (precedes) the other request.
-     * Lower (seqnum, nodeId) = higher priority
      */
     public boolean precedes(Request other) {
         return this.compareTo(other) < 0;
     }
 
     /**
-     * Returns the request with higher priority (lower seqnum, then lower nodeId)
+     * Returns the request with higher priority, see {@link #compareTo}
      */
     public Request whoHasPriority(Request otherReq) {
         return this.precedes(otherReq) ? this : otherReq;
@@ -55,6 +83,6 @@ public class Request implements Comparable<Request>, Serializable {
 
     @Override
     public String toString() {
-        return "Request{seqnum=" + seqnum + ", nodeId=" + nodeId + "}";
+        return "Request{seqnum=" + seqnum + ", nodeId=" + nodeId + ", priority=" + priority + "}";
     }
 }
\ No newline at end of file
@@ -0,0 +1,201 @@
+package com.os;
+
+import java.util.Arrays;
+
+/**
+ * Min-heap of the requests waiting at an arbiter, ordered like {@link Request#compareTo}.
+ * Each entry is (aged seqnum, class, nodeId) packed into one long, and a node has at most
+ * one entry, whose heap position is tracked so duplicate checks are O(1) and removal is
+ * O(log n). Once the arrays have grown to the cluster size, offer/poll/remove allocate nothing.
+ */
+public class RequestHeap {
+    static final long EMPTY = -1L;
+    private static final int NODE_BITS = 24;
+    private static final long NODE_MASK = (1L << NODE_BITS) - 1;
+    private static final int CLASS_BITS = 2;
+    private static final long CLASS_MASK = (1L << CLASS_BITS) - 1;
+    private static final PriorityClass[] CLASSES = PriorityClass.values();
+
+    private long[] heap = new long[16];
+    private int[] slotOfNode = new int[16];   // heap index + 1, 0 when the node has no entry
+    private int size = 0;
+
+    static long pack(int seqnum, int nodeId, PriorityClass priority) {
+        long aged = (long) seqnum + (long) priority.handicap() * Request.AGING_WINDOW;
+        return (aged << (CLASS_BITS + NODE_BITS)) | ((long) priority.ordinal() << NODE_BITS) | nodeId;
+    }
+
+    static int seqnumOf(long key) {
+        return (int) ((key >>> (CLASS_BITS + NODE_BITS)) - (long) priorityOf(key).handicap() * Request.AGING_WINDOW);
+    }
+
+    static int nodeIdOf(long key) {
+        return (int) (key & NODE_MASK);
+    }
+
+    static PriorityClass priorityOf(long key) {
+        return CLASSES[(int) ((key >>> NODE_BITS) & CLASS_MASK)];
+    }
+
+    static long keyOf(Request req) {
+        return pack(req.seqnum, req.nodeId, req.priority);
+    }
+
+    static Request toRequest(long key) {
+        return new Request(seqnumOf(key), nodeIdOf(key), priorityOf(key));
+    }
+
+    /**
+     * Queues the request unless it is already queued. A different request from the
+     * same node replaces the old entry, since a node only ever waits on one request.
+     *
+     * @return false if this exact request was already queued
+     */
+    public boolean offer(int seqnum, int nodeId, PriorityClass priority) {
+        ensureNode(nodeId);
+        long key = pack(seqnum, nodeId, priority);
+        int slot = slotOfNode[nodeId];
+        if (slot != 0) {
+            int idx = slot - 1;
+            long old = heap[idx];
+            if (old == key) {
+                return false;
+            }
+            heap[idx] = key;
+            if (key < old) {
+                siftUp(idx);
+            } else {
+                siftDown(idx);
+            }
+            return true;
+        }
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        heap[size] = key;
+        slotOfNode[nodeId] = size + 1;
+        siftUp(size++);
+        return true;
+    }
+
+    public boolean offer(Request req) {
+        return offer(req.seqnum, req.nodeId, req.priority);
+    }
+
+    /**
+     * @return the highest-priority key, or {@link #EMPTY}
+     */
+    public long peekKey() {
+        return size == 0 ? EMPTY : heap[0];
+    }
+
+    /**
+     * Removes and returns the highest-priority key, or {@link #EMPTY}.
+     */
+    public long pollKey() {
+        if (size == 0) {
+            return EMPTY;
+        }
+        long top = heap[0];
+        removeAt(0);
+        return top;
+    }
+
+    /**
+     * @return the key queued for the node, or {@link #EMPTY}
+     */
+    public long keyOfNode(int nodeId) {
+        if (nodeId >= slotOfNode.length || slotOfNode[nodeId] == 0) {
+            return EMPTY;
+        }
+        return heap[slotOfNode[nodeId] - 1];
+    }
+
+    public boolean containsNode(int nodeId) {
+        return keyOfNode(nodeId) != EMPTY;
+    }
+
+    public boolean removeNode(int nodeId) {
+        if (nodeId >= slotOfNode.length || slotOfNode[nodeId] == 0) {
+            return false;
+        }
+        removeAt(slotOfNode[nodeId] - 1);
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a copy of every queued key, in no particular order
+     */
+    public long[] keys() {
+        return Arrays.copyOf(heap, size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void removeAt(int idx) {
+        slotOfNode[nodeIdOf(heap[idx])] = 0;
+        int last = --size;
+        if (idx == last) {
+            return;
+        }
+        long moved = heap[last];
+        heap[idx] = moved;
+        slotOfNode[nodeIdOf(moved)] = idx + 1;
+        siftDown(idx);
+        if (heap[idx] == moved) {
+            siftUp(idx);
+        }
+    }
+
+    private void siftUp(int idx) {
+        long key = heap[idx];
+        while (idx > 0) {
+            int parent = (idx - 1) >>> 1;
+            long parentKey = heap[parent];
+            if (parentKey <= key) {
+                break;
+            }
+            place(parentKey, idx);
+            idx = parent;
+        }
+        place(key, idx);
+    }
+
+    private void siftDown(int idx) {
+        long key = heap[idx];
+        int half = size >>> 1;
+        while (idx < half) {
+            int child = 2 * idx + 1;
+            int right = child + 1;
+            if (right < size && heap[right] < heap[child]) {
+                child = right;
+            }
+            if (key <= heap[child]) {
+                break;
+            }
+            place(heap[child], idx);
+            idx = child;
+        }
+        place(key, idx);
+    }
+
+    private void place(long key, int idx) {
+        heap[idx] = key;
+        slotOfNode[nodeIdOf(key)] = idx + 1;
+    }
+
+    private void ensureNode(int nodeId) {
+        if (nodeId < 0 || nodeId > NODE_MASK) {
+            throw new IllegalArgumentException("node id out of range: " + nodeId);
+        }
+        if (nodeId >= slotOfNode.length) {
+            slotOfNode = Arrays.copyOf(slotOfNode, Math.max(nodeId + 1, slotOfNode.length * 2));
+        }
+    }
+}
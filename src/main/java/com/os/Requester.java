@@ -0,0 +1,122 @@
+package com.os;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Requester role of a node: its quorum rounds in flight, keyed by their (seqnum, nodeId)
+ * request, and which local thread is in the CS. At most one round is still collecting
+ * grants and takes new local waiters; at most one other holds every grant and is letting
+ * its waiters in. Guarded by its own lock so that arbiter work on the same node never
+ * waits on it.
+ */
+public class Requester {
+    public final ReentrantLock lock = new ReentrantLock();
+    private final Condition csGrant = lock.newCondition();
+
+    private final Map<Request, QuorumRound> rounds = new HashMap<>();
+    private QuorumRound collectingRound = null;
+    private QuorumRound holdingRound = null;
+    private boolean isInCs = false;
+    private boolean paused = false;
+    private Runnable onDrained = null;
+    private NodeState nodeState = NodeState.RELEASED;
+
+    public Condition getCsGrant() {
+        return csGrant;
+    }
+
+    public NodeState getNodeState() {
+        return this.nodeState;
+    }
+
+    public void setNodeState(NodeState nodeState) {
+        this.nodeState = nodeState;
+    }
+
+    public boolean isInCs() {
+        return isInCs;
+    }
+
+    public void setInCs(boolean inCs) {
+        isInCs = inCs;
+    }
+
+    /**
+     * @return the round for this request, or null if it was released or cancelled
+     */
+    public QuorumRound getRound(Object request) {
+        return rounds.get(request);
+    }
+
+    public Collection<QuorumRound> getRounds() {
+        return rounds.values();
+    }
+
+    public void addRound(QuorumRound round) {
+        rounds.put(round.request, round);
+    }
+
+    public void removeRound(QuorumRound round) {
+        rounds.remove(round.request);
+        if (collectingRound == round) {
+            collectingRound = null;
+        }
+        if (holdingRound == round) {
+            holdingRound = null;
+        }
+    }
+
+    public int getOutstandingRounds() {
+        return rounds.size();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Stops new rounds until {@link #unpause()}; {@code onDrained} runs once the last
+     * outstanding round is gone.
+     */
+    public void pause(Runnable onDrained) {
+        this.paused = true;
+        this.onDrained = onDrained;
+    }
+
+    public void unpause() {
+        this.paused = false;
+        this.onDrained = null;
+    }
+
+    /**
+     * @return the drain callback to run, once, if the node is paused and has no round left
+     */
+    public Runnable takeDrainedCallback() {
+        if (!paused || !rounds.isEmpty() || onDrained == null) {
+            return null;
+        }
+        Runnable callback = onDrained;
+        onDrained = null;
+        return callback;
+    }
+
+    public QuorumRound getCollectingRound() {
+        return collectingRound;
+    }
+
+    public void setCollectingRound(QuorumRound round) {
+        this.collectingRound = round;
+    }
+
+    public QuorumRound getHoldingRound() {
+        return holdingRound;
+    }
+
+    public void setHoldingRound(QuorumRound round) {
+        this.holdingRound = round;
+    }
+}
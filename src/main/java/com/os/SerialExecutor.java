@@ -0,0 +1,57 @@
+package com.os;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs its tasks one at a time, in submission order, on a worker pool shared by every
+ * node in the JVM. Each node's inbox and arbiter loop is one of these, so co-hosted
+ * nodes share threads while each still handles its own work strictly in order.
+ */
+public class SerialExecutor implements Executor {
+    private static final AtomicInteger workerCount = new AtomicInteger();
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Worker-" + workerCount.incrementAndGet());
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final String name;
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private boolean running = false;
+
+    SerialExecutor(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        tasks.add(task);
+        if (!running) {
+            running = true;
+            WORKERS.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println("SerialExecutor | task failed in " + name + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.os;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A single-producer/single-consumer ring of byte records in a memory-mapped file. The
+ * consumer creates the file and keeps a heartbeat in its header; the producer maps the
+ * same file from another process. Read and write positions are ever-growing byte counts
+ * on cache lines of their own, published with release stores through {@link VarHandle}
+ * views of the mapping, so neither side takes a lock or makes a system call per record.
+ *
+ * <p>Layout: header (magic, capacity, heartbeat, closed flag), write position, read
+ * position, then {@code capacity} bytes of records. A record is its length as an int
+ * followed by the bytes, padded to 8; a length of -1 means the rest of the ring is
+ * padding and the next record starts at offset 0.
+ */
+final class ShmRing {
+    private static final int MAGIC = 0x4D4B5247;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int HEARTBEAT_OFFSET = 8;
+    private static final int CLOSED_OFFSET = 16;
+    private static final int WRITE_OFFSET = 64;
+    private static final int READ_OFFSET = 128;
+    private static final int DATA_OFFSET = 192;
+    private static final int WRAP = -1;
+
+    // Header fields are at aligned offsets of a page-aligned mapping, as atomic access needs.
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    final Path path;
+    private final MappedByteBuffer mapped;    // header fields, and keeps the mapping alive
+    private final ByteBuffer data;
+    private final int capacity;
+    private final Object fileKey;
+    private long cachedRead;                  // producer: last read position seen
+    private byte[] record = new byte[256];    // consumer: the last record polled
+
+    private ShmRing(Path path, MappedByteBuffer mapped, Object fileKey) {
+        this.path = path;
+        this.mapped = mapped;
+        this.mapped.order(ByteOrder.nativeOrder());
+        this.capacity = mapped.getInt(CAPACITY_OFFSET);
+        this.fileKey = fileKey;
+        mapped.position(DATA_OFFSET);
+        this.data = mapped.slice().order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Creates an empty ring at {@code path}, replacing any ring left there by an earlier
+     * run. Built in a temporary file and moved into place, so a producer never maps a
+     * half-initialised header.
+     *
+     * @param capacity data bytes, a power of two
+     */
+    static ShmRing create(Path path, int capacity) throws IOException {
+        Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+        try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+            mapped.order(ByteOrder.nativeOrder());
+            mapped.putInt(CAPACITY_OFFSET, capacity);
+            mapped.putLong(HEARTBEAT_OFFSET, System.currentTimeMillis());
+            mapped.putInt(MAGIC_OFFSET, MAGIC);
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return new ShmRing(path, mapped, fileKey(path));
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return the ring a consumer created at {@code path}, or null if there is none
+     */
+    static ShmRing open(Path path) throws IOException {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (ch.size() < DATA_OFFSET) {
+                return null;
+            }
+            MappedByteBuffer mapped = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+            mapped.order(ByteOrder.nativeOrder());
+            int capacity = mapped.getInt(CAPACITY_OFFSET);
+            if (mapped.getInt(MAGIC_OFFSET) != MAGIC || Integer.bitCount(capacity) != 1
+                    || DATA_OFFSET + (long) capacity != ch.size()) {
+                return null;
+            }
+            return new ShmRing(path, mapped, fileKey(path));
+        }
+    }
+
+    static Object fileKey(Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    Object getFileKey() {
+        return fileKey;
+    }
+
+    /**
+     * @return true while the consumer is running and has beaten within {@code staleMs}
+     */
+    boolean isLive(long now, long staleMs) {
+        return (int) INT.getVolatile(mapped, CLOSED_OFFSET) == 0
+                && now - (long) LONG.getAcquire(mapped, HEARTBEAT_OFFSET) < staleMs;
+    }
+
+    void beat(long now) {
+        LONG.setRelease(mapped, HEARTBEAT_OFFSET, now);
+    }
+
+    void close() {
+        INT.setVolatile(mapped, CLOSED_OFFSET, 1);
+    }
+
+    /**
+     * Producer side: appends {@code len} bytes of {@code src}, at most half the capacity.
+     *
+     * @return false if the ring has no room for the record right now
+     */
+    boolean offer(byte[] src, int len) {
+        long write = (long) LONG.get(mapped, WRITE_OFFSET);
+        int pos = (int) (write & (capacity - 1));
+        int size = align(4 + len);
+        int padding = pos + size > capacity ? capacity - pos : 0;
+        long needed = write + padding + size - capacity;
+        if (cachedRead < needed) {
+            cachedRead = (long) LONG.getAcquire(mapped, READ_OFFSET);
+            if (cachedRead < needed) {
+                return false;
+            }
+        }
+        if (padding > 0) {
+            data.putInt(pos, WRAP);
+            pos = 0;
+        }
+        data.position(pos + 4);
+        data.put(src, 0, len);
+        data.putInt(pos, len);
+        LONG.setRelease(mapped, WRITE_OFFSET, write + padding + size);
+        return true;
+    }
+
+    /**
+     * Consumer side: copies the next record into {@link #record()}.
+     *
+     * @return the record's length, or -1 if the ring is empty
+     */
+    int poll() {
+        long read = (long) LONG.get(mapped, READ_OFFSET);
+        if (read == (long) LONG.getAcquire(mapped, WRITE_OFFSET)) {
+            return -1;
+        }
+        int pos = (int) (read & (capacity - 1));
+        int len = data.getInt(pos);
+        if (len == WRAP) {
+            read += capacity - pos;
+            pos = 0;
+            len = data.getInt(0);
+        }
+        if (record.length < len) {
+            record = new byte[Math.max(len, record.length * 2)];
+        }
+        data.position(pos + 4);
+        data.get(record, 0, len);
+        LONG.setRelease(mapped, READ_OFFSET, read + align(4 + len));
+        return len;
+    }
+
+    byte[] record() {
+        return record;
+    }
+
+    private static int align(int n) {
+        return (n + 7) & ~7;
+    }
+}
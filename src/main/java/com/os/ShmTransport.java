@@ -0,0 +1,323 @@
+package com.os;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Carries messages between nodes that the config puts on the same host but that run in
+ * different JVMs, through one {@link ShmRing} per (sender, receiver) pair in a shared
+ * directory instead of a loopback TCP connection per message. Off unless
+ * {@code -Dipc.shm=true}.
+ *
+ * <p>Each JVM creates the rings its hosted nodes receive on at startup and drains them
+ * all on one poller thread, which hands each message to the node's inbox like
+ * {@link TCPServer} does. The poller busy-polls for {@code -Dipc.shmSpinMicros} after
+ * the last message before it starts parking, so a busy node sees sub-microsecond
+ * hand-offs and an idle one does not hold a core. A sender uses a ring only while its
+ * receiver is beating; otherwise, and for any message that does not fit, {@link TCPClient}
+ * falls back to TCP.
+ */
+public final class ShmTransport {
+    static final boolean ENABLED = Boolean.getBoolean("ipc.shm");
+    private static final String DIR = System.getProperty("ipc.shmDir",
+            Files.isDirectory(Paths.get("/dev/shm")) ? "/dev/shm" : System.getProperty("java.io.tmpdir"));
+    private static final int RING_BYTES = Integer.highestOneBit(
+            Math.max(4096, Integer.getInteger("ipc.shmRingBytes", 64 * 1024)));
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(Integer.getInteger("ipc.shmSpinMicros", 50));
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long HEARTBEAT_MS = 100;
+    private static final long STALE_MS = 2000;
+    private static final long PROBE_MS = 500;
+    private static final long FULL_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final byte COMPACT = 0;
+    private static final byte SERIALIZED = 1;
+    private static final byte INFO_NONE = 0;
+    private static final byte INFO_REQUEST = 1;
+    private static final byte INFO_INT = 2;
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final PriorityClass[] CLASSES = PriorityClass.values();
+
+    private static final Map<Long, Outbound> outbound = new ConcurrentHashMap<>();
+    private static final List<Inbound> inbound = new ArrayList<>();
+    private static volatile boolean running = false;
+
+    private ShmTransport() {
+    }
+
+    /**
+     * Creates a ring for every node in {@code colocated} to send to each hosted node on,
+     * and starts draining them.
+     *
+     * @param colocated for each hosted node, the ids of the other nodes on its host that
+     *                  are not hosted in this JVM
+     */
+    public static synchronized void start(List<Node> hostedNodes, Map<Integer, List<Integer>> colocated) {
+        if (!ENABLED || running) {
+            return;
+        }
+        for (Node node : hostedNodes) {
+            List<Integer> peers = colocated.get(node.getNodeId());
+            if (peers == null) {
+                continue;
+            }
+            for (int peer : peers) {
+                Path path = ringPath(peer, node);
+                try {
+                    inbound.add(new Inbound(node, ShmRing.create(path, RING_BYTES)));
+                } catch (IOException e) {
+                    System.err.println("ShmTransport | Cannot create " + path + ": " + e.getMessage());
+                }
+            }
+        }
+        if (inbound.isEmpty()) {
+            return;
+        }
+        running = true;
+        System.out.println("ShmTransport | " + inbound.size() + " rings of " + RING_BYTES + " bytes in " + DIR);
+        Thread poller = new Thread(ShmTransport::pollLoop, "ShmPoller");
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    /**
+     * Marks this JVM's rings closed, so senders go back to TCP at once, and removes them.
+     */
+    public static synchronized void stop() {
+        running = false;
+        for (Inbound in : inbound) {
+            in.ring.close();
+            try {
+                Files.deleteIfExists(in.ring.path);
+            } catch (IOException e) {}
+        }
+    }
+
+    /**
+     * @return true once the message is in the receiver's ring, false if it has to go over
+     * TCP: the nodes are on different hosts, the receiver is not running or not beating,
+     * or its ring stayed full
+     */
+    static boolean send(Node dest, Message msg) {
+        if (!ENABLED) {
+            return false;
+        }
+        Node sender = LocalNodes.lookup(msg.from);
+        if (sender == null || !sender.getHostName().equals(dest.getHostName())) {
+            return false;
+        }
+        Outbound out = outbound.computeIfAbsent(pairKey(msg.from, dest.getNodeId()),
+                key -> new Outbound(ringPath(msg.from, dest)));
+        return out.send(msg);
+    }
+
+    /**
+     * Makes the next send to {@code nodeId} map its rings again. A node restarted sooner
+     * than its old rings go stale would otherwise keep being sent to on rings its previous
+     * JVM left behind.
+     */
+    static void forget(int nodeId) {
+        for (Map.Entry<Long, Outbound> entry : outbound.entrySet()) {
+            if ((int) entry.getKey().longValue() == nodeId) {
+                entry.getValue().reset();
+            }
+        }
+    }
+
+    private static Path ringPath(int from, Node to) {
+        return Paths.get(DIR, "maekawa-" + to.getPort() + "-" + from + "-" + to.getNodeId() + ".ring");
+    }
+
+    private static long pairKey(int from, int to) {
+        return ((long) from << 32) | (to & 0xffffffffL);
+    }
+
+    private static void pollLoop() {
+        Inbound[] rings = inbound.toArray(new Inbound[0]);
+        long lastMessage = System.nanoTime();
+        long lastBeat = 0;
+        while (running) {
+            boolean any = false;
+            for (Inbound in : rings) {
+                int len;
+                while ((len = in.ring.poll()) >= 0) {
+                    any = true;
+                    Message msg = decode(in.ring.record(), len);
+                    if (msg != null) {
+                        TCPServer.deliverLocally(in.node, msg);
+                    }
+                }
+            }
+            long now = System.nanoTime();
+            if (any) {
+                lastMessage = now;
+            } else if (now - lastMessage > SPIN_NANOS) {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+            long nowMs = System.currentTimeMillis();
+            if (nowMs - lastBeat >= HEARTBEAT_MS) {
+                for (Inbound in : rings) {
+                    in.ring.beat(nowMs);
+                }
+                lastBeat = nowMs;
+            }
+        }
+    }
+
+    /**
+     * Protocol messages, whose payload is a {@link Request} or a number, are written field
+     * by field; anything else is Java-serialized.
+     */
+    static int encode(Message msg, ByteBuffer out) throws IOException {
+        out.clear();
+        if (msg.info == null || msg.info instanceof Request || msg.info instanceof Integer) {
+            out.put(COMPACT).put((byte) msg.type.ordinal()).putInt(msg.from).putInt(msg.to)
+                    .putInt(msg.arbiterRate).putInt(msg.queueDepth).putInt(msg.grantStamp);
+            if (msg.info instanceof Request) {
+                Request req = (Request) msg.info;
+                out.put(INFO_REQUEST).putInt(req.seqnum).putInt(req.nodeId).put((byte) req.priority.ordinal());
+            } else if (msg.info instanceof Integer) {
+                out.put(INFO_INT).putInt((Integer) msg.info);
+            } else {
+                out.put(INFO_NONE);
+            }
+            return out.position();
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(SERIALIZED);
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(msg);
+        }
+        if (bytes.size() > out.capacity()) {
+            return -1;
+        }
+        out.put(bytes.toByteArray());
+        return out.position();
+    }
+
+    static Message decode(byte[] record, int len) {
+        ByteBuffer in = ByteBuffer.wrap(record, 0, len);
+        if (in.get() == SERIALIZED) {
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(record, 1, len - 1))) {
+                return (Message) ois.readObject();
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("ShmTransport | Dropping unreadable message: " + e.getMessage());
+                return null;
+            }
+        }
+        MessageType type = TYPES[in.get()];
+        int from = in.getInt();
+        int to = in.getInt();
+        int arbiterRate = in.getInt();
+        int queueDepth = in.getInt();
+        int grantStamp = in.getInt();
+        Message msg;
+        byte info = in.get();
+        if (info == INFO_REQUEST) {
+            msg = new Message(type, from, to, new Request(in.getInt(), in.getInt(), CLASSES[in.get()]));
+        } else if (info == INFO_INT) {
+            msg = new Message(type, from, to, in.getInt());
+        } else {
+            msg = new Message(type, from, to, (Request) null);
+        }
+        msg.arbiterRate = arbiterRate;
+        msg.queueDepth = queueDepth;
+        msg.grantStamp = grantStamp;
+        return msg;
+    }
+
+    private static final class Inbound {
+        final Node node;
+        final ShmRing ring;
+
+        Inbound(Node node, ShmRing ring) {
+            this.node = node;
+            this.ring = ring;
+        }
+    }
+
+    /**
+     * Sending side of one ring. Every thread sending for the same pair goes through its
+     * monitor, which keeps the ring single-producer.
+     */
+    private static final class Outbound {
+        private final Path path;
+        private final ByteBuffer scratch;
+        private ShmRing ring;
+        private long lastProbe;
+
+        Outbound(Path path) {
+            this.path = path;
+            this.scratch = ByteBuffer.allocate(RING_BYTES / 2 - 8);
+        }
+
+        synchronized boolean send(Message msg) {
+            long now = System.currentTimeMillis();
+            if ((ring == null || !ring.isLive(now, STALE_MS)) && !probe(now)) {
+                return false;
+            }
+            int len;
+            try {
+                len = encode(msg, scratch);
+            } catch (IOException | java.nio.BufferOverflowException e) {
+                return false;
+            }
+            if (len < 0) {
+                return false;
+            }
+            byte[] bytes = scratch.array();
+            if (ring.offer(bytes, len)) {
+                return true;
+            }
+            long deadline = System.nanoTime() + FULL_WAIT_NANOS;
+            while (System.nanoTime() < deadline) {
+                Thread.yield();
+                if (ring.offer(bytes, len)) {
+                    return true;
+                }
+            }
+            System.out.println("ShmTransport | Ring to node " + msg.to + " stayed full, using TCP");
+            return false;
+        }
+
+        synchronized void reset() {
+            ring = null;
+            lastProbe = 0;
+        }
+
+        /**
+         * Maps the receiver's ring again if it was recreated since, at most every
+         * {@link #PROBE_MS}.
+         *
+         * @return true if there is a live ring to write to
+         */
+        private boolean probe(long now) {
+            if (now - lastProbe < PROBE_MS) {
+                return false;
+            }
+            lastProbe = now;
+            if (ring == null || !Objects.equals(ring.getFileKey(), ShmRing.fileKey(path))) {
+                try {
+                    ring = ShmRing.open(path);
+                } catch (IOException e) {
+                    ring = null;
+                }
+            }
+            return ring != null && ring.isLive(now, STALE_MS);
+        }
+    }
+}
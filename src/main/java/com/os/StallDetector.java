@@ -0,0 +1,429 @@
+package com.os;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Polls every node's {@link Introspection} endpoint and puts the snapshots together into
+ * the cluster's wait-for graph, where a node waits for whichever node holds the grant of
+ * an arbiter it still needs. Reports a finding once it shows up in {@value #CONFIRM_POLLS}
+ * polls in a row, since the snapshots are not taken at one instant and messages in flight
+ * look like inconsistencies for a moment, and again when it clears:
+ * <ul>
+ * <li>deadlock: nodes that wait on each other in a cycle</li>
+ * <li>lost grant: an arbiter held by a request its node no longer has, or never heard
+ * LOCKED for, or by a node that does not answer</li>
+ * <li>lost request: a round waiting on an arbiter that neither holds nor queues it</li>
+ * <li>idle arbiter: no holder but requests queued</li>
+ * <li>starvation: a round waiting longer than {@code -Dstall.starveMs} (default 10s)</li>
+ * </ul>
+ *
+ * <pre>java -Dintrospect.portOffset=N -cp Node.jar com.os.StallDetector config.txt [intervalMs]</pre>
+ */
+public class StallDetector {
+    static final long STARVE_MS = Long.getLong("stall.starveMs", 10_000L);
+    static final int CONFIRM_POLLS = 2;
+    private static final int SUMMARY_EVERY = 10;
+    private static final int HTTP_TIMEOUT_MS = 2000;
+
+    private final List<Node> nodes;
+    private final ExecutorService fetchers;
+    private final Map<String, Integer> seenPolls = new HashMap<>();
+    final Map<String, String> reported = new TreeMap<>();
+    private final Set<Integer> everUp = new TreeSet<>();
+
+    StallDetector(List<Node> nodes) {
+        this.nodes = nodes;
+        this.fetchers = Executors.newFixedThreadPool(Math.min(16, Math.max(1, nodes.size())), r -> {
+            Thread t = new Thread(r, "StallDetector-fetch");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: java -Dintrospect.portOffset=N com.os.StallDetector <config> [intervalMs]");
+            return;
+        }
+        if (Introspection.PORT_OFFSET <= 0) {
+            System.err.println("err set -Dintrospect.portOffset to what the nodes run with");
+            return;
+        }
+        Parser parser = new Parser();
+        try {
+            parser.loadFromFile(args[0]);
+        } catch (IllegalArgumentException e) {
+            System.err.println("err invalid config " + e.getMessage());
+            return;
+        }
+        if (parser.getAllNodesConfigs().isEmpty()) {
+            System.err.println("err no nodes in " + args[0]);
+            return;
+        }
+        long intervalMs = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        new StallDetector(parser.getAllNodesConfigs()).run(intervalMs);
+    }
+
+    void run(long intervalMs) throws InterruptedException {
+        for (int poll = 1; ; poll++) {
+            Map<Integer, Snapshot> snapshots = fetchAll();
+            if (snapshots.isEmpty() && !everUp.isEmpty()) {
+                System.out.println("StallDetector | No node answers any more, stopping");
+                return;
+            }
+            everUp.addAll(snapshots.keySet());
+            update(analyze(snapshots));
+            if (poll % SUMMARY_EVERY == 0) {
+                System.out.println("StallDetector | " + summary(snapshots));
+            }
+            Thread.sleep(intervalMs);
+        }
+    }
+
+    private Map<Integer, Snapshot> fetchAll() throws InterruptedException {
+        List<Future<Snapshot>> futures = new ArrayList<>();
+        for (Node node : nodes) {
+            futures.add(fetchers.submit((Callable<Snapshot>) () -> fetch(node)));
+        }
+        Map<Integer, Snapshot> snapshots = new TreeMap<>();
+        for (Future<Snapshot> future : futures) {
+            try {
+                Snapshot snapshot = future.get();
+                if (snapshot != null) {
+                    snapshots.put(snapshot.nodeId, snapshot);
+                }
+            } catch (ExecutionException e) {
+                System.err.println("StallDetector | " + e.getCause());
+            }
+        }
+        return snapshots;
+    }
+
+    private static Snapshot fetch(Node node) {
+        try {
+            URL url = new URL("http://" + node.getHostName() + ":" + (node.getPort() + Introspection.PORT_OFFSET) + "/state");
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            conn.setConnectTimeout(HTTP_TIMEOUT_MS);
+            conn.setReadTimeout(HTTP_TIMEOUT_MS);
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(conn.getInputStream(), StandardCharsets.UTF_8))) {
+                return Snapshot.parse(node.getNodeId(), in);
+            } finally {
+                conn.disconnect();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return this poll's findings, keyed so the same problem keeps its key from poll to
+     * poll as long as the requests involved stay the same
+     */
+    Map<String, String> analyze(Map<Integer, Snapshot> snapshots) {
+        Map<String, String> findings = new LinkedHashMap<>();
+        for (Node node : nodes) {
+            if (!snapshots.containsKey(node.getNodeId()) && everUp.contains(node.getNodeId())) {
+                findings.put("down:" + node.getNodeId(), "node " + node.getNodeId() + " does not answer");
+            }
+        }
+        for (Snapshot arbiter : snapshots.values()) {
+            if (!arbiter.arbiterKnown) {
+                continue;
+            }
+            int a = arbiter.nodeId;
+            if (arbiter.holder < 0) {
+                if (!arbiter.queued.isEmpty()) {
+                    int[] head = arbiter.queued.get(0);
+                    findings.put("idle:" + a + ":" + head[0] + ":" + head[1], "idle arbiter: " + a + " is unlocked with "
+                            + arbiter.queued.size() + " queued, first node " + head[0] + " seq " + head[1]);
+                }
+                continue;
+            }
+            String grant = "arbiter " + a + " is held by node " + arbiter.holder + " seq " + arbiter.holderSeq
+                    + " for " + arbiter.heldMs + "ms";
+            String key = a + ":" + arbiter.holder + ":" + arbiter.holderSeq;
+            Snapshot holder = snapshots.get(arbiter.holder);
+            if (holder == null) {
+                findings.put("gone:" + key, "lost grant: " + grant + ", which does not answer");
+            } else if (holder.requesterKnown) {
+                Round round = holder.round(arbiter.holderSeq);
+                if (round == null) {
+                    findings.put("stale:" + key, "lost grant: " + grant + ", which has no such round any more");
+                } else if (!round.locked.contains(a)) {
+                    findings.put("unheard:" + key, "lost grant: " + grant + ", which has no LOCKED from it");
+                }
+            }
+        }
+
+        Map<Integer, Set<Integer>> waitsFor = new TreeMap<>();
+        Map<String, Set<Integer>> via = new HashMap<>();
+        for (Snapshot node : snapshots.values()) {
+            int n = node.nodeId;
+            for (Round round : node.rounds) {
+                if (round.granted) {
+                    continue;
+                }
+                List<Integer> missing = new ArrayList<>();
+                for (int a : round.quorum) {
+                    if (round.locked.contains(a)) {
+                        continue;
+                    }
+                    missing.add(a);
+                    Snapshot arbiter = snapshots.get(a);
+                    if (arbiter == null || !arbiter.arbiterKnown) {
+                        continue;
+                    }
+                    if (arbiter.holder == n && arbiter.holderSeq == round.seq) {
+                        continue;
+                    }
+                    if (arbiter.holder >= 0 && arbiter.holder != n) {
+                        waitsFor.computeIfAbsent(n, k -> new TreeSet<>()).add(arbiter.holder);
+                        via.computeIfAbsent(n + "->" + arbiter.holder, k -> new TreeSet<>()).add(a);
+                    }
+                    if (!arbiter.isQueued(n, round.seq)) {
+                        findings.put("unqueued:" + n + ":" + round.seq + ":" + a, "lost request: node " + n + " seq "
+                                + round.seq + " waits on arbiter " + a + ", which neither holds nor queues it");
+                    }
+                }
+                if (round.ageMs > STARVE_MS) {
+                    findings.put("starving:" + n + ":" + round.seq, "starvation: node " + n + " seq " + round.seq
+                            + " has waited " + round.ageMs + "ms, missing grants from " + missing);
+                }
+            }
+        }
+        for (List<Integer> cycle : stronglyConnected(waitsFor)) {
+            StringBuilder key = new StringBuilder("deadlock");
+            StringBuilder edges = new StringBuilder();
+            for (int n : cycle) {
+                key.append(':').append(n).append('/').append(snapshots.get(n).waitingSeqs());
+                for (int h : waitsFor.getOrDefault(n, new TreeSet<>())) {
+                    if (cycle.contains(h)) {
+                        edges.append(' ').append(n).append("->").append(h).append(" (arbiters ")
+                                .append(via.get(n + "->" + h)).append(')');
+                    }
+                }
+            }
+            findings.put(key.toString(), "deadlock: nodes " + cycle + " wait on each other:" + edges);
+        }
+        return findings;
+    }
+
+    /**
+     * Prints the findings seen {@value #CONFIRM_POLLS} polls in a row that were not
+     * reported yet, and those reported before that are gone.
+     */
+    void update(Map<String, String> findings) {
+        seenPolls.keySet().retainAll(findings.keySet());
+        for (Map.Entry<String, String> finding : findings.entrySet()) {
+            int polls = seenPolls.merge(finding.getKey(), 1, Integer::sum);
+            if (polls >= CONFIRM_POLLS && !reported.containsKey(finding.getKey())) {
+                reported.put(finding.getKey(), finding.getValue());
+                System.out.println("StallDetector | " + finding.getValue());
+            }
+        }
+        reported.entrySet().removeIf(entry -> {
+            if (findings.containsKey(entry.getKey())) {
+                return false;
+            }
+            System.out.println("StallDetector | cleared: " + entry.getValue());
+            return true;
+        });
+    }
+
+    private String summary(Map<Integer, Snapshot> snapshots) {
+        int waiting = 0;
+        int held = 0;
+        int queued = 0;
+        for (Snapshot s : snapshots.values()) {
+            for (Round round : s.rounds) {
+                if (!round.granted) {
+                    waiting++;
+                }
+            }
+            if (s.holder >= 0) {
+                held++;
+            }
+            queued += s.queued.size();
+        }
+        return snapshots.size() + "/" + nodes.size() + " nodes answer, " + waiting + " rounds waiting, " + held
+                + " arbiters held, " + queued + " requests queued, " + reported.size() + " open findings";
+    }
+
+    /**
+     * Tarjan's algorithm.
+     *
+     * @return every set of two or more nodes that can all reach each other, sorted
+     */
+    static List<List<Integer>> stronglyConnected(Map<Integer, Set<Integer>> graph) {
+        List<List<Integer>> components = new ArrayList<>();
+        Map<Integer, Integer> index = new HashMap<>();
+        Map<Integer, Integer> lowLink = new HashMap<>();
+        List<Integer> stack = new ArrayList<>();
+        Set<Integer> onStack = new TreeSet<>();
+        for (int start : graph.keySet()) {
+            if (!index.containsKey(start)) {
+                connect(start, graph, index, lowLink, stack, onStack, components);
+            }
+        }
+        return components;
+    }
+
+    private static void connect(int v, Map<Integer, Set<Integer>> graph, Map<Integer, Integer> index,
+                                Map<Integer, Integer> lowLink, List<Integer> stack, Set<Integer> onStack,
+                                List<List<Integer>> components) {
+        index.put(v, index.size());
+        lowLink.put(v, index.get(v));
+        stack.add(v);
+        onStack.add(v);
+        for (int w : graph.getOrDefault(v, new TreeSet<>())) {
+            if (!index.containsKey(w)) {
+                connect(w, graph, index, lowLink, stack, onStack, components);
+                lowLink.put(v, Math.min(lowLink.get(v), lowLink.get(w)));
+            } else if (onStack.contains(w)) {
+                lowLink.put(v, Math.min(lowLink.get(v), index.get(w)));
+            }
+        }
+        if (lowLink.get(v).equals(index.get(v))) {
+            List<Integer> component = new ArrayList<>();
+            int w;
+            do {
+                w = stack.remove(stack.size() - 1);
+                onStack.remove(w);
+                component.add(w);
+            } while (w != v);
+            if (component.size() > 1) {
+                component.sort(null);
+                components.add(component);
+            }
+        }
+    }
+
+    /**
+     * One node's answer to {@code GET /state}.
+     */
+    static final class Snapshot {
+        final int nodeId;
+        final List<Round> rounds = new ArrayList<>();
+        final List<int[]> queued = new ArrayList<>();     // {node, seq} in service order
+        boolean requesterKnown = false;
+        boolean arbiterKnown = false;
+        int holder = -1;
+        int holderSeq;
+        long heldMs;
+
+        Snapshot(int nodeId) {
+            this.nodeId = nodeId;
+        }
+
+        static Snapshot parse(int nodeId, BufferedReader in) throws IOException {
+            Snapshot s = new Snapshot(nodeId);
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                Map<String, String> kv = new HashMap<>();
+                for (int i = 1; i < parts.length; i++) {
+                    int eq = parts[i].indexOf('=');
+                    if (eq > 0) {
+                        kv.put(parts[i].substring(0, eq), parts[i].substring(eq + 1));
+                    }
+                }
+                switch (parts[0]) {
+                    case "requester":
+                        s.requesterKnown = !kv.containsKey("busy");
+                        break;
+                    case "round":
+                        s.rounds.add(new Round(Integer.parseInt(kv.get("seq")), Boolean.parseBoolean(kv.get("granted")),
+                                Long.parseLong(kv.get("age")), ids(kv.get("quorum")), ids(kv.get("locked"))));
+                        break;
+                    case "arbiter":
+                        s.arbiterKnown = !kv.containsKey("busy");
+                        String holder = kv.get("holder");
+                        if (holder != null && !holder.equals("none")) {
+                            s.holder = Integer.parseInt(holder);
+                            s.holderSeq = Integer.parseInt(kv.get("seq"));
+                            s.heldMs = Long.parseLong(kv.get("held"));
+                        }
+                        break;
+                    case "queued":
+                        s.queued.add(new int[]{Integer.parseInt(kv.get("node")), Integer.parseInt(kv.get("seq"))});
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return s;
+        }
+
+        Round round(int seq) {
+            for (Round round : rounds) {
+                if (round.seq == seq) {
+                    return round;
+                }
+            }
+            return null;
+        }
+
+        boolean isQueued(int node, int seq) {
+            for (int[] q : queued) {
+                if (q[0] == node && q[1] == seq) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        String waitingSeqs() {
+            List<Integer> seqs = new ArrayList<>();
+            for (Round round : rounds) {
+                if (!round.granted) {
+                    seqs.add(round.seq);
+                }
+            }
+            return Introspection.join(seqs);
+        }
+
+        private static List<Integer> ids(String csv) {
+            List<Integer> ids = new ArrayList<>();
+            if (csv != null && !csv.isEmpty()) {
+                for (String id : csv.split(",")) {
+                    ids.add(Integer.parseInt(id));
+                }
+            }
+            return ids;
+        }
+    }
+
+    static final class Round {
+        final int seq;
+        final boolean granted;
+        final long ageMs;
+        final List<Integer> quorum;
+        final List<Integer> locked;
+
+        Round(int seq, boolean granted, long ageMs, List<Integer> quorum, List<Integer> locked) {
+            this.seq = seq;
+            this.granted = granted;
+            this.ageMs = ageMs;
+            this.quorum = quorum;
+            this.locked = locked;
+        }
+    }
+}
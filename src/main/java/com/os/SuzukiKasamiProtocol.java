@@ -0,0 +1,260 @@
+package com.os;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Suzuki-Kasami broadcast algorithm: a requester sends its request number to every
+ * node and enters once the single token reaches it. A CS costs N messages, or none
+ * when the token is already here, with one hop of synchronization delay.
+ */
+public class SuzukiKasamiProtocol implements MutexEngine {
+    private final Node currNode;
+    private final TCPClient tcpClient = new TCPClient();
+    private String outputDir;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition tokenArrived = lock.newCondition();
+    private final Condition localTurn = lock.newCondition();
+    private boolean localBusy = false;      // a local thread is requesting or in the CS
+    private int[] clusterIds;
+    private int[] rn;                       // highest request number seen from each node
+    private SuzukiKasamiToken token;        // non-null only while this node holds it
+    private boolean requesting = false;
+    private boolean inCs = false;
+    private int generation = 0;
+
+    SuzukiKasamiProtocol(Node node, String outputDir) {
+        this.currNode = node;
+        this.outputDir = outputDir;
+    }
+
+    @Override
+    public void setOutputDir(String outputDir) {
+        this.outputDir = outputDir;
+    }
+
+    @Override
+    public void csEnter() {
+        lock.lock();
+        boolean ownsTurn = false;
+        try {
+            while (localBusy) {
+                localTurn.await();
+            }
+            localBusy = ownsTurn = true;
+            requestToken();
+            while (token == null) {
+                System.out.println("SuzukiKasami | waiting for token");
+                tokenArrived.await();
+            }
+            enterCs();
+        } catch (InterruptedException e) {
+            System.out.println("SuzukiKasami | CS entry interrupted");
+            if (ownsTurn) {
+                giveUp();
+            }
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean tryEnter(long timeoutMs) {
+        lock.lock();
+        boolean ownsTurn = false;
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (localBusy) {
+                if (remainingNanos <= 0) {
+                    return false;
+                }
+                remainingNanos = localTurn.awaitNanos(remainingNanos);
+            }
+            localBusy = ownsTurn = true;
+            requestToken();
+            while (token == null) {
+                if (remainingNanos <= 0) {
+                    // The broadcast request cannot be withdrawn; if the token still comes
+                    // for it, onToken passes it straight on.
+                    System.out.println("SuzukiKasami | giving up on token");
+                    giveUp();
+                    return false;
+                }
+                remainingNanos = tokenArrived.awaitNanos(remainingNanos);
+            }
+            enterCs();
+            return true;
+        } catch (InterruptedException e) {
+            System.out.println("SuzukiKasami | CS entry interrupted");
+            if (ownsTurn) {
+                giveUp();
+            }
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void csLeave() {
+        lock.lock();
+        try {
+            System.out.println("SuzukiKasami | Node " + currNode.getNodeId() + " leaving CS");
+            inCs = false;
+            requesting = false;
+            CsLog.write(outputDir, currNode.getNodeId(), "EXIT");
+            passToken();
+            localBusy = false;
+            localTurn.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean onMessage(Message msg) {
+        switch (msg.type) {
+            case TOKEN_REQUEST:
+                onTokenRequest(msg);
+                return true;
+            case TOKEN:
+                onToken(msg);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void onTokenRequest(Message msg) {
+        lock.lock();
+        try {
+            ensureInit();
+            int[] request = (int[]) msg.info;      // {generation, request number}
+            if (request[0] != generation) {
+                return;
+            }
+            int requestNum = request[1];
+            rn[msg.from] = Math.max(rn[msg.from], requestNum);
+            System.out.println("SuzukiKasami | Node " + currNode.getNodeId() + " got request " + requestNum + " from " + msg.from);
+            if (token != null && !inCs && !requesting && rn[msg.from] > token.ln[msg.from]) {
+                sendToken(msg.from);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onToken(Message msg) {
+        lock.lock();
+        try {
+            ensureInit();
+            System.out.println("SuzukiKasami | Node " + currNode.getNodeId() + " received token from " + msg.from);
+            SuzukiKasamiToken incoming = (SuzukiKasamiToken) msg.info;
+            if (incoming.generation != generation) {
+                System.out.println("SuzukiKasami | dropping token of generation " + incoming.generation);
+                return;
+            }
+            token = incoming;
+            if (requesting) {
+                tokenArrived.signalAll();
+            } else {
+                passToken();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void requestToken() {
+        ensureInit();
+        requesting = true;
+        if (token != null) {
+            return;
+        }
+        int requestNum = ++rn[currNode.getNodeId()];
+        System.out.println("SuzukiKasami | Node " + currNode.getNodeId() + " broadcasting request " + requestNum);
+        for (int id : clusterIds) {
+            if (id != currNode.getNodeId()) {
+                tcpClient.sendMessage(currNode.getNodeById(id),
+                        new Message(MessageType.TOKEN_REQUEST, currNode.getNodeId(), id, new int[]{generation, requestNum}));
+            }
+        }
+    }
+
+    /**
+     * Drops this thread's request and lets the next local thread have its turn.
+     */
+    private void giveUp() {
+        requesting = false;
+        localBusy = false;
+        localTurn.signal();
+    }
+
+    private void enterCs() {
+        System.out.println("SuzukiKasami | executing CS now");
+        inCs = true;
+        CsLog.write(outputDir, currNode.getNodeId(), "ENTER");
+    }
+
+    /**
+     * Records this node's request as served, queues every node with an unserved
+     * request and hands the token to the first of them.
+     */
+    private void passToken() {
+        int self = currNode.getNodeId();
+        token.ln[self] = rn[self];
+        for (int id : clusterIds) {
+            if (id != self && rn[id] > token.ln[id] && !token.queue.contains(id)) {
+                token.queue.add(id);
+            }
+        }
+        if (!token.queue.isEmpty()) {
+            sendToken(token.queue.poll());
+        }
+    }
+
+    private void sendToken(int to) {
+        SuzukiKasamiToken outgoing = token;
+        token = null;
+        System.out.println("SuzukiKasami | Node " + currNode.getNodeId() + " passing token to " + to);
+        tcpClient.sendMessage(currNode.getNodeById(to), new Message(MessageType.TOKEN, currNode.getNodeId(), to, outgoing));
+    }
+
+    /**
+     * Forgets all request numbers and the token, as if the cluster had just started.
+     * A token or request from an earlier generation that is still in flight is dropped
+     * on arrival. Only safe while no node is using this engine.
+     */
+    public void reset(int newGeneration) {
+        lock.lock();
+        try {
+            generation = newGeneration;
+            rn = null;
+            token = null;
+            requesting = false;
+            inCs = false;
+            localBusy = false;
+            localTurn.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Neighbors are only known after Parser has connected the nodes, so the arrays are
+    // sized on first use. The lowest node id starts with the token.
+    private void ensureInit() {
+        if (rn != null) {
+            return;
+        }
+        clusterIds = currNode.getDirectory().sortedIds();
+        int idSpace = Math.max(clusterIds[clusterIds.length - 1], currNode.getNodeId()) + 1;
+        rn = new int[idSpace];
+        if (currNode.getNodeId() == clusterIds[0]) {
+            token = new SuzukiKasamiToken(generation, idSpace);
+        }
+    }
+}
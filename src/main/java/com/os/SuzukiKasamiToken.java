@@ -0,0 +1,21 @@
+package com.os;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+
+/**
+ * The single privilege token of {@link SuzukiKasamiProtocol}: the request number of
+ * each node's last completed CS and the nodes queued to receive the token next.
+ */
+public class SuzukiKasamiToken implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final int generation;
+    final int[] ln;
+    final ArrayDeque<Integer> queue = new ArrayDeque<>();
+
+    SuzukiKasamiToken(int generation, int idSpace) {
+        this.generation = generation;
+        this.ln = new int[idSpace];
+    }
+}
@@ -16,7 +16,35 @@ public class TCPClient {
 
     public TCPClient() {}
 
-    public void sendMessage(Node dest, Message msg) {
+    /**
+     * @return true once the message is written, false if every retry failed
+     */
+    public boolean sendMessage(Node dest, Message msg) {
+        MessageCounters.of(msg.from).recordSent(msg.type);
+        if (FaultInjector.ENABLED && msg.from != dest.getNodeId()) {
+            // Faults are injected into TCP, so every message to another node goes that way.
+            return FaultInjector.send(dest, msg, this::sendOverTcp);
+        }
+        MutexEvents.MessageSent event = new MutexEvents.MessageSent();
+        event.begin();
+        Node hostedDest = LocalNodes.lookup(dest.getNodeId());
+        if (hostedDest != null) {
+            TCPServer.deliverLocally(hostedDest, msg);
+            return sent(event, msg, "local", 1, true);
+        }
+        if (ShmTransport.send(dest, msg)) {
+            return sent(event, msg, "shm", 1, true);
+        }
+        return sendOverTcp(dest, msg, event);
+    }
+
+    private boolean sendOverTcp(Node dest, Message msg) {
+        MutexEvents.MessageSent event = new MutexEvents.MessageSent();
+        event.begin();
+        return sendOverTcp(dest, msg, event);
+    }
+
+    private boolean sendOverTcp(Node dest, Message msg, MutexEvents.MessageSent event) {
         int attempt = 0;
         int retryDelay = INITIAL_RETRY_DELAY_MS;
 
@@ -24,6 +52,10 @@ public class TCPClient {
             Socket socket = null;
             try {
                 System.out.println("TCPClient | Attempting to send " + msg.type + " to node " + dest.getNodeId());
+                IOException injected = FaultInjector.failure(msg);
+                if (injected != null) {
+                    throw injected;
+                }
                 socket = new Socket();
                 socket.setReuseAddress(true);
                 socket.setSoTimeout(READ_TIMEOUT_MS);
@@ -34,26 +66,30 @@ public class TCPClient {
                 oos.writeObject(msg);
                 oos.flush();
                 System.out.println("TCPClient | Successfully sent " + msg.type + " to node " + dest.getNodeId());
-                return;
+                return sent(event, msg, "tcp", attempt + 1, true);
             } catch (ConnectException e) {
                 attempt++;
                 System.out.println("TCPClient | Connection refused to node " + dest.getNodeId());
+                retrying(msg, attempt, retryDelay, e);
                 sleep(retryDelay);
                 retryDelay = Math.min(retryDelay * 2, 5000);  // Exponential backoff, cap at 5 seconds
 
             } catch (SocketException e) {
                 if (e.getMessage() != null && e.getMessage().contains("Cannot assign")) {
                     attempt++;
+                    retrying(msg, attempt, retryDelay * 2, e);
                     sleep(retryDelay * 2);
                     retryDelay = Math.min(retryDelay * 2, 5000);
                 } else {
                     attempt++;
+                    retrying(msg, attempt, retryDelay, e);
                     sleep(retryDelay);
                     retryDelay = Math.min(retryDelay * 2, 5000);
                 }
 
             } catch (IOException e) {
                 attempt++;
+                retrying(msg, attempt, retryDelay, e);
                 sleep(retryDelay);
                 retryDelay = Math.min(retryDelay * 2, 5000);
             } finally {
@@ -64,6 +100,34 @@ public class TCPClient {
                 }
             }
         }
+        System.out.println("TCPClient | Gave up sending " + msg.type + " to node " + dest.getNodeId());
+        return sent(event, msg, "tcp", attempt, false);
+    }
+
+    private static boolean sent(MutexEvents.MessageSent event, Message msg, String transport, int attempts,
+                                boolean delivered) {
+        if (event.shouldCommit()) {
+            event.type = msg.type.name();
+            event.from = msg.from;
+            event.to = msg.to;
+            event.transport = transport;
+            event.attempts = attempts;
+            event.delivered = delivered;
+            event.commit();
+        }
+        return delivered;
+    }
+
+    private static void retrying(Message msg, int attempt, int backoffMs, IOException e) {
+        MutexEvents.SendRetry retry = new MutexEvents.SendRetry();
+        if (retry.shouldCommit()) {
+            retry.type = msg.type.name();
+            retry.to = msg.to;
+            retry.attempt = attempt;
+            retry.backoffMs = backoffMs;
+            retry.error = e.toString();
+            retry.commit();
+        }
     }
 
     private void sleep(int ms) {
@@ -74,38 +138,51 @@ public class TCPClient {
         }
     }
 
-    public void sendInquiry(Node from, Node to) {
-        Message inquiry = new Message(INQUIRE, from.getNodeId(), to.getNodeId(), from.getLockingRequest());
+    public void sendInquiry(Node from, Node to, Request lockingReq) {
+        Message inquiry = new Message(INQUIRE, from.getNodeId(), to.getNodeId(), lockingReq);
+        inquiry.queueDepth = from.getArbiter().getQueueDepth();
+        inquiry.grantStamp = from.getArbiter().getGrantStamp();
         System.out.println("TCPClient | Sending INQUIRE from node " + from.getNodeId() + " to node " + to.getNodeId());
         sendMessage(to, inquiry);
     }
 
-    public void sendFailed(Node from, Node requester) {
-        Message failed = new Message(FAILED, from.getNodeId(), requester.getNodeId(), requester.getLockingRequest());
+    public void sendFailed(Node from, Node requester, Request failedReq) {
+        Message failed = new Message(FAILED, from.getNodeId(), requester.getNodeId(), failedReq);
+        failed.arbiterRate = from.getArbiter().getRequestRate();
+        failed.queueDepth = from.getArbiter().getQueueDepth();
         System.out.println("TCPClient | Sending FAILED from node " + from.getNodeId() + " to node " + requester.getNodeId());
         sendMessage(requester, failed);
     }
 
-    public void sendRelinquish(Node from, Node nodeToRelinquishTo) {
+    public void sendRelinquish(Node from, Node nodeToRelinquishTo, Request relinquishedReq) {
         Message relinquish = new Message(RELINQUISH, from.getNodeId(), nodeToRelinquishTo.getNodeId(),
-                nodeToRelinquishTo.getLockingRequest());
+                relinquishedReq);
         System.out.println("TCPClient | Sending RELINQUISH from node " + from.getNodeId()
                 + " to node " + nodeToRelinquishTo.getNodeId());
         sendMessage(nodeToRelinquishTo, relinquish);
     }
 
-    public void sendReleaseToRequester(Node node, Node to) {
-        Message release = new Message(RELEASE, node.getNodeId(), to.getNodeId(), to.getLockingRequest());
+    public void sendReleaseToRequester(Node node, Node to, Request releasedReq) {
+        Message release = new Message(RELEASE, node.getNodeId(), to.getNodeId(), releasedReq);
         System.out.println("TCPClient | Sending RELEASE from node " + node.getNodeId() + " to node " + to.getNodeId());
         sendMessage(to, release);
     }
 
-    public void sendLockedFor(Node node, Node to) {
-        Message locked = new Message(LOCKED, node.getNodeId(), to.getNodeId(), node.getLockingRequest());
+    public void sendLockedFor(Node node, Node to, Request grantedReq) {
+        Message locked = new Message(LOCKED, node.getNodeId(), to.getNodeId(), grantedReq);
+        locked.arbiterRate = node.getArbiter().getRequestRate();
+        locked.queueDepth = node.getArbiter().getQueueDepth();
+        locked.grantStamp = node.getArbiter().getGrantStamp();
         System.out.println("TCPClient | Sending LOCKED from node " + node.getNodeId() + " to node " + to.getNodeId());
         sendMessage(to, locked);
     }
 
+    public void sendCancel(Node from, Node to, Request cancelledReq) {
+        Message cancel = new Message(CANCEL, from.getNodeId(), to.getNodeId(), cancelledReq);
+        System.out.println("TCPClient | Sending CANCEL from node " + from.getNodeId() + " to node " + to.getNodeId());
+        sendMessage(to, cancel);
+    }
+
     public void sendRelease(Node from, Node to) {
         Request releaseMsg = new Request(from.getSeqnum(), from.getNodeId());
         Message msg = new Message(RELEASE, from.getNodeId(), to.getNodeId(), releaseMsg);
@@ -1,17 +1,34 @@
 package com.os;
 
 import java.io.ObjectInputStream;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
 
+/**
+ * Accepts connections for every node hosted in this JVM on one selector thread. Each
+ * accepted connection is read and handled on its node's inbox, so a node still sees
+ * its messages one at a time in the order they were accepted.
+ */
 public class TCPServer implements Runnable {
-    private final Node node;
+    private final List<Node> nodes;
     private volatile boolean running = true;
-    private ServerSocket serverSocket;
+    private Selector selector;
+    private final List<ServerSocketChannel> serverChannels = new ArrayList<>();
 
     public TCPServer(Node node) {
-        this.node = node;
+        this(Collections.singletonList(node));
+    }
+
+    public TCPServer(List<Node> nodes) {
+        this.nodes = nodes;
     }
 
     @Override
@@ -25,47 +42,61 @@ public class TCPServer implements Runnable {
     }
 
     public void startServer() throws Exception {
-        System.out.println("TCPServer | Starting server for node " + node.getNodeId());
-        serverSocket = new ServerSocket();
-        serverSocket.setReuseAddress(true);
-
-        try {
-            serverSocket.bind(new java.net.InetSocketAddress(node.getPort()));
-        } catch (java.net.BindException e) {
-            Thread.sleep(2000);
-            serverSocket.bind(new java.net.InetSocketAddress(node.getPort()));
+        selector = Selector.open();
+        for (Node node : nodes) {
+            System.out.println("TCPServer | Starting server for node " + node.getNodeId());
+            ServerSocketChannel serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            try {
+                serverChannel.bind(new InetSocketAddress(node.getPort()));
+            } catch (java.net.BindException e) {
+                Thread.sleep(2000);
+                serverChannel.bind(new InetSocketAddress(node.getPort()));
+            }
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT, node);
+            serverChannels.add(serverChannel);
+            System.out.println("TCPServer | Node " + node.getNodeId() + " listening on port " + node.getPort());
         }
 
-        System.out.println("TCPServer | Node " + node.getNodeId() + " listening on port " + node.getPort());
-
         while (running) {
-            Socket clientSocket = null;
             try {
-                serverSocket.setSoTimeout(5000);
-                try {
-                    clientSocket = serverSocket.accept();
-                } catch (SocketTimeoutException e) {
+                if (selector.select(5000) == 0) {
                     continue;
                 }
-                clientSocket.setTcpNoDelay(true);
-                clientSocket.setSoTimeout(10000);
-                System.out.println("TCPServer | Accepted connection from " + clientSocket.getRemoteSocketAddress());
-                initClient(clientSocket);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid() || !key.isAcceptable()) {
+                        continue;
+                    }
+                    SocketChannel clientChannel = ((ServerSocketChannel) key.channel()).accept();
+                    if (clientChannel == null) {
+                        continue;
+                    }
+                    clientChannel.configureBlocking(true);
+                    Socket clientSocket = clientChannel.socket();
+                    clientSocket.setTcpNoDelay(true);
+                    clientSocket.setSoTimeout(10000);
+                    System.out.println("TCPServer | Accepted connection from " + clientSocket.getRemoteSocketAddress());
+                    Node node = (Node) key.attachment();
+                    node.getInbox().execute(() -> initClient(node, clientSocket));
+                }
             } catch (Exception e) {
-                System.err.println("TCPServer | Error handling connection: " + e.getMessage());
-            } finally {
-                if (clientSocket != null && !clientSocket.isClosed()) {
-                    try {
-                        clientSocket.close();
-                    } catch (Exception e) {}
+                if (running) {
+                    System.err.println("TCPServer | Error handling connection: " + e.getMessage());
                 }
             }
         }
 
-        System.out.println("TCPServer | Server for node " + node.getNodeId() + " stopped");
+        selector.close();
+        for (Node node : nodes) {
+            System.out.println("TCPServer | Server for node " + node.getNodeId() + " stopped");
+        }
     }
 
-    private void initClient(Socket clientSocket) {
+    private void initClient(Node node, Socket clientSocket) {
         try {
             ObjectInputStream ois = new ObjectInputStream(clientSocket.getInputStream());
             Object obj = ois.readObject();
@@ -73,42 +104,72 @@ public class TCPServer implements Runnable {
             if (obj instanceof Message) {
                 Message msg = (Message) obj;
                 System.out.println("TCPServer | rcvd " + msg.type + " from node " + msg.from);
-                processMessage(msg);
+                processMessage(node, msg);
             } else {}
-        } catch (Exception e) {}
+        } catch (Exception e) {
+        } finally {
+            try {
+                clientSocket.close();
+            } catch (Exception e) {}
+        }
+    }
+
+    /**
+     * Hands a message from a node in this JVM to the destination's inbox, as if it had
+     * arrived over TCP.
+     */
+    static void deliverLocally(Node node, Message msg) {
+        node.getInbox().execute(() -> processMessage(node, msg));
     }
 
-    private void processMessage(Message msg) {
+    private static void processMessage(Node node, Message msg) {
+        MutexEvents.MessageReceived event = new MutexEvents.MessageReceived();
+        event.begin();
+        dispatch(node, msg);
+        if (event.shouldCommit()) {
+            event.type = msg.type.name();
+            event.from = msg.from;
+            event.nodeId = node.getNodeId();
+            event.commit();
+        }
+    }
+
+    private static void dispatch(Node node, Message msg) {
         switch (msg.type) {
-            case REQUEST:
-                node.getMkwp().onRequest(msg);
-                break;
-            case INQUIRE:
-                node.getMkwp().onInquire(msg);
-                break;
-            case RELEASE:
-                node.getMkwp().onRelease(msg);
+            case HELLO:
+                node.getCoordinator().onHello(msg);
                 break;
-            case RELINQUISH:
-                node.getMkwp().onRelinquish(msg);
+            case DONE:
+                node.getCoordinator().onDone(msg);
                 break;
-            case FAILED:
-                node.getMkwp().onFailed(msg);
+            case RECOVERED:
+                ShmTransport.forget(msg.from);
+                node.getCoordinator().onRecovered(msg);
+                node.getEngine().onMessage(msg);
                 break;
-            case LOCKED:
-                node.getMkwp().onLocked(msg);
+            case JOIN:
+            case LEAVE:
+            case RECONFIG_PREPARE:
+            case RECONFIG_READY:
+            case RECONFIG_COMMIT:
+                node.getMembership().onMessage(msg);
                 break;
             default:
-                System.err.println("TCPServer | Unknown message type: " + msg.type);
+                if (!node.getEngine().onMessage(msg)) {
+                    System.err.println("TCPServer | Unknown message type: " + msg.type);
+                }
         }
     }
 
     public void stop() {
         running = false;
-        if (serverSocket != null && !serverSocket.isClosed()) {
+        for (ServerSocketChannel serverChannel : serverChannels) {
             try {
-                serverSocket.close();
+                serverChannel.close();
             } catch (Exception e) {}
         }
+        if (selector != null) {
+            selector.wakeup();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,218 @@
+package com.os;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The contents of a config file in flat arrays: run parameters, one entry per node line
+ * in file order, and every node's quorum (without the node itself) packed into
+ * {@code quorumMembers} between {@code quorumStart[i]} and {@code quorumStart[i + 1]}.
+ *
+ * <p>{@link #parse} validates the file strictly. {@link #writeSnapshot} stores the arrays
+ * in a binary file that {@link #readSnapshot} memory-maps on later startups instead of
+ * parsing the text again.
+ */
+public class Topology {
+    static final int MAX_NODE_ID = (1 << 24) - 1;    // RequestHeap packs node ids into 24 bits
+    private static final int SNAPSHOT_MAGIC = 0x4D4B5450;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_BYTES = 4 + 4 + 8 + 8 + 4 * 5;
+
+    final int numOfNodes;
+    final int interRequestDelay;
+    final int csExecTime;
+    final int numReqPerNode;
+    final int[] ids;
+    final String[] hosts;
+    final int[] ports;
+    final int[] quorumStart;
+    final int[] quorumMembers;
+
+    Topology(int numOfNodes, int interRequestDelay, int csExecTime, int numReqPerNode, int[] ids, String[] hosts,
+             int[] ports, int[] quorumStart, int[] quorumMembers) {
+        this.numOfNodes = numOfNodes;
+        this.interRequestDelay = interRequestDelay;
+        this.csExecTime = csExecTime;
+        this.numReqPerNode = numReqPerNode;
+        this.ids = ids;
+        this.hosts = hosts;
+        this.ports = ports;
+        this.quorumStart = quorumStart;
+        this.quorumMembers = quorumMembers;
+    }
+
+    /**
+     * Reads a config: the "n d c k" line, n node lines "id host port", then n quorum lines
+     * in the same order as the node lines, each listing that node and the members of its
+     * quorum. Fails with the file and line number on anything else, including duplicate
+     * or unknown ids, bad ports and quorum lines that do not name their own node.
+     */
+    static Topology parse(InputStream in, String source) throws IOException {
+        ConfigTokenizer tok = new ConfigTokenizer(in, source);
+        if (!tok.nextLine()) {
+            throw tok.error("missing \"n d c k\" line");
+        }
+        int n = tok.nextInt("number of nodes");
+        int d = tok.nextInt("inter-request delay");
+        int c = tok.nextInt("CS execution time");
+        int k = tok.nextInt("requests per node");
+        tok.endLine("requests per node");
+        if (n <= 0) {
+            throw tok.error("number of nodes must be positive");
+        }
+
+        int[] ids = new int[n];
+        String[] hosts = new String[n];
+        int[] ports = new int[n];
+        Map<Integer, Integer> indexOfId = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            if (!tok.nextLine()) {
+                throw tok.error("expected " + n + " node lines, found " + i);
+            }
+            ids[i] = tok.nextInt("node id");
+            hosts[i] = tok.nextWord("host name");
+            ports[i] = tok.nextInt("port");
+            tok.endLine("port");
+            if (ids[i] > MAX_NODE_ID) {
+                throw tok.error("node id " + ids[i] + " is above " + MAX_NODE_ID);
+            }
+            if (ports[i] == 0 || ports[i] > 65535) {
+                throw tok.error("port " + ports[i] + " is out of range");
+            }
+            if (indexOfId.put(ids[i], i) != null) {
+                throw tok.error("duplicate node id " + ids[i]);
+            }
+        }
+
+        int[] quorumStart = new int[n + 1];
+        int[] members = new int[Math.max(16, n * 4)];
+        int size = 0;
+        int[] seenOnLine = new int[n];    // line number + 1 a node was last listed on
+        for (int i = 0; i < n; i++) {
+            if (!tok.nextLine()) {
+                throw tok.error("expected " + n + " quorum lines, found " + i);
+            }
+            quorumStart[i] = size;
+            boolean namesOwner = false;
+            while (tok.hasToken()) {
+                int id = tok.nextInt("quorum member id");
+                Integer idx = indexOfId.get(id);
+                if (idx == null) {
+                    throw tok.error("unknown node " + id + " in quorum of node " + ids[i]);
+                }
+                if (seenOnLine[idx] == i + 1) {
+                    throw tok.error("node " + id + " listed twice in quorum of node " + ids[i]);
+                }
+                seenOnLine[idx] = i + 1;
+                if (id == ids[i]) {
+                    namesOwner = true;
+                    continue;
+                }
+                if (size == members.length) {
+                    members = Arrays.copyOf(members, size * 2);
+                }
+                members[size++] = id;
+            }
+            if (!namesOwner) {
+                throw tok.error("quorum line " + (i + 1) + " does not list node " + ids[i]
+                        + "; quorum lines must follow the order of the node lines");
+            }
+            if (size == quorumStart[i]) {
+                throw tok.error("quorum of node " + ids[i] + " has no other member");
+            }
+        }
+        quorumStart[n] = size;
+        if (tok.nextLine()) {
+            throw tok.error("unexpected line after the " + n + " quorum lines");
+        }
+        return new Topology(n, d, c, k, ids, hosts, ports, quorumStart, Arrays.copyOf(members, size));
+    }
+
+    /**
+     * Writes the arrays to {@code snapshot}, stamped with the size and modification time
+     * of the config they came from. Written to a temporary file and moved into place, so
+     * nodes starting at the same time never map a half-written snapshot.
+     */
+    void writeSnapshot(Path snapshot, long sourceSize, long sourceMtime) throws IOException {
+        byte[][] hostBytes = new byte[numOfNodes][];
+        int hostTotal = 0;
+        for (int i = 0; i < numOfNodes; i++) {
+            hostBytes[i] = hosts[i].getBytes(StandardCharsets.UTF_8);
+            hostTotal += hostBytes[i].length;
+        }
+        int ints = numOfNodes * 2 + (numOfNodes + 1) * 2 + quorumMembers.length;
+        ByteBuffer out = ByteBuffer.allocate(SNAPSHOT_HEADER_BYTES + ints * 4 + hostTotal);
+        out.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(sourceSize).putLong(sourceMtime);
+        out.putInt(numOfNodes).putInt(interRequestDelay).putInt(csExecTime).putInt(numReqPerNode)
+                .putInt(quorumMembers.length);
+        IntBuffer intView = out.asIntBuffer();
+        intView.put(ids).put(ports).put(quorumStart).put(quorumMembers);
+        int hostOffset = 0;
+        for (int i = 0; i < numOfNodes; i++) {
+            intView.put(hostOffset);
+            hostOffset += hostBytes[i].length;
+        }
+        intView.put(hostOffset);
+        out.position(out.position() + intView.position() * 4);
+        for (byte[] bytes : hostBytes) {
+            out.put(bytes);
+        }
+
+        Path target = snapshot.toAbsolutePath();
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        Files.write(tmp, out.array());
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the topology in {@code snapshot}, or null if it is missing, of another
+     * format version, or was written from a different version of the config
+     */
+    static Topology readSnapshot(Path snapshot, long sourceSize, long sourceMtime) throws IOException {
+        if (!Files.isRegularFile(snapshot)) {
+            return null;
+        }
+        try (FileChannel ch = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            if (ch.size() < SNAPSHOT_HEADER_BYTES) {
+                return null;
+            }
+            MappedByteBuffer in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            if (in.getInt() != SNAPSHOT_MAGIC || in.getInt() != SNAPSHOT_VERSION
+                    || in.getLong() != sourceSize || in.getLong() != sourceMtime) {
+                return null;
+            }
+            int n = in.getInt();
+            int d = in.getInt();
+            int c = in.getInt();
+            int k = in.getInt();
+            int memberCount = in.getInt();
+            IntBuffer intView = in.asIntBuffer();
+            int[] ids = new int[n];
+            int[] ports = new int[n];
+            int[] quorumStart = new int[n + 1];
+            int[] members = new int[memberCount];
+            int[] hostStart = new int[n + 1];
+            intView.get(ids).get(ports).get(quorumStart).get(members).get(hostStart);
+            in.position(in.position() + intView.position() * 4);
+            String[] hosts = new String[n];
+            byte[] hostBytes = new byte[hostStart[n]];
+            in.get(hostBytes);
+            for (int i = 0; i < n; i++) {
+                hosts[i] = new String(hostBytes, hostStart[i], hostStart[i + 1] - hostStart[i], StandardCharsets.UTF_8);
+            }
+            return new Topology(n, d, c, k, ids, hosts, ports, quorumStart, members);
+        }
+    }
+}
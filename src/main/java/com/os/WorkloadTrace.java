@@ -0,0 +1,144 @@
+package com.os;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The CS requests one node issued, in order: per request the issuing thread, how long it
+ * thought before asking, its class and how long it held the CS. {@code -Dworkload.record=true}
+ * writes output/workload-&lt;id&gt;.trace next to the CS log; {@code -Dworkload.replay=DIR}
+ * issues DIR/workload-&lt;id&gt;.trace instead of drawing random times, with both times
+ * divided by {@code -Dworkload.speed}. One line per request:
+ * {@code thread thinkMs csMs CLASS}.
+ *
+ * <p>The trace holds delays, not arrival times: each thread thinks after it left its
+ * previous CS, so a replay is closed-loop and its requests arrive later or earlier than
+ * the recorded ones as the engine's waits differ. A replay issues exactly the trace's
+ * requests on the trace's threads; the config's numReqPerNode and {@code -Dapp.threads}
+ * do not apply.
+ */
+public class WorkloadTrace {
+    static final boolean RECORD = Boolean.getBoolean("workload.record");
+    static final String REPLAY_DIR = System.getProperty("workload.replay");
+    private static final String SPEED_SETTING = System.getProperty("workload.speed", "1");
+    static final double SPEED = parseSpeed(SPEED_SETTING);
+
+    static final class Entry {
+        final int thread;
+        final long thinkMs;
+        final long csMs;
+        final PriorityClass priority;
+
+        Entry(int thread, long thinkMs, long csMs, PriorityClass priority) {
+            this.thread = thread;
+            this.thinkMs = thinkMs;
+            this.csMs = csMs;
+            this.priority = priority;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    public synchronized void record(int thread, long thinkMs, long csMs, PriorityClass priority) {
+        entries.add(new Entry(thread, thinkMs, csMs, priority));
+    }
+
+    /**
+     * @return one more than the highest thread index in the trace
+     */
+    public synchronized int threads() {
+        int threads = 0;
+        for (Entry e : entries) {
+            threads = Math.max(threads, e.thread + 1);
+        }
+        return threads;
+    }
+
+    public synchronized List<Entry> forThread(int thread) {
+        List<Entry> out = new ArrayList<>();
+        for (Entry e : entries) {
+            if (e.thread == thread) {
+                out.add(e);
+            }
+        }
+        return out;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static double parseSpeed(String setting) {
+        try {
+            return Double.parseDouble(setting);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if {@code -Dworkload.speed} is not a positive number
+     */
+    static void checkSpeed() {
+        if (!(SPEED > 0) || Double.isInfinite(SPEED)) {
+            throw new IllegalArgumentException("workload.speed must be a positive number, not " + SPEED_SETTING);
+        }
+    }
+
+    /**
+     * @return ms scaled by {@code -Dworkload.speed}
+     */
+    static long scale(long ms) {
+        return Math.round(ms / SPEED);
+    }
+
+    public synchronized void write(String outputDir, int nodeId) {
+        File dir = new File(outputDir);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File file = new File(dir, "workload-" + nodeId + ".trace");
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+            for (Entry e : entries) {
+                bw.write(e.thread + " " + e.thinkMs + " " + e.csMs + " " + e.priority);
+                bw.newLine();
+            }
+            System.out.println("WorkloadTrace | Recorded " + entries.size() + " requests to " + file);
+        } catch (IOException e) {
+            System.err.println("WorkloadTrace | Failed to write trace: " + e.getMessage());
+        }
+    }
+
+    public static WorkloadTrace load(String dir, int nodeId) throws IOException {
+        File file = new File(dir, "workload-" + nodeId + ".trace");
+        WorkloadTrace trace = new WorkloadTrace();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            int lineNo = 0;
+            while ((line = br.readLine()) != null) {
+                lineNo++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+");
+                if (parts.length != 4) {
+                    throw new IOException(file + ":" + lineNo + " is not 'thread thinkMs csMs CLASS': " + line);
+                }
+                try {
+                    trace.record(Integer.parseInt(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]),
+                            PriorityClass.valueOf(parts[3]));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + lineNo + ": " + e.getMessage());
+                }
+            }
+        }
+        return trace;
+    }
+}
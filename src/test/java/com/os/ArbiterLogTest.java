@@ -0,0 +1,200 @@
+package com.os;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ArbiterLogTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void replaysEveryRecordAndCutsATornTail() throws IOException {
+        ArbiterLog log = open();
+        assertTrue(log.recover().empty);
+        log.grant(new Request(1, 2), 7);
+        log.enqueue(new Request(3, 4, PriorityClass.HIGH));
+        log.enqueue(new Request(2, 5));
+        log.cancelled(6, 9);
+        log.reserveSeqnum(10);
+        log.close(false);
+
+        long intact = Files.size(wal());
+        // A record header whose body never made it to disk.
+        Files.write(wal(), ByteBuffer.allocate(13).putInt(30).putInt(0x1234).array(), StandardOpenOption.APPEND);
+
+        log = open();
+        ArbiterLog.State state = log.recover();
+        assertEquals(intact, Files.size(wal()));
+        assertEquals(5, state.lastLsn);
+        assertEquals(1, state.lockingRequest.seqnum);
+        assertEquals(2, state.lockingRequest.nodeId);
+        assertEquals(7, state.grantStamp);
+        assertEquals(2, state.waitQueue.size());
+        assertEquals(RequestHeap.keyOf(new Request(3, 4, PriorityClass.HIGH)), state.waitQueue.keyOfNode(4));
+        assertEquals(Collections.singletonMap(6, 9), state.cancelledSeqnums);
+        assertEquals(3, state.maxSeqnum);
+        assertTrue(state.resumeSeqnum() > 10);
+
+        // Records appended after the cut are read back behind the intact ones.
+        log.unlock();
+        log.close(false);
+        state = open().recover();
+        assertEquals(6, state.lastLsn);
+        assertNull(state.lockingRequest);
+        assertEquals(2, state.waitQueue.size());
+    }
+
+    @Test
+    public void replayStopsAtTheFirstRecordWithABadChecksum() throws IOException {
+        ArbiterLog log = open();
+        log.recover();
+        log.enqueue(new Request(1, 1));
+        log.enqueue(new Request(2, 2));
+        log.enqueue(new Request(3, 3));
+        log.close(false);
+
+        byte[] bytes = Files.readAllBytes(wal());
+        int recordLen = bytes.length / 3;
+        // Low byte of the second record's requester id: frame 8, lsn 8, type 1, seqnum 4.
+        bytes[recordLen + 24] ^= 1;
+        Files.write(wal(), bytes);
+
+        ArbiterLog.State state = open().recover();
+        assertEquals(1, state.lastLsn);
+        assertEquals(1, state.waitQueue.size());
+        assertTrue(state.waitQueue.containsNode(1));
+        assertFalse(state.waitQueue.containsNode(3));
+        assertEquals(recordLen, Files.size(wal()));
+    }
+
+    @Test
+    public void snapshotIsReadWithTheRecordsAfterIt() throws IOException {
+        ArbiterLog log = open();
+        log.recover();
+        log.grant(new Request(1, 0), 1);
+        log.enqueue(new Request(2, 1));
+        log.enqueue(new Request(3, 2));
+        log.close(false);
+        byte[] beforeSnapshot = Files.readAllBytes(wal());
+
+        log = open();
+        assertEquals(3, log.recover().lastLsn);
+        RequestHeap queued = new RequestHeap();
+        queued.offer(new Request(3, 2));
+        log.snapshot(new Request(4, 3), 2, queued.keys(), Collections.singletonMap(5, 4), 4);
+        log.enqueue(new Request(5, 4));
+        log.close(false);
+
+        ArbiterLog.State state = open().recover();
+        assertSnapshotAndLaterRecord(state);
+
+        // A crash between writing the snapshot and emptying the log leaves the records the
+        // snapshot covers in front of the newer ones; they must not be applied again.
+        byte[] after = Files.readAllBytes(wal());
+        ByteBuffer both = ByteBuffer.allocate(beforeSnapshot.length + after.length).put(beforeSnapshot).put(after);
+        Files.write(wal(), both.array());
+        state = open().recover();
+        assertSnapshotAndLaterRecord(state);
+    }
+
+    @Test
+    public void snapshotStoresQueuedRequestsAsRawFields() throws IOException {
+        ArbiterLog log = open();
+        log.recover();
+        RequestHeap queued = new RequestHeap();
+        queued.offer(new Request(17, 6, PriorityClass.LOW));
+        log.snapshot(null, 0, queued.keys(), Collections.emptyMap(), 17);
+        log.close(false);
+
+        // magic, lsn, stamp, ceiling, maxSeqnum, no holder, one queued entry. A packed heap
+        // key would carry the aging handicap, which depends on -Dpriority.agingWindow.
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(snapshot()));
+        in.position(4 + 8 + 4 + 4 + 4 + 1);
+        assertEquals(1, in.getInt());
+        assertEquals(17, in.getInt());
+        assertEquals(6, in.getInt());
+        assertEquals(PriorityClass.LOW.ordinal(), in.get());
+
+        ArbiterLog.State state = open().recover();
+        assertEquals(RequestHeap.keyOf(new Request(17, 6, PriorityClass.LOW)), state.waitQueue.keyOfNode(6));
+    }
+
+    @Test
+    public void corruptSnapshotIsRefused() throws IOException {
+        Files.write(snapshot(), new byte[16]);
+        assertCorruptSnapshot();
+        Files.delete(snapshot());
+
+        ArbiterLog log = open();
+        log.recover();
+        RequestHeap queued = new RequestHeap();
+        queued.offer(new Request(3, 2, PriorityClass.HIGH));
+        log.snapshot(new Request(4, 3), 2, queued.keys(), Collections.singletonMap(5, 4), 4);
+        log.close(false);
+        byte[] whole = Files.readAllBytes(snapshot());
+
+        // Cut anywhere after the magic.
+        for (int len = 12; len < whole.length; len++) {
+            Files.write(snapshot(), Arrays.copyOf(whole, len));
+            assertCorruptSnapshot();
+        }
+        // The holder's class byte out of range.
+        byte[] badClass = whole.clone();
+        badClass[4 + 8 + 4 + 4 + 4 + 1 + 8] = 42;
+        Files.write(snapshot(), badClass);
+        assertCorruptSnapshot();
+    }
+
+    private void assertCorruptSnapshot() {
+        try {
+            open().recover();
+            fail("recovered from a corrupt snapshot");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("corrupt arbiter snapshot"));
+        }
+    }
+
+    private static void assertSnapshotAndLaterRecord(ArbiterLog.State state) {
+        assertEquals(4, state.lastLsn);
+        assertEquals(4, state.lockingRequest.seqnum);
+        assertEquals(3, state.lockingRequest.nodeId);
+        assertEquals(2, state.grantStamp);
+        assertArrayEquals(new long[]{RequestHeap.keyOf(new Request(3, 2)), RequestHeap.keyOf(new Request(5, 4))},
+                sorted(state.waitQueue.keys()));
+        assertEquals(Collections.singletonMap(5, 4), state.cancelledSeqnums);
+        assertEquals(5, state.maxSeqnum);
+    }
+
+    private static long[] sorted(long[] keys) {
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    private ArbiterLog open() throws IOException {
+        return new ArbiterLog(0, tmp.getRoot().toPath());
+    }
+
+    private Path snapshot() {
+        return tmp.getRoot().toPath().resolve("arbiter-0.snapshot");
+    }
+
+    private Path wal() {
+        return tmp.getRoot().toPath().resolve("arbiter-0.wal");
+    }
+}
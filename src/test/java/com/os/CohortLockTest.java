@@ -0,0 +1,160 @@
+package com.os;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Several threads on node 0, whose quorum is arbiters 1 and 2, played by the test.
+ */
+public class CohortLockTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final AtomicInteger entries = new AtomicInteger();
+    private final List<Thread> workers = new ArrayList<>();
+
+    @Test(timeout = 30_000)
+    public void grantIsGivenBackAfterBoundLocalEntries() throws Exception {
+        int bound = CohortLock.FAIRNESS_BOUND;
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "maekawa");
+        BlockingQueue<Message> arbiter1 = cluster.intercept(1);
+        BlockingQueue<Message> arbiter2 = cluster.intercept(2);
+
+        for (int i = 0; i < bound + 3; i++) {
+            startWorker(cluster, null, null);
+        }
+        Request first = (Request) next(arbiter1, MessageType.REQUEST).info;
+        assertEquals(first, next(arbiter2, MessageType.REQUEST).info);
+        assertTrue(LocalCluster.await(() -> waiters(cluster, first) == bound + 3, 5_000));
+
+        grant(cluster, first, 1);
+        // The bound-th thread leaves: the rest move to a new round and the grant goes back.
+        Request second = (Request) next(arbiter1, MessageType.REQUEST).info;
+        assertNotEquals(first, second);
+        assertEquals(first, next(arbiter1, MessageType.RELEASE).info);
+        assertEquals(second, next(arbiter2, MessageType.REQUEST).info);
+        assertEquals(first, next(arbiter2, MessageType.RELEASE).info);
+        cluster.settle();
+        assertEquals(bound, entries.get());
+        assertEquals(3, waiters(cluster, second));
+
+        grant(cluster, second, 2);
+        assertEquals(second, next(arbiter1, MessageType.RELEASE).info);
+        assertEquals(second, next(arbiter2, MessageType.RELEASE).info);
+        joinWorkers();
+        assertEquals(bound + 3, entries.get());
+        cluster.settle();
+        assertTrue(arbiter1.isEmpty() && arbiter2.isEmpty());
+    }
+
+    @Test(timeout = 30_000)
+    public void pendingInquireEndsTheHandOff() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "maekawa");
+        BlockingQueue<Message> arbiter1 = cluster.intercept(1);
+        BlockingQueue<Message> arbiter2 = cluster.intercept(2);
+        CountDownLatch inCs = new CountDownLatch(1);
+        CountDownLatch leave = new CountDownLatch(1);
+
+        startWorker(cluster, inCs, leave);
+        Request first = (Request) next(arbiter1, MessageType.REQUEST).info;
+        assertEquals(first, next(arbiter2, MessageType.REQUEST).info);
+        grant(cluster, first, 1);
+        assertTrue(inCs.await(5, TimeUnit.SECONDS));
+
+        // Two more threads queue on the grant in use.
+        startWorker(cluster, null, null);
+        startWorker(cluster, null, null);
+        assertTrue(LocalCluster.await(() -> waiters(cluster, first) == 2, 5_000));
+
+        Message inquire = new Message(MessageType.INQUIRE, 1, 0, first);
+        inquire.grantStamp = 1;
+        cluster.engine(0).onMessage(inquire);
+        leave.countDown();
+
+        // Released at once, not relinquished and not handed on, and the waiters ask again.
+        Request second = (Request) next(arbiter1, MessageType.REQUEST).info;
+        assertNotEquals(first, second);
+        assertEquals(first, next(arbiter1, MessageType.RELEASE).info);
+        assertEquals(second, next(arbiter2, MessageType.REQUEST).info);
+        assertEquals(first, next(arbiter2, MessageType.RELEASE).info);
+        cluster.settle();
+        assertEquals(1, entries.get());
+        assertEquals(2, waiters(cluster, second));
+
+        grant(cluster, second, 2);
+        assertEquals(second, next(arbiter1, MessageType.RELEASE).info);
+        assertEquals(second, next(arbiter2, MessageType.RELEASE).info);
+        joinWorkers();
+        assertEquals(3, entries.get());
+        cluster.settle();
+        assertTrue(arbiter1.isEmpty() && arbiter2.isEmpty());
+    }
+
+    /**
+     * A thread that enters once on node 0; with {@code inCs} and {@code leave} it reports
+     * being in and stays until let go.
+     */
+    private void startWorker(LocalCluster cluster, CountDownLatch inCs, CountDownLatch leave) {
+        Thread worker = new Thread(() -> {
+            cluster.engine(0).csEnter();
+            entries.incrementAndGet();
+            if (inCs != null) {
+                inCs.countDown();
+                try {
+                    leave.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            cluster.engine(0).csLeave();
+        }, "CohortLockTest-" + workers.size());
+        workers.add(worker);
+        worker.start();
+    }
+
+    private void joinWorkers() throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join(5_000);
+            assertTrue(worker.getName() + " still running", !worker.isAlive());
+        }
+    }
+
+    private static void grant(LocalCluster cluster, Request req, int stamp) {
+        for (int arbiter = 1; arbiter <= 2; arbiter++) {
+            Message locked = new Message(MessageType.LOCKED, arbiter, 0, req);
+            locked.grantStamp = stamp;
+            cluster.engine(0).onMessage(locked);
+        }
+    }
+
+    private static int waiters(LocalCluster cluster, Request req) {
+        Requester requester = cluster.nodes.get(0).getRequester();
+        requester.lock.lock();
+        try {
+            QuorumRound round = requester.getRound(req);
+            return round == null ? -1 : round.waiterCount();
+        } finally {
+            requester.lock.unlock();
+        }
+    }
+
+    private static Message next(BlockingQueue<Message> received, MessageType type) throws InterruptedException {
+        Message msg = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no " + type + " arrived", msg);
+        assertEquals(type, msg.type);
+        return msg;
+    }
+}
@@ -0,0 +1,141 @@
+package com.os;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FaultInjectorTest {
+    private static final FaultInjector.Faults NONE =
+            new FaultInjector.Faults(FaultInjector.Latency.parse("const:0"), 0, 0, 50, 0, 0);
+
+    @Test
+    public void latencySpecsSampleTheirDistribution() {
+        Random rng = new Random(3);
+        assertEquals(80, FaultInjector.Latency.parse("const:80").sample(rng), 0);
+        assertEquals(80, FaultInjector.Latency.parse(" const:80 ").sample(rng), 0);
+
+        FaultInjector.Latency uniform = FaultInjector.Latency.parse("uniform:10:20");
+        FaultInjector.Latency normal = FaultInjector.Latency.parse("normal:50:5");
+        FaultInjector.Latency exp = FaultInjector.Latency.parse("exp:30");
+        FaultInjector.Latency pareto = FaultInjector.Latency.parse("pareto:15:2");
+        double normalSum = 0;
+        double expSum = 0;
+        int samples = 20_000;
+        for (int i = 0; i < samples; i++) {
+            double u = uniform.sample(rng);
+            assertTrue(u >= 10 && u < 20);
+            assertTrue(pareto.sample(rng) >= 15);
+            double e = exp.sample(rng);
+            assertTrue(e >= 0);
+            expSum += e;
+            normalSum += normal.sample(rng);
+        }
+        assertEquals(50, normalSum / samples, 0.5);
+        assertEquals(30, expSum / samples, 1.5);
+    }
+
+    @Test
+    public void malformedLatencySpecsAreRejected() {
+        for (String spec : new String[]{"", "const", "const:x", "uniform:10", "normal:50", "pareto:15",
+                "gauss:1:2", "80"}) {
+            try {
+                FaultInjector.Latency.parse(spec);
+                fail("accepted latency " + spec);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("fault.latency is not const:MS, uniform:MIN:MAX,"));
+                assertTrue(e.getMessage(), e.getMessage().endsWith(": " + spec));
+            }
+        }
+    }
+
+    @Test
+    public void linkOverridesReplaceOnlyTheKeysGiven() {
+        FaultInjector.Faults base = NONE.with("drop=0.25,reorderMs=10");
+        FaultInjector.Faults link = base.with(" latency=const:80 , duplicate=1 ");
+        assertEquals(0.25, link.drop, 0);
+        assertEquals(10, link.reorderMs);
+        assertEquals(1, link.duplicate, 0);
+        assertEquals(80, link.latency.sample(new Random()), 0);
+        assertEquals(0, NONE.with("reorder=0").reorder, 0);
+    }
+
+    @Test
+    public void unknownKeysAndSharesOutsideTheUnitIntervalAreRefused() {
+        assertRefused("dorp=0.1", "Unknown fault setting: dorp");
+        assertRefused("drop", "not key=value: drop");
+        assertRefused("drop=1.01", "not in [0, 1]: 1.01");
+        assertRefused("reorder=-0.1", "not in [0, 1]: -0.1");
+        assertRefused("duplicate=2", "not in [0, 1]: 2");
+        assertRefused("latency=const", "fault.latency is not");
+    }
+
+    @Test
+    public void partitionWindowsAreHalfOpen() {
+        List<FaultInjector.Partition> partitions = FaultInjector.Partition.parseAll(" 0,1|2-3@100+50 ; ");
+        assertEquals(1, partitions.size());
+        FaultInjector.Partition p = partitions.get(0);
+        assertFalse(p.separates(0, 2, 99));
+        assertTrue(p.separates(0, 2, 100));
+        assertTrue(p.separates(3, 1, 149));
+        assertFalse(p.separates(0, 2, 150));
+
+        assertFalse("same group", p.separates(2, 3, 120));
+        assertFalse("node outside every group", p.separates(4, 0, 120));
+        assertFalse("node outside every group", p.separates(1, 4, 120));
+
+        assertEquals(2, FaultInjector.Partition.parseAll("0|1@0+10;1|2@10+10").size());
+        try {
+            FaultInjector.Partition.parseAll("0|1@100");
+            fail("accepted a partition without a length");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("GROUPS@START+LENGTH"));
+        }
+    }
+
+    @Test
+    public void sameSeedAndIdsGiveTheSameSchedule() {
+        FaultInjector.Faults faults = NONE.with("latency=exp:20,jitterMs=5,reorder=0.2,reorderMs=30");
+        long[] first = schedule(new FaultInjector.Link(2, 5, faults, 42), 200);
+        long[] second = schedule(new FaultInjector.Link(2, 5, faults, 42), 200);
+        assertArrayEquals(first, second);
+
+        assertFalse(Arrays.equals(first, schedule(new FaultInjector.Link(5, 2, faults, 42), 200)));
+        assertFalse(Arrays.equals(first, schedule(new FaultInjector.Link(2, 5, faults, 43), 200)));
+    }
+
+    @Test
+    public void messagesNotPickedForReorderingKeepTheirOrder() {
+        FaultInjector.Link link = new FaultInjector.Link(0, 1, NONE.with("latency=uniform:0:50"), 7);
+        long previous = 0;
+        for (int i = 0; i < 1000; i++) {
+            long due = link.nextDue(i * 1_000L);
+            assertTrue(due >= previous);
+            previous = due;
+        }
+    }
+
+    private static long[] schedule(FaultInjector.Link link, int messages) {
+        long[] due = new long[messages];
+        for (int i = 0; i < messages; i++) {
+            due[i] = link.nextDue(i * 1_000_000L);
+        }
+        return due;
+    }
+
+    private static void assertRefused(String overrides, String expected) {
+        try {
+            NONE.with(overrides);
+            fail("accepted " + overrides);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expected));
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.os;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * A cluster of nodes hosted in the test JVM, every node's quorum being all the others.
+ * Messages between them go through {@link LocalNodes}, so no sockets are opened.
+ */
+final class LocalCluster {
+    final List<Node> nodes = new ArrayList<>();
+
+    LocalCluster(File dir, int size, String engine) throws IOException {
+        File config = new File(dir, "config.txt");
+        try (FileWriter w = new FileWriter(config)) {
+            w.write(size + " 10 10 1\n");
+            for (int id = 0; id < size; id++) {
+                w.write(id + " localhost " + (47000 + id) + "\n");
+            }
+            for (int id = 0; id < size; id++) {
+                StringBuilder line = new StringBuilder().append(id);
+                for (int other = 0; other < size; other++) {
+                    if (other != id) {
+                        line.append(' ').append(other);
+                    }
+                }
+                w.write(line + "\n");
+            }
+        }
+        String previousEngine = System.getProperty(MutexEngine.ENGINE_PROPERTY);
+        System.setProperty(MutexEngine.ENGINE_PROPERTY, engine);
+        System.setProperty(Parser.SNAPSHOT_PROPERTY, "off");
+        try {
+            Parser parser = new Parser();
+            parser.loadFromFile(config.getPath());
+            parser.connectToNeighborasFromCOnfig();
+            Map<Integer, List<List<Integer>>> quorumCandidates = parser.computeQuorumCandidates();
+            for (Node node : parser.getAllNodesConfigs()) {
+                node.setOutputDir(new File(dir, "output").getPath());
+                node.setQuorum(parser.getQuorumSetOfNode(node.getNodeId()));
+                node.setQuorumCandidates(quorumCandidates.get(node.getNodeId()));
+                LocalNodes.register(node);
+                nodes.add(node);
+            }
+        } finally {
+            System.clearProperty(Parser.SNAPSHOT_PROPERTY);
+            if (previousEngine == null) {
+                System.clearProperty(MutexEngine.ENGINE_PROPERTY);
+            } else {
+                System.setProperty(MutexEngine.ENGINE_PROPERTY, previousEngine);
+            }
+        }
+    }
+
+    MutexEngine engine(int nodeId) {
+        return nodes.get(nodeId).getEngine();
+    }
+
+    MaekawaProtocol maekawa(int nodeId) {
+        return (MaekawaProtocol) engine(nodeId);
+    }
+
+    /**
+     * Swaps the node's engine for one that only records the protocol messages sent to it,
+     * so a test can play that node's part by hand. Its arbiter then hears nothing either.
+     */
+    BlockingQueue<Message> intercept(int nodeId) {
+        BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        nodes.get(nodeId).setEngine(new MutexEngine() {
+            @Override
+            public void csEnter() {
+                throw new UnsupportedOperationException("node " + nodeId + " is intercepted");
+            }
+
+            @Override
+            public boolean tryEnter(long timeoutMs) {
+                throw new UnsupportedOperationException("node " + nodeId + " is intercepted");
+            }
+
+            @Override
+            public void csLeave() {
+                throw new UnsupportedOperationException("node " + nodeId + " is intercepted");
+            }
+
+            @Override
+            public boolean onMessage(Message msg) {
+                received.add(msg);
+                return true;
+            }
+
+            @Override
+            public void setOutputDir(String outputDir) {
+            }
+        });
+        return received;
+    }
+
+    /**
+     * Waits until every arbiter and every inbox has handled what was handed to it so far,
+     * including what that handling sent on.
+     */
+    void settle() throws InterruptedException {
+        for (int pass = 0; pass < 3; pass++) {
+            for (Node node : nodes) {
+                arbiterState(node.getNodeId());
+                CountDownLatch drained = new CountDownLatch(1);
+                node.getInbox().execute(drained::countDown);
+                if (!drained.await(Introspection.TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    throw new IllegalStateException("inbox of node " + node.getNodeId() + " is stuck");
+                }
+            }
+        }
+    }
+
+    /**
+     * Polls {@code condition} until it holds.
+     *
+     * @return false if it did not within {@code timeoutMs}
+     */
+    static boolean await(BooleanSupplier condition, long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * @return the arbiter's state as {@link Introspection} serves it
+     */
+    String arbiterState(int nodeId) throws InterruptedException {
+        StringBuilder out = new StringBuilder();
+        nodes.get(nodeId).getArbiter().describe(out, Introspection.TIMEOUT_MS);
+        return out.toString();
+    }
+
+    /**
+     * Polls until no arbiter holds a grant or queues a request.
+     *
+     * @return false if that did not happen within {@code timeoutMs}
+     */
+    boolean awaitArbitersIdle(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (System.nanoTime() < deadline) {
+            boolean idle = true;
+            for (Node node : nodes) {
+                String state = arbiterState(node.getNodeId());
+                idle &= state.startsWith("arbiter holder=none ") && state.contains(" queued=0 ");
+            }
+            if (idle) {
+                return true;
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+}
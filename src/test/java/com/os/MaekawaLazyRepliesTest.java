@@ -0,0 +1,210 @@
+package com.os;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Arbiter 0, or requester 0, talking to peers whose part the test plays by hand.
+ */
+public class MaekawaLazyRepliesTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test(timeout = 30_000)
+    public void headOfTheQueueGetsNoFailedAndEntersOnceTheHolderYields() throws Exception {
+        assumeTrue(Arbiter.LAZY_REPLIES);
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 4, "maekawa");
+        List<BlockingQueue<Message>> peers = interceptPeers(cluster);
+        long suppressedFailed = MessageCounters.of(0).suppressed(MessageType.FAILED);
+        Request holder = new Request(5, 2);
+        Request head = new Request(3, 1);
+        Request third = new Request(4, 3);
+
+        toArbiter(cluster, MessageType.REQUEST, holder);
+        int stamp = expect(peers.get(2), MessageType.LOCKED, holder).grantStamp;
+
+        toArbiter(cluster, MessageType.REQUEST, head);
+        assertEquals(stamp, expect(peers.get(2), MessageType.INQUIRE, holder).grantStamp);
+        toArbiter(cluster, MessageType.REQUEST, third);
+        expect(peers.get(3), MessageType.FAILED, third);
+        assertQuiet(cluster, peers);
+
+        toArbiter(cluster, MessageType.RELINQUISH, holder);
+        assertTrue(expect(peers.get(1), MessageType.LOCKED, head).grantStamp > stamp);
+        assertQuiet(cluster, peers);
+        assertEquals(suppressedFailed + 1, MessageCounters.of(0).suppressed(MessageType.FAILED));
+
+        toArbiter(cluster, MessageType.RELEASE, head);
+        expect(peers.get(3), MessageType.LOCKED, third);
+        toArbiter(cluster, MessageType.RELEASE, third);
+        expect(peers.get(2), MessageType.LOCKED, holder);
+        toArbiter(cluster, MessageType.RELEASE, holder);
+        assertQuiet(cluster, peers);
+        assertTrue(cluster.arbiterState(0).startsWith("arbiter holder=none "));
+    }
+
+    @Test(timeout = 30_000)
+    public void requestOvertakingTheHeadReleasesItsHeldBackFailed() throws Exception {
+        assumeTrue(Arbiter.LAZY_REPLIES);
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 4, "maekawa");
+        List<BlockingQueue<Message>> peers = interceptPeers(cluster);
+        long suppressedInquire = MessageCounters.of(0).suppressed(MessageType.INQUIRE);
+        Request holder = new Request(5, 2);
+        Request head = new Request(4, 1);
+        Request overtaker = new Request(3, 3);
+
+        toArbiter(cluster, MessageType.REQUEST, holder);
+        expect(peers.get(2), MessageType.LOCKED, holder);
+        toArbiter(cluster, MessageType.REQUEST, head);
+        expect(peers.get(2), MessageType.INQUIRE, holder);
+        assertQuiet(cluster, peers);
+
+        // The old head may now wait behind the newcomer for good, so it must be free to yield.
+        toArbiter(cluster, MessageType.REQUEST, overtaker);
+        expect(peers.get(1), MessageType.FAILED, head);
+        // The holder was asked for this grant already; the newcomer is next in line.
+        assertQuiet(cluster, peers);
+        assertEquals(suppressedInquire + 1, MessageCounters.of(0).suppressed(MessageType.INQUIRE));
+
+        toArbiter(cluster, MessageType.RELINQUISH, holder);
+        expect(peers.get(3), MessageType.LOCKED, overtaker);
+        toArbiter(cluster, MessageType.RELEASE, overtaker);
+        expect(peers.get(1), MessageType.LOCKED, head);
+        toArbiter(cluster, MessageType.RELEASE, head);
+        expect(peers.get(2), MessageType.LOCKED, holder);
+        toArbiter(cluster, MessageType.RELEASE, holder);
+        assertQuiet(cluster, peers);
+    }
+
+    @Test(timeout = 30_000)
+    public void lockedArrivingAfterItsInquireWasAnsweredIsIgnored() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "maekawa");
+        BlockingQueue<Message> arbiter1 = cluster.intercept(1);
+        BlockingQueue<Message> arbiter2 = cluster.intercept(2);
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            Future<Boolean> entered = pool.submit(() -> cluster.engine(0).tryEnter(20_000));
+            Request req = (Request) next(arbiter1, MessageType.REQUEST).info;
+            expect(arbiter2, MessageType.REQUEST, req);
+
+            toRequester(cluster, MessageType.FAILED, 2, req, -1);
+            // Arbiter 1 granted, then asked for the grant back; the INQUIRE overtook the LOCKED.
+            toRequester(cluster, MessageType.INQUIRE, 1, req, 1);
+            expect(arbiter1, MessageType.RELINQUISH, req);
+            toRequester(cluster, MessageType.LOCKED, 1, req, 1);
+            toRequester(cluster, MessageType.LOCKED, 2, req, 1);
+            cluster.settle();
+            // Counting that LOCKED would let node 0 in on a grant arbiter 1 has given away.
+            Requester requester = cluster.nodes.get(0).getRequester();
+            requester.lock.lock();
+            try {
+                assertFalse(requester.getRound(req).isGranted());
+            } finally {
+                requester.lock.unlock();
+            }
+            assertFalse(entered.isDone());
+            assertTrue(arbiter1.isEmpty());
+
+            toRequester(cluster, MessageType.LOCKED, 1, req, 2);
+            assertTrue(entered.get(5, TimeUnit.SECONDS));
+            cluster.engine(0).csLeave();
+            expect(arbiter1, MessageType.RELEASE, req);
+            expect(arbiter2, MessageType.RELEASE, req);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 30_000)
+    public void releaseOfAQueuedRequestTakesItOffTheQueue() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 4, "maekawa");
+        List<BlockingQueue<Message>> peers = interceptPeers(cluster);
+        Request holder = new Request(5, 2);
+        Request queued = new Request(7, 1);
+
+        toArbiter(cluster, MessageType.REQUEST, holder);
+        expect(peers.get(2), MessageType.LOCKED, holder);
+        toArbiter(cluster, MessageType.REQUEST, queued);
+        expect(peers.get(1), MessageType.FAILED, queued);
+        assertTrue(cluster.arbiterState(0).contains(" queued=1 "));
+
+        // Its round finished without this grant, so it must never be granted later.
+        toArbiter(cluster, MessageType.RELEASE, queued);
+        assertTrue(cluster.arbiterState(0).contains(" queued=0 "));
+        toArbiter(cluster, MessageType.RELEASE, holder);
+        assertQuiet(cluster, peers);
+        assertTrue(cluster.arbiterState(0).startsWith("arbiter holder=none "));
+    }
+
+    /**
+     * @return what each node but 0 is sent, indexed by node id; index 0 stays null
+     */
+    private static List<BlockingQueue<Message>> interceptPeers(LocalCluster cluster) {
+        List<BlockingQueue<Message>> peers = new ArrayList<>();
+        peers.add(null);
+        for (int id = 1; id < cluster.nodes.size(); id++) {
+            peers.add(cluster.intercept(id));
+        }
+        return peers;
+    }
+
+    private static void toArbiter(LocalCluster cluster, MessageType type, Request req) {
+        Message msg = new Message(type, req.nodeId, 0, req);
+        Arbiter arbiter = cluster.nodes.get(0).getArbiter();
+        switch (type) {
+            case REQUEST:
+                arbiter.onRequest(msg);
+                break;
+            case RELINQUISH:
+                arbiter.onRelinquish(msg);
+                break;
+            case RELEASE:
+                arbiter.onRelease(msg);
+                break;
+            default:
+                throw new IllegalArgumentException(type.name());
+        }
+    }
+
+    private static void toRequester(LocalCluster cluster, MessageType type, int arbiterId, Request req, int stamp) {
+        Message msg = new Message(type, arbiterId, 0, req);
+        msg.grantStamp = stamp;
+        cluster.engine(0).onMessage(msg);
+    }
+
+    private static Message next(BlockingQueue<Message> received, MessageType type) throws InterruptedException {
+        Message msg = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no " + type + " arrived", msg);
+        assertEquals(type, msg.type);
+        return msg;
+    }
+
+    private static Message expect(BlockingQueue<Message> received, MessageType type, Request req)
+            throws InterruptedException {
+        Message msg = next(received, type);
+        assertEquals(req, msg.info);
+        return msg;
+    }
+
+    private static void assertQuiet(LocalCluster cluster, List<BlockingQueue<Message>> peers) throws InterruptedException {
+        cluster.settle();
+        for (int id = 1; id < peers.size(); id++) {
+            assertTrue("node " + id + " was sent " + peers.get(id), peers.get(id).isEmpty());
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.os;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Threads of one node share a quorum round rather than each asking every arbiter.
+ */
+public class MaekawaRoundSharingTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final AtomicInteger entries = new AtomicInteger();
+    private final List<Thread> workers = new ArrayList<>();
+
+    @Test(timeout = 30_000)
+    public void threadsArrivingWhileARoundCollectsJoinIt() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "maekawa");
+        BlockingQueue<Message> arbiter1 = cluster.intercept(1);
+        BlockingQueue<Message> arbiter2 = cluster.intercept(2);
+
+        for (int i = 0; i < 4; i++) {
+            startWorker(cluster, null, null);
+        }
+        Request req = (Request) next(arbiter1, MessageType.REQUEST).info;
+        assertEquals(req, next(arbiter2, MessageType.REQUEST).info);
+        assertTrue(LocalCluster.await(() -> waiters(cluster, req) == 4, 5_000));
+
+        startWorker(cluster, null, null);
+        assertTrue(LocalCluster.await(() -> waiters(cluster, req) == 5, 5_000));
+        cluster.settle();
+        assertTrue("asked again: " + arbiter1 + " " + arbiter2, arbiter1.isEmpty() && arbiter2.isEmpty());
+        assertEquals(1, rounds(cluster));
+
+        grant(cluster, req);
+        assertEquals(req, next(arbiter1, MessageType.RELEASE).info);
+        assertEquals(req, next(arbiter2, MessageType.RELEASE).info);
+        joinWorkers();
+        assertEquals(5, entries.get());
+        cluster.settle();
+        assertTrue(arbiter1.isEmpty() && arbiter2.isEmpty());
+    }
+
+    @Test(timeout = 30_000)
+    public void threadsArrivingAfterTheGrantOpenOneNextRound() throws Exception {
+        int bound = CohortLock.FAIRNESS_BOUND;
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "maekawa");
+        BlockingQueue<Message> arbiter1 = cluster.intercept(1);
+        BlockingQueue<Message> arbiter2 = cluster.intercept(2);
+        CountDownLatch inCs = new CountDownLatch(1);
+        CountDownLatch leave = new CountDownLatch(1);
+
+        startWorker(cluster, inCs, leave);
+        Request first = (Request) next(arbiter1, MessageType.REQUEST).info;
+        assertEquals(first, next(arbiter2, MessageType.REQUEST).info);
+        grant(cluster, first);
+        assertTrue(inCs.await(5, TimeUnit.SECONDS));
+
+        // Fill the grant up to the cohort bound; whoever comes later needs a round of its own.
+        for (int i = 1; i < bound; i++) {
+            startWorker(cluster, null, null);
+        }
+        assertTrue(LocalCluster.await(() -> waiters(cluster, first) == bound - 1, 5_000));
+        for (int i = 0; i < 3; i++) {
+            startWorker(cluster, null, null);
+        }
+        Request second = (Request) next(arbiter1, MessageType.REQUEST).info;
+        assertNotEquals(first, second);
+        assertEquals(second, next(arbiter2, MessageType.REQUEST).info);
+        assertTrue(LocalCluster.await(() -> waiters(cluster, second) == 3, 5_000));
+        cluster.settle();
+        assertTrue("asked again: " + arbiter1 + " " + arbiter2, arbiter1.isEmpty() && arbiter2.isEmpty());
+        assertEquals(2, rounds(cluster));
+
+        leave.countDown();
+        assertEquals(first, next(arbiter1, MessageType.RELEASE).info);
+        assertEquals(first, next(arbiter2, MessageType.RELEASE).info);
+        assertEquals(bound, entries.get());
+        grant(cluster, second);
+        assertEquals(second, next(arbiter1, MessageType.RELEASE).info);
+        assertEquals(second, next(arbiter2, MessageType.RELEASE).info);
+        joinWorkers();
+        assertEquals(bound + 3, entries.get());
+    }
+
+    @Test(timeout = 60_000)
+    public void arbiterQueuesHoldAtMostOneRequestPerNode() throws Exception {
+        int size = 4;
+        int threadsPerNode = 4;
+        int entriesPerThread = 20;
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), size, "maekawa");
+        AtomicInteger inCs = new AtomicInteger();
+        AtomicReference<String> violation = new AtomicReference<>();
+
+        for (int id = 0; id < size; id++) {
+            MutexEngine engine = cluster.engine(id);
+            for (int t = 0; t < threadsPerNode; t++) {
+                Thread worker = new Thread(() -> {
+                    for (int i = 0; i < entriesPerThread; i++) {
+                        engine.csEnter();
+                        if (inCs.incrementAndGet() != 1) {
+                            violation.compareAndSet(null, "two threads in the CS");
+                        }
+                        entries.incrementAndGet();
+                        inCs.decrementAndGet();
+                        engine.csLeave();
+                    }
+                }, "MaekawaRoundSharingTest-" + id + "-" + t);
+                workers.add(worker);
+                worker.start();
+            }
+        }
+
+        int maxDepth = 0;
+        boolean done = false;
+        while (!done) {
+            done = workers.stream().noneMatch(Thread::isAlive);
+            for (int id = 0; id < size; id++) {
+                Set<Integer> queued = queuedNodes(cluster, id, violation);
+                maxDepth = Math.max(maxDepth, queued.size());
+                String rounds = roundViolation(cluster, id);
+                if (rounds != null) {
+                    violation.compareAndSet(null, rounds);
+                }
+            }
+        }
+        joinWorkers();
+        assertNull(violation.get());
+        assertEquals(size * threadsPerNode * entriesPerThread, entries.get());
+        assertTrue("arbiter queue depth " + maxDepth, maxDepth <= size - 1);
+        assertTrue(cluster.awaitArbitersIdle(5_000));
+    }
+
+    /**
+     * @return the nodes queued at the arbiter, noting in {@code violation} a node queued twice
+     */
+    private static Set<Integer> queuedNodes(LocalCluster cluster, int arbiterId, AtomicReference<String> violation)
+            throws InterruptedException {
+        Set<Integer> nodes = new HashSet<>();
+        for (String line : cluster.arbiterState(arbiterId).split("\n")) {
+            String prefix = "queued node=";
+            if (line.startsWith(prefix)) {
+                int node = Integer.parseInt(line.substring(prefix.length(), line.indexOf(' ', prefix.length())));
+                if (!nodes.add(node)) {
+                    violation.compareAndSet(null, "node " + node + " queued twice at " + arbiterId);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    // A node waits on at most one round that is not granted yet.
+    private static String roundViolation(LocalCluster cluster, int nodeId) {
+        Requester requester = cluster.nodes.get(nodeId).getRequester();
+        requester.lock.lock();
+        try {
+            long pending = requester.getRounds().stream().filter(round -> !round.isGranted()).count();
+            return pending > 1 ? "node " + nodeId + " collects " + pending + " rounds" : null;
+        } finally {
+            requester.lock.unlock();
+        }
+    }
+
+    /**
+     * A thread that enters once on node 0; with {@code inCs} and {@code leave} it reports
+     * being in and stays until let go.
+     */
+    private void startWorker(LocalCluster cluster, CountDownLatch inCs, CountDownLatch leave) {
+        Thread worker = new Thread(() -> {
+            cluster.engine(0).csEnter();
+            entries.incrementAndGet();
+            if (inCs != null) {
+                inCs.countDown();
+                try {
+                    leave.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            cluster.engine(0).csLeave();
+        }, "MaekawaRoundSharingTest-" + workers.size());
+        workers.add(worker);
+        worker.start();
+    }
+
+    private void joinWorkers() throws InterruptedException {
+        for (Thread worker : workers) {
+            worker.join(10_000);
+            assertTrue(worker.getName() + " still running", !worker.isAlive());
+        }
+    }
+
+    private static void grant(LocalCluster cluster, Request req) {
+        for (int arbiter = 1; arbiter <= 2; arbiter++) {
+            Message locked = new Message(MessageType.LOCKED, arbiter, 0, req);
+            locked.grantStamp = 1;
+            cluster.engine(0).onMessage(locked);
+        }
+    }
+
+    private static int waiters(LocalCluster cluster, Request req) {
+        Requester requester = cluster.nodes.get(0).getRequester();
+        requester.lock.lock();
+        try {
+            QuorumRound round = requester.getRound(req);
+            return round == null ? -1 : round.waiterCount();
+        } finally {
+            requester.lock.unlock();
+        }
+    }
+
+    private static int rounds(LocalCluster cluster) {
+        Requester requester = cluster.nodes.get(0).getRequester();
+        requester.lock.lock();
+        try {
+            return requester.getRounds().size();
+        } finally {
+            requester.lock.unlock();
+        }
+    }
+
+    private static Message next(BlockingQueue<Message> received, MessageType type) throws InterruptedException {
+        Message msg = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no " + type + " arrived", msg);
+        assertEquals(type, msg.type);
+        return msg;
+    }
+}
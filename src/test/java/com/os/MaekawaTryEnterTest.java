@@ -0,0 +1,48 @@
+package com.os;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MaekawaTryEnterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test(timeout = 30_000)
+    public void timedOutRequestIsCancelledAtEveryArbiter() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "maekawa");
+        cluster.engine(0).csEnter();
+
+        assertFalse(cluster.engine(1).tryEnter(200));
+        cluster.engine(0).csLeave();
+        // Had the CANCEL not reached them, an arbiter would now grant node 1's dead request.
+        assertTrue(cluster.awaitArbitersIdle(5_000));
+
+        assertTrue(cluster.engine(2).tryEnter(5_000));
+        cluster.engine(2).csLeave();
+    }
+
+    @Test(timeout = 30_000)
+    public void nodeThatGaveUpGetsInOnItsNextRequest() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "maekawa");
+        cluster.engine(0).csEnter();
+        assertFalse(cluster.engine(1).tryEnter(200));
+
+        Thread leaver = new Thread(() -> {
+            try {
+                Thread.sleep(200);
+            } catch (InterruptedException e) {
+                return;
+            }
+            cluster.engine(0).csLeave();
+        });
+        leaver.start();
+        assertTrue(cluster.engine(1).tryEnter(5_000));
+        cluster.engine(1).csLeave();
+        leaver.join();
+        assertTrue(cluster.awaitArbitersIdle(5_000));
+    }
+}
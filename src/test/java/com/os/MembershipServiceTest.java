@@ -0,0 +1,44 @@
+package com.os;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MembershipServiceTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void joinIsRefusedUpFrontWithoutMaekawa() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "suzuki-kasami");
+        try {
+            cluster.nodes.get(2).getMembership().join();
+            fail("join went ahead under Suzuki-Kasami");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("maekawa"));
+        }
+    }
+
+    @Test
+    public void prepareIsIgnoredWithoutMaekawa() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "raymond");
+        List<MemberAddress> members = new ArrayList<>();
+        for (Node node : cluster.nodes) {
+            members.add(MemberAddress.of(node));
+        }
+        MembershipService membership = cluster.nodes.get(1).getMembership();
+        membership.onMessage(new Message(MessageType.RECONFIG_PREPARE, 0, 1, ClusterView.withGridQuorums(1, members)));
+        assertEquals(0, membership.currentView().epoch);
+
+        // Still usable as a mutex afterwards.
+        assertTrue(cluster.engine(1).tryEnter(5_000));
+        cluster.engine(1).csLeave();
+    }
+}
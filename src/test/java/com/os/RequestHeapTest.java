@@ -0,0 +1,186 @@
+package com.os;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RequestHeapTest {
+
+    @Test
+    public void packedKeyRoundTrips() {
+        int[] seqnums = {0, 1, 31, 32, 1_000_000, Integer.MAX_VALUE};
+        int[] nodeIds = {0, 1, 4095, (1 << 24) - 1};
+        for (PriorityClass priority : PriorityClass.values()) {
+            for (int seqnum : seqnums) {
+                for (int nodeId : nodeIds) {
+                    long key = RequestHeap.pack(seqnum, nodeId, priority);
+                    assertEquals(seqnum, RequestHeap.seqnumOf(key));
+                    assertEquals(nodeId, RequestHeap.nodeIdOf(key));
+                    assertEquals(priority, RequestHeap.priorityOf(key));
+                    Request req = RequestHeap.toRequest(key);
+                    assertEquals(key, RequestHeap.keyOf(req));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keysOrderLikeRequests() {
+        Random rand = new Random(1);
+        List<Request> requests = new ArrayList<>();
+        List<Long> keys = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            Request req = new Request(rand.nextInt(200), rand.nextInt(50),
+                    PriorityClass.values()[rand.nextInt(PriorityClass.values().length)]);
+            requests.add(req);
+            keys.add(RequestHeap.keyOf(req));
+        }
+        Collections.sort(requests);
+        Collections.sort(keys);
+        for (int i = 0; i < requests.size(); i++) {
+            assertEquals(RequestHeap.keyOf(requests.get(i)), (long) keys.get(i));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nodeIdOutsideKeyIsRejected() {
+        new RequestHeap().offer(1, 1 << 24, PriorityClass.NORMAL);
+    }
+
+    @Test
+    public void offerReplacesTheNodesEntry() {
+        RequestHeap heap = new RequestHeap();
+        heap.offer(5, 0, PriorityClass.NORMAL);
+        heap.offer(6, 1, PriorityClass.NORMAL);
+        heap.offer(7, 2, PriorityClass.NORMAL);
+        assertFalse(heap.offer(6, 1, PriorityClass.NORMAL));
+
+        // Moves up past the root...
+        assertTrue(heap.offer(1, 2, PriorityClass.NORMAL));
+        assertEquals(3, heap.size());
+        assertEquals(2, RequestHeap.nodeIdOf(heap.peekKey()));
+        assertHeap(heap);
+
+        // ...and back down below everything.
+        assertTrue(heap.offer(9, 2, PriorityClass.NORMAL));
+        assertEquals(3, heap.size());
+        assertEquals(9, RequestHeap.seqnumOf(heap.keyOfNode(2)));
+        assertHeap(heap);
+        assertPollOrder(heap, 0, 1, 2);
+    }
+
+    @Test
+    public void removeSiftsTheMovedEntryUp() {
+        RequestHeap heap = layout();
+        // Entry 4 (node 6) moves into node 3's slot under 10 and has to climb past it.
+        assertTrue(heap.removeNode(3));
+        assertFalse(heap.containsNode(3));
+        assertHeap(heap);
+        assertPollOrder(heap, 0, 2, 5, 6, 1, 4);
+    }
+
+    @Test
+    public void removeSiftsTheMovedEntryDown() {
+        RequestHeap heap = layout();
+        // Entry 4 (node 6) moves into node 2's slot above 3 and has to sink below it.
+        assertTrue(heap.removeNode(2));
+        assertHeap(heap);
+        assertPollOrder(heap, 0, 5, 6, 1, 3, 4);
+    }
+
+    @Test
+    public void removingTheLastSlotOrAnAbsentNode() {
+        RequestHeap heap = layout();
+        assertTrue(heap.removeNode(6));
+        assertFalse(heap.removeNode(6));
+        assertFalse(heap.removeNode(1000));
+        assertEquals(RequestHeap.EMPTY, heap.keyOfNode(1000));
+        assertHeap(heap);
+        assertPollOrder(heap, 0, 2, 5, 1, 3, 4);
+        assertEquals(RequestHeap.EMPTY, heap.pollKey());
+    }
+
+    @Test
+    public void matchesASortedListUnderRandomOperations() {
+        Random rand = new Random(7);
+        RequestHeap heap = new RequestHeap();
+        long[] expected = new long[64];
+        Arrays.fill(expected, RequestHeap.EMPTY);
+        for (int op = 0; op < 20_000; op++) {
+            int nodeId = rand.nextInt(expected.length);
+            int choice = rand.nextInt(4);
+            if (choice < 2) {
+                PriorityClass priority = PriorityClass.values()[rand.nextInt(PriorityClass.values().length)];
+                int seqnum = rand.nextInt(1000);
+                heap.offer(seqnum, nodeId, priority);
+                expected[nodeId] = RequestHeap.pack(seqnum, nodeId, priority);
+            } else if (choice == 2) {
+                assertEquals(expected[nodeId] != RequestHeap.EMPTY, heap.removeNode(nodeId));
+                expected[nodeId] = RequestHeap.EMPTY;
+            } else {
+                long min = RequestHeap.EMPTY;
+                for (long key : expected) {
+                    if (key != RequestHeap.EMPTY && (min == RequestHeap.EMPTY || key < min)) {
+                        min = key;
+                    }
+                }
+                assertEquals(min, heap.pollKey());
+                if (min != RequestHeap.EMPTY) {
+                    expected[RequestHeap.nodeIdOf(min)] = RequestHeap.EMPTY;
+                }
+            }
+            if (op % 100 == 0) {
+                assertHeap(heap);
+                for (int id = 0; id < expected.length; id++) {
+                    assertEquals(expected[id], heap.keyOfNode(id));
+                }
+            }
+        }
+    }
+
+    /**
+     * Seqnums 1, 10, 2, 11, 12, 3, 4 from nodes 0..6, offered in that order, which
+     * leaves the heap array in exactly that order.
+     */
+    private static RequestHeap layout() {
+        RequestHeap heap = new RequestHeap();
+        int[] seqnums = {1, 10, 2, 11, 12, 3, 4};
+        for (int nodeId = 0; nodeId < seqnums.length; nodeId++) {
+            heap.offer(seqnums[nodeId], nodeId, PriorityClass.NORMAL);
+        }
+        long[] keys = heap.keys();
+        for (int i = 0; i < seqnums.length; i++) {
+            assertEquals(seqnums[i], RequestHeap.seqnumOf(keys[i]));
+        }
+        return heap;
+    }
+
+    /**
+     * Checks the heap order and that every node's tracked slot holds its own key.
+     */
+    private static void assertHeap(RequestHeap heap) {
+        long[] keys = heap.keys();
+        assertEquals(heap.size(), keys.length);
+        for (int i = 1; i < keys.length; i++) {
+            assertTrue("heap order broken at " + i, keys[(i - 1) / 2] <= keys[i]);
+        }
+        for (long key : keys) {
+            assertEquals(key, heap.keyOfNode(RequestHeap.nodeIdOf(key)));
+        }
+    }
+
+    private static void assertPollOrder(RequestHeap heap, int... nodeIds) {
+        for (int nodeId : nodeIds) {
+            assertEquals(nodeId, RequestHeap.nodeIdOf(heap.pollKey()));
+        }
+        assertTrue(heap.isEmpty());
+    }
+}
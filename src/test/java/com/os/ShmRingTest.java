@@ -0,0 +1,106 @@
+package com.os;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShmRingTest {
+    private static final int CAPACITY = 4096;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void recordWrapsToTheStartBehindPadding() throws Exception {
+        Path path = tmp.getRoot().toPath().resolve("ring");
+        ShmRing consumer = ShmRing.create(path, CAPACITY);
+        ShmRing producer = ShmRing.open(path);
+        assertNotNull(producer);
+
+        // Three 1008-byte slots leave 1072 bytes before the end, too few for the next.
+        for (int i = 0; i < 3; i++) {
+            assertTrue(producer.offer(record(1000, i), 1000));
+        }
+        for (int i = 0; i < 3; i++) {
+            assertPolled(consumer, record(1000, i));
+        }
+        byte[] wrapped = record(1500, 9);
+        assertTrue(producer.offer(wrapped, wrapped.length));
+        assertPolled(consumer, wrapped);
+        assertEquals(-1, consumer.poll());
+
+        // Now at offset 1504; fill up to exactly the end, which needs no padding.
+        byte[] tail = record(CAPACITY - 1504 - 4, 3);
+        assertTrue(producer.offer(tail, tail.length));
+        assertPolled(consumer, tail);
+        byte[] atStart = record(12, 4);
+        assertTrue(producer.offer(atStart, atStart.length));
+        assertPolled(consumer, atStart);
+    }
+
+    @Test
+    public void producerWaitsForTheConsumerBeforeWrapping() throws Exception {
+        Path path = tmp.getRoot().toPath().resolve("ring");
+        ShmRing consumer = ShmRing.create(path, CAPACITY);
+        ShmRing producer = ShmRing.open(path);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(producer.offer(record(1000, i), 1000));
+        }
+        // Needs the padding to the end plus 1504 bytes at the start, still unread.
+        assertFalse(producer.offer(record(1500, 9), 1500));
+        assertPolled(consumer, record(1000, 0));
+        assertFalse(producer.offer(record(1500, 9), 1500));
+        assertPolled(consumer, record(1000, 1));
+        assertTrue(producer.offer(record(1500, 9), 1500));
+
+        assertPolled(consumer, record(1000, 2));
+        assertPolled(consumer, record(1500, 9));
+        assertEquals(-1, consumer.poll());
+    }
+
+    @Test
+    public void liveUntilClosedOrSilent() throws Exception {
+        Path path = tmp.getRoot().toPath().resolve("ring");
+        ShmRing consumer = ShmRing.create(path, CAPACITY);
+        ShmRing producer = ShmRing.open(path);
+        consumer.beat(10_000);
+        assertTrue(producer.isLive(10_500, 1000));
+        assertFalse(producer.isLive(11_000, 1000));
+        consumer.close();
+        assertFalse(producer.isLive(10_500, 1000));
+    }
+
+    @Test
+    public void openRejectsMissingAndForeignFiles() throws Exception {
+        Path path = tmp.getRoot().toPath().resolve("ring");
+        assertNull(ShmRing.open(path));
+        Files.write(path, new byte[8192]);
+        assertNull(ShmRing.open(path));
+    }
+
+    private static byte[] record(int len, int seed) {
+        byte[] bytes = new byte[len];
+        Arrays.fill(bytes, (byte) (seed + 1));
+        bytes[0] = (byte) seed;
+        bytes[len - 1] = (byte) ~seed;
+        return bytes;
+    }
+
+    private static void assertPolled(ShmRing consumer, byte[] expected) {
+        int len = consumer.poll();
+        assertEquals(expected.length, len);
+        assertArrayEquals(expected, Arrays.copyOf(consumer.record(), len));
+    }
+}
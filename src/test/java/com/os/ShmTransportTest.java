@@ -0,0 +1,76 @@
+package com.os;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ShmTransportTest {
+    private final ByteBuffer scratch = ByteBuffer.allocate(1024);
+
+    @Test
+    public void requestMessageRoundTripsWithPiggybackedFields() throws Exception {
+        Message msg = new Message(MessageType.LOCKED, 3, 7, new Request(41, 3, PriorityClass.HIGH));
+        msg.arbiterRate = 120;
+        msg.queueDepth = 4;
+        msg.grantStamp = 9;
+
+        Message back = roundTrip(msg);
+        assertEquals(MessageType.LOCKED, back.type);
+        assertEquals(3, back.from);
+        assertEquals(7, back.to);
+        assertEquals(120, back.arbiterRate);
+        assertEquals(4, back.queueDepth);
+        assertEquals(9, back.grantStamp);
+        Request req = (Request) back.info;
+        assertEquals(41, req.seqnum);
+        assertEquals(3, req.nodeId);
+        assertEquals(PriorityClass.HIGH, req.priority);
+    }
+
+    @Test
+    public void numberAndEmptyPayloadsRoundTrip() throws Exception {
+        Message done = roundTrip(new Message(MessageType.DONE, 1, 2, 15));
+        assertEquals(MessageType.DONE, done.type);
+        assertEquals(15, done.info);
+        assertEquals(-1, done.arbiterRate);
+
+        Message hello = roundTrip(new Message(MessageType.HELLO, 2, 1, (Request) null));
+        assertEquals(MessageType.HELLO, hello.type);
+        assertNull(hello.info);
+    }
+
+    @Test
+    public void otherPayloadsAreSerialized() throws Exception {
+        Message msg = new Message(MessageType.SWITCH_PREPARE, 0, 4, new ModeSwitch(3, ModeSwitch.Mode.TOKEN));
+        Message back = roundTrip(msg);
+        assertEquals(MessageType.SWITCH_PREPARE, back.type);
+        ModeSwitch payload = (ModeSwitch) back.info;
+        assertEquals(3, payload.epoch);
+        assertEquals(ModeSwitch.Mode.TOKEN, payload.mode);
+    }
+
+    @Test
+    public void serializedMessageLargerThanTheBufferIsRefused() throws Exception {
+        SuzukiKasamiToken token = new SuzukiKasamiToken(1, 4096);
+        assertEquals(-1, ShmTransport.encode(new Message(MessageType.TOKEN, 0, 1, token), scratch));
+    }
+
+    @Test
+    public void compactEncodingIsSmall() throws Exception {
+        int len = ShmTransport.encode(new Message(MessageType.REQUEST, 1, 2, new Request(5, 1)), scratch);
+        assertTrue("compact REQUEST took " + len + " bytes", len <= 32);
+    }
+
+    private Message roundTrip(Message msg) throws Exception {
+        int len = ShmTransport.encode(msg, scratch);
+        assertTrue(len > 0);
+        // The ring hands the consumer a reused array that can be longer than the record.
+        byte[] record = Arrays.copyOf(scratch.array(), len + 64);
+        return ShmTransport.decode(record, len);
+    }
+}
@@ -0,0 +1,158 @@
+package com.os;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StallDetectorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final StallDetector detector = new StallDetector(Collections.emptyList());
+
+    @Test
+    public void twoNodesHoldingWhatTheOtherNeedsAreADeadlock() throws IOException {
+        Map<Integer, StallDetector.Snapshot> snapshots = snapshots(
+                "requester state=WAITING inCs=false paused=false rounds=1\n"
+                        + "round seq=5 class=NORMAL role=collecting granted=false age=40 quorum=0,1 locked=0 failed= inquired= waiters=1 served=0\n"
+                        + "arbiter holder=0 seq=5 class=NORMAL held=40 inquired=false stamp=1 queued=1 rate=0\n"
+                        + "queued node=1 seq=6 class=NORMAL\n",
+                "requester state=WAITING inCs=false paused=false rounds=1\n"
+                        + "round seq=6 class=NORMAL role=collecting granted=false age=40 quorum=0,1 locked=1 failed= inquired= waiters=1 served=0\n"
+                        + "arbiter holder=1 seq=6 class=NORMAL held=40 inquired=false stamp=1 queued=1 rate=0\n"
+                        + "queued node=0 seq=5 class=NORMAL\n");
+        assertEquals(Collections.singleton("deadlock:0/5:1/6"), detector.analyze(snapshots).keySet());
+    }
+
+    @Test
+    public void grantHeldForAFinishedRoundIsStale() throws IOException {
+        String arbiter = "arbiter holder=0 seq=3 class=NORMAL held=900 inquired=false stamp=4 queued=0 rate=0\n";
+        Map<Integer, StallDetector.Snapshot> snapshots = snapshots(
+                "requester state=IDLE inCs=false paused=false rounds=0\n"
+                        + "arbiter holder=none stamp=2 queued=0 rate=0\n",
+                "requester state=IDLE inCs=false paused=false rounds=0\n" + arbiter);
+        assertEquals(Collections.singleton("stale:1:0:3"), detector.analyze(snapshots).keySet());
+
+        // A requester that could not be read is not taken for one without rounds.
+        snapshots = snapshots("requester busy=true\narbiter holder=none stamp=2 queued=0 rate=0\n",
+                "requester state=IDLE inCs=false paused=false rounds=0\n" + arbiter);
+        assertTrue(detector.analyze(snapshots).isEmpty());
+    }
+
+    @Test
+    public void unlockedArbiterWithAQueueIsIdle() throws IOException {
+        Map<Integer, StallDetector.Snapshot> snapshots = snapshots(
+                "requester state=WAITING inCs=false paused=false rounds=1\n"
+                        + "round seq=7 class=NORMAL role=collecting granted=false age=40 quorum=1 locked= failed= inquired= waiters=1 served=0\n"
+                        + "arbiter holder=none stamp=0 queued=0 rate=0\n",
+                "requester state=IDLE inCs=false paused=false rounds=0\n"
+                        + "arbiter holder=none stamp=3 queued=1 rate=0\n"
+                        + "queued node=0 seq=7 class=NORMAL\n");
+        assertEquals(Collections.singleton("idle:1:0:7"), detector.analyze(snapshots).keySet());
+    }
+
+    @Test
+    public void roundWaitingOnAnArbiterThatLostItIsUnqueued() throws IOException {
+        Map<Integer, StallDetector.Snapshot> snapshots = snapshots(
+                "requester state=WAITING inCs=false paused=false rounds=1\n"
+                        + "round seq=8 class=NORMAL role=collecting granted=false age=40 quorum=1 locked= failed= inquired= waiters=1 served=0\n"
+                        + "arbiter holder=none stamp=0 queued=0 rate=0\n",
+                "requester state=IDLE inCs=false paused=false rounds=0\n"
+                        + "arbiter holder=2 seq=4 class=NORMAL held=10 inquired=false stamp=5 queued=0 rate=0\n",
+                "requester state=IN_CS inCs=true paused=false rounds=1\n"
+                        + "round seq=4 class=NORMAL role=holding granted=true age=10 quorum=1 locked=1 failed= inquired= waiters=0 served=1\n"
+                        + "arbiter holder=none stamp=0 queued=0 rate=0\n");
+        assertEquals(Collections.singleton("unqueued:0:8:1"), detector.analyze(snapshots).keySet());
+    }
+
+    @Test
+    public void findingIsReportedOnlyAfterConfirmingPolls() {
+        Map<String, String> findings = Collections.singletonMap("idle:1:0:7", "idle arbiter");
+        for (int poll = 1; poll < StallDetector.CONFIRM_POLLS; poll++) {
+            detector.update(findings);
+            assertTrue(detector.reported.isEmpty());
+        }
+        // Gone for one poll: the count starts over.
+        detector.update(Collections.emptyMap());
+        for (int poll = 1; poll < StallDetector.CONFIRM_POLLS; poll++) {
+            detector.update(findings);
+            assertTrue(detector.reported.isEmpty());
+        }
+        detector.update(findings);
+        assertEquals(findings.keySet(), detector.reported.keySet());
+
+        detector.update(Collections.emptyMap());
+        assertTrue(detector.reported.isEmpty());
+    }
+
+    @Test
+    public void stronglyConnectedFindsEveryCycle() {
+        Map<Integer, Set<Integer>> graph = new TreeMap<>();
+        graph.put(1, new TreeSet<>(Collections.singletonList(2)));
+        graph.put(2, new TreeSet<>(Collections.singletonList(3)));
+        graph.put(3, new TreeSet<>(Arrays.asList(1, 4)));
+        graph.put(4, new TreeSet<>(Collections.singletonList(4)));
+        graph.put(6, new TreeSet<>(Collections.singletonList(5)));
+        graph.put(5, new TreeSet<>(Collections.singletonList(6)));
+        graph.put(7, new TreeSet<>(Collections.singletonList(1)));
+        List<List<Integer>> components = StallDetector.stronglyConnected(graph);
+        assertEquals(2, components.size());
+        assertTrue(components.contains(Arrays.asList(1, 2, 3)));
+        assertTrue(components.contains(Arrays.asList(5, 6)));
+    }
+
+    @Test
+    public void parsesWhatIntrospectionServes() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "maekawa");
+        assertTrue(cluster.engine(0).tryEnter(5_000));
+        try {
+            StallDetector.Snapshot requester = parse(0, Introspection.snapshot(cluster.nodes.get(0)));
+            assertTrue(requester.requesterKnown);
+            assertEquals(1, requester.rounds.size());
+            StallDetector.Round round = requester.rounds.get(0);
+            assertTrue(round.granted);
+            assertEquals(Arrays.asList(1, 2), round.quorum);
+            assertEquals(Arrays.asList(1, 2), round.locked);
+
+            StallDetector.Snapshot arbiter = parse(1, Introspection.snapshot(cluster.nodes.get(1)));
+            assertTrue(arbiter.arbiterKnown);
+            assertEquals(0, arbiter.holder);
+            assertEquals(round.seq, arbiter.holderSeq);
+
+            Map<Integer, StallDetector.Snapshot> all = new HashMap<>();
+            for (int id = 0; id < 3; id++) {
+                all.put(id, parse(id, Introspection.snapshot(cluster.nodes.get(id))));
+            }
+            assertEquals(Collections.emptySet(), detector.analyze(all).keySet());
+        } finally {
+            cluster.engine(0).csLeave();
+        }
+    }
+
+    private static Map<Integer, StallDetector.Snapshot> snapshots(String... texts) throws IOException {
+        Map<Integer, StallDetector.Snapshot> snapshots = new TreeMap<>();
+        for (int id = 0; id < texts.length; id++) {
+            snapshots.put(id, parse(id, "node id=" + id + " engine=MaekawaProtocol seqnum=9\n" + texts[id]));
+        }
+        return snapshots;
+    }
+
+    private static StallDetector.Snapshot parse(int nodeId, String text) throws IOException {
+        return StallDetector.Snapshot.parse(nodeId, new BufferedReader(new StringReader(text)));
+    }
+}
@@ -0,0 +1,53 @@
+package com.os;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SuzukiKasamiTryEnterTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test(timeout = 30_000)
+    public void nodeThatGaveUpGetsTheTokenOnItsNextRequest() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "suzuki-kasami");
+        // Node 0 starts with the token.
+        cluster.engine(0).csEnter();
+        assertFalse(cluster.engine(1).tryEnter(200));
+
+        // Node 1 asks again while its first request is still outstanding, so the holder
+        // sees a request number two ahead of the last one it served.
+        Thread leaver = new Thread(() -> {
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                return;
+            }
+            cluster.engine(0).csLeave();
+        });
+        leaver.start();
+        assertTrue(cluster.engine(1).tryEnter(5_000));
+        cluster.engine(1).csLeave();
+        leaver.join();
+
+        assertTrue(cluster.engine(2).tryEnter(5_000));
+        cluster.engine(2).csLeave();
+    }
+
+    @Test(timeout = 30_000)
+    public void tokenSentForAnAbandonedRequestIsNotLost() throws Exception {
+        LocalCluster cluster = new LocalCluster(tmp.getRoot(), 3, "suzuki-kasami");
+        cluster.engine(0).csEnter();
+        assertFalse(cluster.engine(1).tryEnter(200));
+        // The token now goes to node 1, which no longer wants it.
+        cluster.engine(0).csLeave();
+
+        assertTrue(cluster.engine(2).tryEnter(5_000));
+        cluster.engine(2).csLeave();
+        assertTrue(cluster.engine(0).tryEnter(5_000));
+        cluster.engine(0).csLeave();
+    }
+}
@@ -0,0 +1,135 @@
+package com.os;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TopologyTest {
+    private static final String CONFIG = "# n d c k\n"
+            + "3 20 10 15\n"
+            + "0 dc01 5600\n"
+            + "7 dc02 5601   # trailing comment\n"
+            + "2 node-3.example 5602\n"
+            + "0 7 2\n"
+            + "7 2\n"
+            + "2 0\n";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parsesNodesAndQuorumsWithoutTheOwner() throws IOException {
+        Topology t = parse(CONFIG);
+        assertEquals(3, t.numOfNodes);
+        assertEquals(20, t.interRequestDelay);
+        assertEquals(10, t.csExecTime);
+        assertEquals(15, t.numReqPerNode);
+        assertArrayEquals(new int[]{0, 7, 2}, t.ids);
+        assertArrayEquals(new String[]{"dc01", "dc02", "node-3.example"}, t.hosts);
+        assertArrayEquals(new int[]{5600, 5601, 5602}, t.ports);
+        assertArrayEquals(new int[]{0, 2, 3, 4}, t.quorumStart);
+        assertArrayEquals(new int[]{7, 2, 2, 0}, t.quorumMembers);
+    }
+
+    @Test
+    public void rejectsMalformedConfigs() {
+        assertRejected("2 20 10 15\n0 a 1\n0 b 2\n0 1\n1 0\n", "duplicate node id 0");
+        assertRejected("2 20 10 15\n0 a 1\n1 b 2\n1\n0 1\n", "does not list node 0");
+        assertRejected("2 20 10 15\n0 a 1\n1 b 2\n0 5\n1 0\n", "unknown node 5");
+        assertRejected("2 20 10 15\n0 a 1\n1 b 70000\n0 1\n1 0\n", "out of range");
+        assertRejected("2 20 10 15\n0 a 1\n1 b 2\n0 1\n", "expected 2 quorum lines");
+    }
+
+    @Test
+    public void snapshotRoundTrips() throws IOException {
+        Topology t = parse(CONFIG);
+        Path snapshot = tmp.getRoot().toPath().resolve("config.snapshot");
+        t.writeSnapshot(snapshot, 123, 456);
+
+        Topology read = Topology.readSnapshot(snapshot, 123, 456);
+        assertNotNull(read);
+        assertEquals(t.numOfNodes, read.numOfNodes);
+        assertEquals(t.interRequestDelay, read.interRequestDelay);
+        assertEquals(t.csExecTime, read.csExecTime);
+        assertEquals(t.numReqPerNode, read.numReqPerNode);
+        assertArrayEquals(t.ids, read.ids);
+        assertArrayEquals(t.hosts, read.hosts);
+        assertArrayEquals(t.ports, read.ports);
+        assertArrayEquals(t.quorumStart, read.quorumStart);
+        assertArrayEquals(t.quorumMembers, read.quorumMembers);
+    }
+
+    @Test
+    public void snapshotOfAnotherConfigVersionIsNotUsed() throws IOException {
+        Path snapshot = tmp.getRoot().toPath().resolve("config.snapshot");
+        parse(CONFIG).writeSnapshot(snapshot, 123, 456);
+        assertNull(Topology.readSnapshot(snapshot, 124, 456));
+        assertNull(Topology.readSnapshot(snapshot, 123, 457));
+        assertNull(Topology.readSnapshot(tmp.getRoot().toPath().resolve("missing"), 123, 456));
+
+        Files.write(snapshot, new byte[10]);
+        assertNull(Topology.readSnapshot(snapshot, 123, 456));
+    }
+
+    @Test
+    public void parserReparsesWhenTheConfigChanges() throws IOException {
+        Path config = tmp.getRoot().toPath().resolve("config.txt");
+        Path snapshot = tmp.getRoot().toPath().resolve("config.txt.snapshot");
+        Files.write(config, CONFIG.getBytes(StandardCharsets.UTF_8));
+        FileTime mtime = FileTime.fromMillis(1_600_000_000_000L);
+        Files.setLastModifiedTime(config, mtime);
+
+        assertEquals(15, load(config).getNumReqPerNode());
+        assertTrue(Files.exists(snapshot));
+
+        // A snapshot stamped for this exact file is used instead of the text.
+        Topology planted = parse(CONFIG.replace("3 20 10 15", "3 20 10 99"));
+        planted.writeSnapshot(snapshot, Files.size(config), mtime.toMillis());
+        assertEquals(99, load(config).getNumReqPerNode());
+
+        // Same size, new mtime: parsed again and the snapshot rewritten.
+        Files.setLastModifiedTime(config, FileTime.fromMillis(mtime.toMillis() + 1000));
+        assertEquals(15, load(config).getNumReqPerNode());
+        assertEquals(15, Topology.readSnapshot(snapshot, Files.size(config),
+                Files.getLastModifiedTime(config).toMillis()).numReqPerNode);
+
+        // New size, mtime put back: parsed again.
+        planted.writeSnapshot(snapshot, Files.size(config), mtime.toMillis());
+        Files.write(config, CONFIG.replace("3 20 10 15", "3 20 10 150").getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(config, mtime);
+        assertEquals(150, load(config).getNumReqPerNode());
+    }
+
+    private static Topology parse(String text) throws IOException {
+        return Topology.parse(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), "test-config");
+    }
+
+    private static void assertRejected(String text, String expected) {
+        try {
+            parse(text);
+            fail("accepted: " + text);
+        } catch (IllegalArgumentException | IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expected));
+        }
+    }
+
+    private static Parser load(Path config) {
+        Parser parser = new Parser();
+        parser.loadFromFile(config.toString());
+        return parser;
+    }
+}
@@ -0,0 +1,131 @@
+#!/usr/bin/env python3
+"""Startup and first-CS latency of the plain jar, the jar with the AppCDS archive and the
+native image, all nodes of a config on this host, one process per node.
+
+    mvn -Pcds package               # target/Node-1.0-SNAPSHOT.jar and target/Node.jsa
+    mvn -Pnative package            # target/Node, needs a GraalVM JDK
+    python3 startup_bench.py [config] [runs]
+
+Variants whose build output is missing are skipped. Nodes talk over TCP, as they do
+one per host, since that is also what the AppCDS training run loads.
+"""
+import os
+import re
+import statistics
+import subprocess
+import sys
+import tempfile
+import threading
+import time
+
+ROOT = os.path.dirname(os.path.abspath(__file__))
+JAR = os.path.join(ROOT, "target", "Node-1.0-SNAPSHOT.jar")
+ARCHIVE = os.path.join(ROOT, "target", "Node.jsa")
+NATIVE = os.path.join(ROOT, "target", "Node")
+OPTS = ["-Dipc.shm=false", "-Dconfig.snapshot=off"]
+TIMEOUT_S = 300
+
+LISTENING_RE = re.compile(r"Node (\d+) listening on port")
+READY_RE = re.compile(r"Node (\d+) up and running")
+
+
+def variants():
+    found = [("jar", ["java"] + OPTS + ["-jar", JAR])]
+    if os.path.exists(ARCHIVE):
+        found.append(("jar+cds", ["java", "-XX:SharedArchiveFile=" + ARCHIVE] + OPTS + ["-jar", JAR]))
+    if os.path.exists(NATIVE):
+        found.append(("native", [NATIVE] + OPTS))
+    return found
+
+
+def node_ids(config):
+    lines = []
+    with open(config) as f:
+        for line in f:
+            line = line.split("#", 1)[0].strip()
+            if line:
+                lines.append(line)
+    n = int(lines[0].split()[0])
+    return [int(line.split()[0]) for line in lines[1:n + 1]]
+
+
+def watch(proc, started, seen):
+    for line in proc.stdout:
+        now = time.monotonic()
+        for key, pattern in (("listening", LISTENING_RE), ("ready", READY_RE)):
+            m = pattern.search(line)
+            if m and (key, m.group(1)) not in seen:
+                seen[(key, m.group(1))] = (now - started) * 1000
+
+
+def latency_fields(output_dir, field):
+    values = []
+    for name in os.listdir(output_dir):
+        if not name.startswith("latency-"):
+            continue
+        with open(os.path.join(output_dir, name)) as f:
+            for line in f:
+                kv = dict(part.split("=", 1) for part in line.split())
+                if field in kv:
+                    values.append(float(kv[field].rstrip("ms")))
+    return values
+
+
+def run_once(cmd, config, ids):
+    with tempfile.TemporaryDirectory(prefix="startup-bench-") as workdir:
+        seen = {}
+        started = time.monotonic()
+        procs = [subprocess.Popen(cmd + [str(i), config], cwd=workdir, stdout=subprocess.PIPE,
+                                  stderr=subprocess.STDOUT, text=True) for i in ids]
+        watchers = [threading.Thread(target=watch, args=(p, started, seen), daemon=True) for p in procs]
+        for w in watchers:
+            w.start()
+        deadline = started + TIMEOUT_S
+        for p in procs:
+            try:
+                p.wait(timeout=max(1, deadline - time.monotonic()))
+            except subprocess.TimeoutExpired:
+                p.kill()
+        wall = time.monotonic() - started
+        for w in watchers:
+            w.join(5)
+        output_dir = os.path.join(workdir, "output")
+        if not os.path.isdir(output_dir):
+            return None
+        return {
+            "listening": [v for (k, _), v in seen.items() if k == "listening"],
+            "ready": [v for (k, _), v in seen.items() if k == "ready"],
+            "first": latency_fields(output_dir, "first"),
+            "mean": latency_fields(output_dir, "mean"),
+            "wall": [wall * 1000],
+        }
+
+
+def median(values):
+    return statistics.median(values) if values else float("nan")
+
+
+def main():
+    config = os.path.abspath(sys.argv[1] if len(sys.argv) > 1 else os.path.join(ROOT, "src", "cds", "training-config.txt"))
+    runs = int(sys.argv[2]) if len(sys.argv) > 2 else 5
+    if not os.path.exists(JAR):
+        sys.exit("no " + JAR + ", run mvn -Pcds package first")
+    ids = node_ids(config)
+    print(f"{len(ids)} nodes from {config}, {runs} runs per variant, medians in ms")
+    print(f"{'variant':<10}{'listening':>12}{'ready':>12}{'first CS':>12}{'mean CS':>12}{'wall':>12}")
+    for name, cmd in variants():
+        totals = {"listening": [], "ready": [], "first": [], "mean": [], "wall": []}
+        for _ in range(runs):
+            result = run_once(cmd, config, ids)
+            if result is None:
+                print(f"{name}: a run produced no output, skipping the variant")
+                break
+            for key, values in result.items():
+                totals[key].extend(values)
+        else:
+            print(f"{name:<10}" + "".join(f"{median(totals[k]):>12.1f}"
+                                          for k in ("listening", "ready", "first", "mean", "wall")))
+
+
+if __name__ == "__main__":
+    main()